@@ -0,0 +1,641 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ntsync.shared.ContactConstants.AddressType;
+import com.ntsync.shared.ContactConstants.EmailType;
+import com.ntsync.shared.ContactConstants.EventType;
+import com.ntsync.shared.ContactConstants.ImProtocolType;
+import com.ntsync.shared.ContactConstants.ImType;
+import com.ntsync.shared.ContactConstants.ListType;
+import com.ntsync.shared.ContactConstants.NicknameType;
+import com.ntsync.shared.ContactConstants.OrganizationType;
+import com.ntsync.shared.ContactConstants.PhoneType;
+import com.ntsync.shared.ContactConstants.RelationType;
+import com.ntsync.shared.ContactConstants.SipAddressType;
+import com.ntsync.shared.ContactConstants.WebsiteType;
+import com.ntsync.shared.ListRawData.RawAddressData;
+import com.ntsync.shared.ListRawData.RawImData;
+import com.ntsync.shared.ListRawData.RawOrganizationData;
+
+/**
+ * Compact binary encoding of the text data of a contact (
+ * {@link TextFormat#BINARY}).
+ * 
+ * The data starts with {@link #FORMAT_MARKER}, followed by fields: tag
+ * (varint), length (varint), content. Unknown fields are skipped. Numbers
+ * are varints, types are zigzag-encoded. Every entry has a flags-varint
+ * with primary/superprimary and a presence bit for each of its strings,
+ * only the present strings follow as length and UTF-8 bytes. Empty strings
+ * are not written, as in the JSON format.
+ */
+final class BinaryContactFormat {
+
+	/** First byte of the text data, JSON starts always with '{' */
+	static final byte FORMAT_MARKER = 1;
+
+	private static final int TAG_NAME = 1;
+	private static final int TAG_PHONE = 2;
+	private static final int TAG_EMAIL = 3;
+	private static final int TAG_WEBSITE = 4;
+	private static final int TAG_EVENT = 5;
+	private static final int TAG_RELATION = 6;
+	private static final int TAG_SIPADDRESS = 7;
+	private static final int TAG_NICKNAME = 8;
+	private static final int TAG_ADDRESS = 9;
+	private static final int TAG_IM = 10;
+	private static final int TAG_ORGANIZATION = 11;
+	private static final int TAG_NOTE = 12;
+	private static final int TAG_GROUPMEMBERSHIP = 13;
+	private static final int TAG_STARRED = 14;
+	private static final int TAG_SEND_TO_VOICE_MAIL = 15;
+	private static final int TAG_CUSTOM_RINGTONE = 16;
+	private static final int TAG_PHOTO_SUPERPRIMARY = 17;
+
+	private static final ContactField[] FIELDS_BY_TAG = new ContactField[] {
+			null, ContactField.STRUCTURED_NAME, ContactField.PHONE,
+			ContactField.EMAIL, ContactField.WEBSITE, ContactField.EVENT,
+			ContactField.RELATION, ContactField.SIP_ADDRESS,
+			ContactField.NICKNAME, ContactField.ADDRESS, ContactField.IM,
+			ContactField.ORGANIZATION, ContactField.NOTE,
+			ContactField.GROUP_MEMBERSHIP, ContactField.STARRED,
+			ContactField.SEND_TO_VOICE_MAIL, ContactField.CUSTOM_RINGTONE,
+			ContactField.PHOTO_SUPERPRIMARY };
+
+	private static final int FLAG_PRIMARY = 1;
+	private static final int FLAG_SUPERPRIMARY = 2;
+	/** Presence bit of the first string of an entry */
+	private static final int FLAG_FIRST_STRING = 4;
+
+	private static final int VARINT_BITS = 7;
+	private static final int VARINT_MASK = 0x7F;
+	private static final int VARINT_MORE = 0x80;
+	private static final int VARINT_MAX_SHIFT = 28;
+
+	private BinaryContactFormat() {
+		// private: is a utility-class
+	}
+
+	/**
+	 * Writes the text data of a contact.
+	 * 
+	 * @param c
+	 * @param out
+	 * @throws IOException
+	 */
+	static void write(RawContact c, ExposedByteArrayOutputStream out)
+			throws IOException {
+		out.write(FORMAT_MARKER);
+
+		int lenPos = beginField(out, TAG_NAME);
+		writeStrings(out, 0, c.getFullName(), c.getLastName(),
+				c.getFirstName(), c.getMiddleName(), c.getPrefixName(),
+				c.getSuffixName(), c.getPhoneticFamilyName(),
+				c.getPhoneticGivenName(), c.getPhoneticMiddleName());
+		endField(out, lenPos);
+
+		writeList(out, TAG_PHONE, c.getPhone());
+		writeList(out, TAG_EMAIL, c.getEmail());
+		writeList(out, TAG_EVENT, c.getEvents());
+		writeList(out, TAG_RELATION, c.getRelations());
+		writeList(out, TAG_SIPADDRESS, c.getSipAddresses());
+		writeList(out, TAG_NICKNAME, c.getNicknames());
+		writeList(out, TAG_WEBSITE, c.getWebsite());
+		writeAddresses(out, c.getAddress());
+		writeImList(out, c.getImAddresses());
+		writeOrganization(out, c.getOrganization());
+
+		writeStringField(out, TAG_NOTE, c.getNote());
+		if (c.isStarred()) {
+			endField(out, beginField(out, TAG_STARRED));
+		}
+		if (c.isSendToVoiceMail()) {
+			endField(out, beginField(out, TAG_SEND_TO_VOICE_MAIL));
+		}
+		writeStringField(out, TAG_CUSTOM_RINGTONE,
+				c.getDroidCustomRingtone());
+		if (c.isPhotoSuperPrimary()) {
+			endField(out, beginField(out, TAG_PHOTO_SUPERPRIMARY));
+		}
+		writeGroupMembership(out, c.getGroupSourceIds());
+	}
+
+	/**
+	 * Reads the text data of a contact, fields which are not requested in
+	 * the context are skipped.
+	 * 
+	 * @param data
+	 * @param offset
+	 *            start of the text data
+	 * @param length
+	 * @param text
+	 *            receives the fields
+	 * @param context
+	 * @throws IOException
+	 *             if the data is invalid
+	 */
+	static void read(byte[] data, int offset, int length,
+			ContactTextFields text, ContactCodecContext context)
+			throws IOException {
+		if (length < 1 || data[offset] != FORMAT_MARKER) {
+			throw new IOException("Unsupported text format");
+		}
+		Input in = new Input(data, offset + 1, offset + length);
+		while (in.hasMore()) {
+			int tag = in.readVarInt();
+			if (tag < 0) {
+				throw new IOException("Invalid tag:" + tag);
+			}
+			int fieldEnd = in.skipPosition(in.readVarInt());
+			ContactField field = tag < FIELDS_BY_TAG.length ? FIELDS_BY_TAG[tag]
+					: null;
+			if (field != null && context.isDecoded(field)) {
+				// The content of a field must not exceed its length
+				int end = in.limit(fieldEnd);
+				readField(in, tag, text);
+				in.limit(end);
+			}
+			// Skip unknown, not requested and not completely read fields
+			in.setPosition(fieldEnd);
+		}
+	}
+
+	private static void readField(Input in, int tag, ContactTextFields text)
+			throws IOException {
+		switch (tag) {
+		case TAG_NAME:
+			readName(in, text);
+			break;
+		case TAG_PHONE:
+			text.phones = readList(in, PhoneType.TYPE_OTHER, PhoneType.class);
+			break;
+		case TAG_EMAIL:
+			text.emails = readList(in, EmailType.TYPE_OTHER, EmailType.class);
+			break;
+		case TAG_WEBSITE:
+			text.websites = readList(in, WebsiteType.TYPE_OTHER,
+					WebsiteType.class);
+			break;
+		case TAG_EVENT:
+			text.events = readList(in, EventType.TYPE_OTHER, EventType.class);
+			break;
+		case TAG_RELATION:
+			text.relations = readList(in, RelationType.TYPE_CUSTOM,
+					RelationType.class);
+			break;
+		case TAG_SIPADDRESS:
+			text.sipaddresses = readList(in, SipAddressType.TYPE_OTHER,
+					SipAddressType.class);
+			break;
+		case TAG_NICKNAME:
+			text.nicknames = readList(in, NicknameType.TYPE_DEFAULT,
+					NicknameType.class);
+			break;
+		case TAG_ADDRESS:
+			text.addresses = readAddresses(in);
+			break;
+		case TAG_IM:
+			text.imAddresses = readImList(in);
+			break;
+		case TAG_ORGANIZATION:
+			text.organization = readOrganization(in);
+			break;
+		case TAG_NOTE:
+			text.note = in.readString();
+			break;
+		case TAG_GROUPMEMBERSHIP:
+			text.groupSourceIds = readGroupMembership(in);
+			break;
+		case TAG_STARRED:
+			text.starred = true;
+			break;
+		case TAG_SEND_TO_VOICE_MAIL:
+			text.sendToVoiceMail = true;
+			break;
+		case TAG_CUSTOM_RINGTONE:
+			text.customRingtone = in.readString();
+			break;
+		case TAG_PHOTO_SUPERPRIMARY:
+			text.photoSuperPrimary = true;
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static void readName(Input in, ContactTextFields text)
+			throws IOException {
+		int flags = in.readVarInt();
+		text.fullName = in.readString(flags, 0);
+		text.lastName = in.readString(flags, 1);
+		text.firstName = in.readString(flags, 2);
+		text.middleName = in.readString(flags, 3);
+		text.prefixName = in.readString(flags, 4);
+		text.suffixName = in.readString(flags, 5);
+		text.phonecticLast = in.readString(flags, 6);
+		text.phonecticFirst = in.readString(flags, 7);
+		text.phonecticMiddle = in.readString(flags, 8);
+	}
+
+	private static void writeList(ExposedByteArrayOutputStream out, int tag,
+			List<? extends IListRawData<?>> list) throws IOException {
+		if (list != null) {
+			int lenPos = beginField(out, tag);
+			writeVarInt(out, list.size());
+			for (IListRawData<?> listItem : list) {
+				writeSignedVarInt(out, listItem.getType().getVal());
+				writeStrings(out, getFlags(listItem), listItem.getData(),
+						listItem.getLabel());
+			}
+			endField(out, lenPos);
+		}
+	}
+
+	private static <T extends ListType> List<ListRawData<T>> readList(
+			Input in, T defaultType, Class<T> typeClass) throws IOException {
+		int count = in.readCount();
+		List<ListRawData<T>> list = null;
+		for (int i = 0; i < count; i++) {
+			T type = ContactConstants.fromVal(typeClass,
+					in.readSignedVarInt());
+			int flags = in.readVarInt();
+			String data = in.readString(flags, 0);
+			String label = in.readString(flags, 1);
+			if (data != null) {
+				if (list == null) {
+					list = new ArrayList<ListRawData<T>>(count);
+				}
+				list.add(new ListRawData<T>(data, type != null ? type
+						: defaultType, label, isPrimary(flags),
+						isSuperPrimary(flags)));
+			}
+		}
+		return list;
+	}
+
+	private static void writeAddresses(ExposedByteArrayOutputStream out,
+			List<RawAddressData> list) throws IOException {
+		if (list != null) {
+			int lenPos = beginField(out, TAG_ADDRESS);
+			writeVarInt(out, list.size());
+			for (RawAddressData listItem : list) {
+				writeSignedVarInt(out, listItem.getType().getVal());
+				writeStrings(out, getFlags(listItem), listItem.getLabel(),
+						listItem.getStreet(), listItem.getPobox(),
+						listItem.getPostcode(), listItem.getCountry(),
+						listItem.getCity(), listItem.getRegion(),
+						listItem.getNeighborhood());
+			}
+			endField(out, lenPos);
+		}
+	}
+
+	private static List<RawAddressData> readAddresses(Input in)
+			throws IOException {
+		int count = in.readCount();
+		List<RawAddressData> list = null;
+		for (int i = 0; i < count; i++) {
+			AddressType type = AddressType.fromVal(in.readSignedVarInt());
+			int flags = in.readVarInt();
+			String label = in.readString(flags, 0);
+			String street = in.readString(flags, 1);
+			String pobox = in.readString(flags, 2);
+			String postcode = in.readString(flags, 3);
+			String country = in.readString(flags, 4);
+			String city = in.readString(flags, 5);
+			String region = in.readString(flags, 6);
+			String neighborhood = in.readString(flags, 7);
+			if (list == null) {
+				list = new ArrayList<RawAddressData>(count);
+			}
+			list.add(new RawAddressData(type != null ? type
+					: AddressType.TYPE_OTHER, label, isPrimary(flags),
+					isSuperPrimary(flags), street, pobox, neighborhood, city,
+					region, postcode, country));
+		}
+		return list;
+	}
+
+	private static void writeImList(ExposedByteArrayOutputStream out,
+			List<RawImData> list) throws IOException {
+		if (list != null) {
+			int lenPos = beginField(out, TAG_IM);
+			writeVarInt(out, list.size());
+			for (RawImData listItem : list) {
+				writeSignedVarInt(out, listItem.getType().getVal());
+				writeSignedVarInt(out, listItem.getProtType().getVal());
+				writeStrings(out, getFlags(listItem), listItem.getData(),
+						listItem.getLabel(), listItem.getCustomProtocolName());
+			}
+			endField(out, lenPos);
+		}
+	}
+
+	private static List<RawImData> readImList(Input in) throws IOException {
+		int count = in.readCount();
+		List<RawImData> list = null;
+		for (int i = 0; i < count; i++) {
+			ImType type = ImType.fromVal(in.readSignedVarInt());
+			ImProtocolType protType = ImProtocolType.fromVal(in
+					.readSignedVarInt());
+			int flags = in.readVarInt();
+			String data = in.readString(flags, 0);
+			String label = in.readString(flags, 1);
+			String customProtocol = in.readString(flags, 2);
+			if (list == null) {
+				list = new ArrayList<RawImData>(count);
+			}
+			list.add(new RawImData(data, type != null ? type
+					: ImType.TYPE_OTHER, label, isPrimary(flags),
+					isSuperPrimary(flags), protType, customProtocol));
+		}
+		return list;
+	}
+
+	private static void writeOrganization(ExposedByteArrayOutputStream out,
+			RawOrganizationData org) throws IOException {
+		if (org != null) {
+			int lenPos = beginField(out, TAG_ORGANIZATION);
+			writeSignedVarInt(out, org.getType().getVal());
+			writeStrings(out, getFlags(org), org.getData(), org.getLabel(),
+					org.getTitle(), org.getDepartment(),
+					org.getJobDescription());
+			endField(out, lenPos);
+		}
+	}
+
+	private static RawOrganizationData readOrganization(Input in)
+			throws IOException {
+		OrganizationType type = OrganizationType.fromVal(in
+				.readSignedVarInt());
+		int flags = in.readVarInt();
+		String data = in.readString(flags, 0);
+		String label = in.readString(flags, 1);
+		String title = in.readString(flags, 2);
+		String department = in.readString(flags, 3);
+		String jobDescription = in.readString(flags, 4);
+		return new RawOrganizationData(data, type != null ? type
+				: OrganizationType.TYPE_OTHER, label, isPrimary(flags),
+				isSuperPrimary(flags), title, department, jobDescription);
+	}
+
+	private static void writeGroupMembership(
+			ExposedByteArrayOutputStream out, List<String> list)
+			throws IOException {
+		if (list != null) {
+			int count = 0;
+			for (String listItem : list) {
+				if (!SyncDataHelper.isEmpty(listItem)) {
+					count++;
+				}
+			}
+			int lenPos = beginField(out, TAG_GROUPMEMBERSHIP);
+			writeVarInt(out, count);
+			for (String listItem : list) {
+				if (!SyncDataHelper.isEmpty(listItem)) {
+					writeString(out, listItem);
+				}
+			}
+			endField(out, lenPos);
+		}
+	}
+
+	private static List<String> readGroupMembership(Input in)
+			throws IOException {
+		int count = in.readCount();
+		List<String> list = null;
+		for (int i = 0; i < count; i++) {
+			if (list == null) {
+				list = new ArrayList<String>(count);
+			}
+			list.add(in.readString());
+		}
+		return list;
+	}
+
+	private static int getFlags(IListRawData<?> listItem) {
+		int flags = 0;
+		if (listItem.isPrimary()) {
+			flags |= FLAG_PRIMARY;
+		}
+		if (listItem.isSuperPrimary()) {
+			flags |= FLAG_SUPERPRIMARY;
+		}
+		return flags;
+	}
+
+	private static boolean isPrimary(int flags) {
+		return (flags & FLAG_PRIMARY) != 0;
+	}
+
+	private static boolean isSuperPrimary(int flags) {
+		return (flags & FLAG_SUPERPRIMARY) != 0;
+	}
+
+	private static void writeStringField(ExposedByteArrayOutputStream out,
+			int tag, String value) throws IOException {
+		if (!SyncDataHelper.isEmpty(value)) {
+			int lenPos = beginField(out, tag);
+			writeString(out, value);
+			endField(out, lenPos);
+		}
+	}
+
+	/**
+	 * Writes the flags with the presence bits and the non-empty strings.
+	 */
+	private static void writeStrings(ExposedByteArrayOutputStream out,
+			int flags, String... values) throws IOException {
+		int allFlags = flags;
+		for (int i = 0; i < values.length; i++) {
+			if (!SyncDataHelper.isEmpty(values[i])) {
+				allFlags |= FLAG_FIRST_STRING << i;
+			}
+		}
+		writeVarInt(out, allFlags);
+		for (String value : values) {
+			if (!SyncDataHelper.isEmpty(value)) {
+				writeString(out, value);
+			}
+		}
+	}
+
+	private static void writeString(ExposedByteArrayOutputStream out,
+			String value) throws IOException {
+		byte[] bytes = value.getBytes(SyncDataHelper.DEFAULT_CHARSET_NAME);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Writes the tag and reserves one byte for the length.
+	 * 
+	 * @return position of the length
+	 */
+	private static int beginField(ExposedByteArrayOutputStream out, int tag) {
+		writeVarInt(out, tag);
+		return out.reserve(1);
+	}
+
+	/**
+	 * Writes the length of a field, the content is moved if the length
+	 * needs more than one byte.
+	 */
+	private static void endField(ExposedByteArrayOutputStream out, int lenPos) {
+		int len = out.size() - lenPos - 1;
+		int lenSize = getVarIntSize(len);
+		if (lenSize > 1) {
+			out.reserve(lenSize - 1);
+			byte[] buf = out.getBuffer();
+			System.arraycopy(buf, lenPos + 1, buf, lenPos + lenSize, len);
+		}
+		writeVarInt(out.getBuffer(), lenPos, len);
+	}
+
+	private static void writeSignedVarInt(ExposedByteArrayOutputStream out,
+			int value) {
+		writeVarInt(out, (value << 1) ^ (value >> 31));
+	}
+
+	private static void writeVarInt(ExposedByteArrayOutputStream out,
+			int value) {
+		int pos = out.reserve(getVarIntSize(value));
+		writeVarInt(out.getBuffer(), pos, value);
+	}
+
+	private static void writeVarInt(byte[] buf, int pos, int value) {
+		int index = pos;
+		int rest = value;
+		while ((rest & ~VARINT_MASK) != 0) {
+			buf[index++] = (byte) ((rest & VARINT_MASK) | VARINT_MORE);
+			rest >>>= VARINT_BITS;
+		}
+		buf[index] = (byte) rest;
+	}
+
+	private static int getVarIntSize(int value) {
+		int size = 1;
+		int rest = value;
+		while ((rest & ~VARINT_MASK) != 0) {
+			size++;
+			rest >>>= VARINT_BITS;
+		}
+		return size;
+	}
+
+	/**
+	 * Reads from a part of an array.
+	 */
+	private static final class Input {
+		private final byte[] data;
+		private int end;
+		private int pos;
+
+		Input(byte[] data, int pos, int end) {
+			this.data = data;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		boolean hasMore() {
+			return pos < end;
+		}
+
+		/**
+		 * @return position after len bytes
+		 * @throws EOFException
+		 *             if less data is available
+		 */
+		int skipPosition(int len) throws EOFException {
+			if (len < 0 || len > end - pos) {
+				throw new EOFException("Invalid length:" + len);
+			}
+			return pos + len;
+		}
+
+		void setPosition(int newPos) {
+			pos = newPos;
+		}
+
+		/**
+		 * Limits the readable data to the given end.
+		 * 
+		 * @return the previous end
+		 */
+		int limit(int newEnd) {
+			int oldEnd = end;
+			end = newEnd;
+			return oldEnd;
+		}
+
+		int readVarInt() throws IOException {
+			int value = 0;
+			int shift = 0;
+			while (true) {
+				if (pos >= end) {
+					throw new EOFException();
+				}
+				int b = data[pos++];
+				value |= (b & VARINT_MASK) << shift;
+				if ((b & VARINT_MORE) == 0) {
+					return value;
+				}
+				shift += VARINT_BITS;
+				if (shift > VARINT_MAX_SHIFT) {
+					throw new IOException("Invalid varint");
+				}
+			}
+		}
+
+		int readSignedVarInt() throws IOException {
+			int value = readVarInt();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * @return count of entries, every entry has at least one byte
+		 */
+		int readCount() throws IOException {
+			int count = readVarInt();
+			skipPosition(count);
+			return count;
+		}
+
+		String readString() throws IOException {
+			int len = readVarInt();
+			int start = pos;
+			pos = skipPosition(len);
+			return new String(data, start, len,
+					SyncDataHelper.DEFAULT_CHARSET_NAME);
+		}
+
+		/**
+		 * @return the string if the presence bit is set, otherwise null
+		 */
+		String readString(int flags, int index) throws IOException {
+			return (flags & (FLAG_FIRST_STRING << index)) != 0 ? readString()
+					: null;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+/**
+ * Implementation which is used for the encryption of values. All backends
+ * produce the same output, so values can be decoded with any backend.
+ */
+public enum CipherBackend {
+	/** Pure Java implementation, is available on all platforms (Android) */
+	SPONGYCASTLE,
+	/**
+	 * javax.crypto of the platform for GCM, can use AES-NI on a server.
+	 * Needs Java 7 at runtime. CCM and platforms without the GCM API use
+	 * SpongyCastle.
+	 */
+	JCE;
+}
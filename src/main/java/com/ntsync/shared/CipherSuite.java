@@ -0,0 +1,57 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+/**
+ * Cipher suites for encrypting the values of contacts and groups. The suite
+ * is stored in the preamble of every value, so values of different suites
+ * can be mixed and old values can always be decoded.
+ */
+public enum CipherSuite {
+	/** AES-CCM, supported by all versions */
+	CCM(0),
+	/** AES-GCM, about twice as fast as CCM */
+	GCM(1);
+
+	private final int val;
+
+	private CipherSuite(int val) {
+		this.val = val;
+	}
+
+	public int getVal() {
+		return val;
+	}
+
+	/**
+	 * 
+	 * @param val
+	 * @return null if not found or the corresponding CipherSuite
+	 */
+	public static CipherSuite fromVal(int val) {
+		CipherSuite s = null;
+		for (CipherSuite suite : CipherSuite.values()) {
+			if (suite.getVal() == val) {
+				s = suite;
+				break;
+			}
+		}
+		return s;
+	}
+}
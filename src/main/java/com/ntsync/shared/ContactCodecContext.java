@@ -0,0 +1,571 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.Mac;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.modes.AEADBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.format.InputAccessor;
+import com.fasterxml.jackson.core.format.MatchStrength;
+
+/**
+ * Holds the objects which are needed for encoding and decoding of
+ * contacts/groups, so they can be reused for all rows of a sync.
+ * 
+ * A context is not thread-safe, every thread needs its own instance. The
+ * native memory of the compression is released with {@link #close()}.
+ */
+public final class ContactCodecContext implements Closeable {
+
+	private static final int DEFAULT_BYTEARRAY_SIZE = 1000;
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	/** Label for deriving the key of the photo references */
+	private static final byte[] PHOTO_REF_LABEL = { 'p', 'h', 'o', 't', 'o',
+			'-', 'r', 'e', 'f' };
+
+	private final KeyParameter keyParam;
+
+	private final CipherSuite cipherSuite;
+
+	private final CipherBackend backend;
+
+	/** Ciphers by the ordinal of the cipher suite, created on first use */
+	private final AEADBlockCipher[] ciphers = new AEADBlockCipher[CipherSuite
+			.values().length];
+
+	private final byte[] iv = new byte[CryptoHelper.IV_LEN];
+
+	private boolean lazyPhoto;
+
+	private TextFormat textFormat = TextFormat.JSON;
+
+	private boolean compressText;
+
+	/** Decoded contact fields, null for all fields */
+	private Set<ContactField> fieldMask;
+
+	private SecureRandom random;
+
+	private HashBuilder hashBuilder;
+
+	private Deflater deflater;
+
+	private Inflater inflater;
+
+	private ExposedByteArrayOutputStream compressBuffer;
+
+	private Mac photoRefMac;
+
+	private PhotoCache photoCache;
+
+	private SyncedContactCache syncedContactCache;
+
+	private JsonFactory binaryJsonFactory;
+
+	/** IV of the open envelope, null if no envelope is open */
+	private byte[] envelopeIv;
+
+	/** Index of the current row in the open envelope */
+	private int envelopeRow;
+
+	/** Index of the next value in the current row of the envelope */
+	private int envelopeValue;
+
+	/** Count of the segments of the written rows in the open envelope */
+	private int envelopeSegments;
+
+	private final ExposedByteArrayOutputStream textBuffer = new ExposedByteArrayOutputStream(
+			DEFAULT_BYTEARRAY_SIZE);
+
+	private final ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream(
+			DEFAULT_BYTEARRAY_SIZE);
+
+	/**
+	 * 
+	 * @param secret
+	 *            Key for encrypting/decrypting the values.
+	 */
+	public ContactCodecContext(Key secret) {
+		this(new PreparedKey(secret));
+	}
+
+	/**
+	 * 
+	 * @param key
+	 *            Key for encrypting/decrypting the values, can be shared
+	 *            with the contexts of other threads.
+	 */
+	public ContactCodecContext(PreparedKey key) {
+		this(key, CipherSuite.CCM);
+	}
+
+	/**
+	 * 
+	 * @param key
+	 *            Key for encrypting/decrypting the values, can be shared
+	 *            with the contexts of other threads.
+	 * @param cipherSuite
+	 *            Cipher suite for encrypting values. Values are always
+	 *            decrypted with the cipher suite of the value.
+	 */
+	public ContactCodecContext(PreparedKey key, CipherSuite cipherSuite) {
+		this(key, cipherSuite, CipherBackend.SPONGYCASTLE);
+	}
+
+	/**
+	 * 
+	 * @param key
+	 *            Key for encrypting/decrypting the values, can be shared
+	 *            with the contexts of other threads.
+	 * @param cipherSuite
+	 *            Cipher suite for encrypting values. Values are always
+	 *            decrypted with the cipher suite of the value.
+	 * @param backend
+	 *            Implementation of the ciphers, ex. JCE on a server.
+	 */
+	public ContactCodecContext(PreparedKey key, CipherSuite cipherSuite,
+			CipherBackend backend) {
+		this.keyParam = key.getKeyParam();
+		this.cipherSuite = cipherSuite;
+		this.backend = backend;
+	}
+
+	/**
+	 * @return Cipher suite for encrypting values.
+	 */
+	public CipherSuite getCipherSuite() {
+		return cipherSuite;
+	}
+
+	public CipherBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * @return true if photos are decrypted on the first access of
+	 *         {@link RawContact#getPhoto()}. Default is false.
+	 */
+	public boolean isLazyPhoto() {
+		return lazyPhoto;
+	}
+
+	/**
+	 * 
+	 * @param lazyPhoto
+	 *            true to decrypt photos on the first access. An invalid
+	 *            photo is then only logged and {@link RawContact#getPhoto()}
+	 *            returns null, while otherwise the contact can not be
+	 *            decoded.
+	 */
+	public void setLazyPhoto(boolean lazyPhoto) {
+		this.lazyPhoto = lazyPhoto;
+	}
+
+	/**
+	 * @return format of the text data for encoding contacts. Default is
+	 *         JSON.
+	 */
+	public TextFormat getTextFormat() {
+		return textFormat;
+	}
+
+	/**
+	 * 
+	 * @param textFormat
+	 *            format of the text data for encoding contacts. Only use
+	 *            {@link TextFormat#BINARY} if all receivers support it (
+	 *            {@link Restrictions#isBinaryTextSupported()}). The format for
+	 *            decoding is detected from the data.
+	 * @throws IllegalStateException
+	 *             if {@link TextFormat#BINARY_JSON} is selected and no binary
+	 *             JSON factory is set.
+	 */
+	public void setTextFormat(TextFormat textFormat) {
+		if (textFormat == TextFormat.BINARY_JSON && binaryJsonFactory == null) {
+			throw new IllegalStateException("No binary JSON factory set.");
+		}
+		this.textFormat = textFormat;
+	}
+
+	/**
+	 * @return factory for binary JSON, null if not set.
+	 */
+	public JsonFactory getBinaryJsonFactory() {
+		return binaryJsonFactory;
+	}
+
+	/**
+	 * 
+	 * @param factory
+	 *            factory for a binary JSON format (e.g. SmileFactory of
+	 *            jackson-dataformat-smile) for {@link TextFormat#BINARY_JSON}.
+	 *            Has to detect its own format with
+	 *            {@link JsonFactory#hasFormat(InputAccessor)}, null to use
+	 *            only JSON.
+	 */
+	public void setBinaryJsonFactory(JsonFactory factory) {
+		this.binaryJsonFactory = factory;
+	}
+
+	/**
+	 * @return true if the text data is compressed before encrypting. Default
+	 *         is false.
+	 */
+	public boolean isCompressText() {
+		return compressText;
+	}
+
+	/**
+	 * 
+	 * @param compressText
+	 *            true to compress the text data with Deflate before
+	 *            encrypting. Only use it if all receivers support it (
+	 *            {@link Restrictions#isTextCompressionSupported()}).
+	 *            Compressed text data is always detected for decoding.
+	 */
+	public void setCompressText(boolean compressText) {
+		this.compressText = compressText;
+	}
+
+	/**
+	 * @return cache for resolving photo references, null if not set.
+	 */
+	public PhotoCache getPhotoCache() {
+		return photoCache;
+	}
+
+	/**
+	 * 
+	 * @param photoCache
+	 *            cache for resolving the photos of contacts which only
+	 *            contain a photo reference. null if photo references are
+	 *            not resolved.
+	 */
+	public void setPhotoCache(PhotoCache photoCache) {
+		this.photoCache = photoCache;
+	}
+
+	/**
+	 * @return cache for the base of deltas, null if not set.
+	 */
+	public SyncedContactCache getSyncedContactCache() {
+		return syncedContactCache;
+	}
+
+	/**
+	 * 
+	 * @param cache
+	 *            cache for the base of contacts which only contain the
+	 *            changes since the previous version. null if deltas are not
+	 *            decoded.
+	 */
+	public void setSyncedContactCache(SyncedContactCache cache) {
+		this.syncedContactCache = cache;
+	}
+
+	/**
+	 * @return decoded contact fields, null if all fields are decoded.
+	 */
+	public Set<ContactField> getFieldMask() {
+		return fieldMask != null ? Collections.unmodifiableSet(fieldMask)
+				: null;
+	}
+
+	/**
+	 * Restricts decoding of contacts to some fields, the other sections of
+	 * the text data are skipped without parsing them. A partially decoded
+	 * contact must not be encoded again, because the missing fields would be
+	 * removed.
+	 * 
+	 * @param fieldMask
+	 *            fields to decode, null for all fields.
+	 */
+	public void setFieldMask(Set<ContactField> fieldMask) {
+		if (fieldMask != null) {
+			this.fieldMask = EnumSet.noneOf(ContactField.class);
+			this.fieldMask.addAll(fieldMask);
+		} else {
+			this.fieldMask = null;
+		}
+	}
+
+	/**
+	 * @return true if the field has to be decoded
+	 */
+	boolean isDecoded(ContactField field) {
+		return fieldMask == null || fieldMask.contains(field);
+	}
+
+	KeyParameter getKeyParam() {
+		return keyParam;
+	}
+
+	/**
+	 * @return HMAC-SHA256 for photo references. The key is derived from the
+	 *         key of this context, so the references don't disclose the
+	 *         photos to the server.
+	 */
+	Mac getPhotoRefMac() {
+		if (photoRefMac == null) {
+			Mac mac = new HMac(new SHA256Digest());
+			mac.init(keyParam);
+			mac.update(PHOTO_REF_LABEL, 0, PHOTO_REF_LABEL.length);
+			byte[] refKey = new byte[mac.getMacSize()];
+			mac.doFinal(refKey, 0);
+			mac.init(new KeyParameter(refKey));
+			photoRefMac = mac;
+		}
+		return photoRefMac;
+	}
+
+	/**
+	 * @return Cipher for the cipher suite of this context.
+	 */
+	AEADBlockCipher getCipher() {
+		return getCipher(cipherSuite);
+	}
+
+	AEADBlockCipher getCipher(CipherSuite suite) {
+		AEADBlockCipher cipher = ciphers[suite.ordinal()];
+		if (cipher == null) {
+			cipher = CryptoHelper.getCipher(suite, backend);
+			ciphers[suite.ordinal()] = cipher;
+		}
+		return cipher;
+	}
+
+	/**
+	 * @return Buffer for an IV with length {@link CryptoHelper#IV_LEN}
+	 */
+	byte[] getIv() {
+		return iv;
+	}
+
+	/**
+	 * Opens an envelope: the following values are written as segments of
+	 * the envelope without their own IV, see
+	 * {@link CryptoHelper#initSegmentIv(byte[], int, int, byte[], int)}.
+	 * 
+	 * @return new random IV of the envelope
+	 */
+	byte[] beginEnvelope() {
+		envelopeIv = new byte[CryptoHelper.IV_LEN];
+		getRandom().nextBytes(envelopeIv);
+		envelopeRow = 0;
+		envelopeValue = 0;
+		envelopeSegments = 0;
+		return envelopeIv;
+	}
+
+	/**
+	 * Closes the open envelope.
+	 * 
+	 * @return the end of the envelope with the count of the written rows and
+	 *         their segments ({@link ContactConstants#ENVELOPE_END}), is
+	 *         written after the last row.
+	 * @throws IOException
+	 * @throws InvalidCipherTextException
+	 */
+	byte[] endEnvelope() throws IOException, InvalidCipherTextException {
+		try {
+			byte[] counts = new byte[CryptoHelper.ENVELOPE_END_LEN];
+			int index = SyncDataHelper.writeInt(counts, envelopeRow, 0);
+			SyncDataHelper.writeInt(counts, envelopeSegments, index);
+			envelopeRow = CryptoHelper.ENVELOPE_END_ROW;
+			envelopeValue = 0;
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			CryptoHelper.writeValue(this, out, ContactConstants.ENVELOPE_END,
+					counts);
+			return out.toByteArray();
+		} finally {
+			envelopeIv = null;
+		}
+	}
+
+	/**
+	 * @return true if an envelope is open
+	 */
+	boolean isEnvelope() {
+		return envelopeIv != null;
+	}
+
+	/**
+	 * Ends a row of the open envelope. Only a written row gets an index, so
+	 * the reader can derive the nonces from the rows it reads. The segments
+	 * of a discarded row were never sent.
+	 * 
+	 * @param written
+	 *            true if the row is written to the envelope
+	 */
+	void endEnvelopeRow(boolean written) {
+		if (written) {
+			envelopeRow++;
+			envelopeSegments += envelopeValue;
+		}
+		envelopeValue = 0;
+	}
+
+	/**
+	 * @return IV-Buffer with the nonce of the next segment of the open
+	 *         envelope
+	 */
+	byte[] nextSegmentIv() {
+		CryptoHelper.initSegmentIv(envelopeIv, envelopeRow, envelopeValue,
+				iv, 0);
+		envelopeValue++;
+		return iv;
+	}
+
+	/**
+	 * @return SecureRandom, is created on first use because seeding is
+	 *         expensive and only needed for encoding.
+	 */
+	SecureRandom getRandom() {
+		if (random == null) {
+			random = new SecureRandom();
+		}
+		return random;
+	}
+
+	/**
+	 * @return factory for encoding the text data in the current text format.
+	 */
+	JsonFactory getJsonFactory() {
+		if (textFormat == TextFormat.BINARY_JSON && binaryJsonFactory != null) {
+			return binaryJsonFactory;
+		}
+		return RequestGenerator.getJsonFactory();
+	}
+
+	/**
+	 * @return factory for decoding the text data, the binary JSON factory if
+	 *         it detects its format header in the data.
+	 * @throws IOException
+	 */
+	JsonFactory getJsonFactory(byte[] data, int offset, int len)
+			throws IOException {
+		if (binaryJsonFactory != null
+				&& binaryJsonFactory.hasFormat(new InputAccessor.Std(data,
+						offset, len)) == MatchStrength.FULL_MATCH) {
+			return binaryJsonFactory;
+		}
+		return RequestGenerator.getJsonFactory();
+	}
+
+	/**
+	 * @return empty builder for a SHA-256 hash.
+	 * @throws NoSuchAlgorithmException
+	 */
+	HashBuilder getHashBuilder() throws NoSuchAlgorithmException {
+		if (hashBuilder == null) {
+			hashBuilder = new HashBuilder(
+					MessageDigest.getInstance(HASH_ALGORITHM));
+		} else {
+			hashBuilder.reset();
+		}
+		return hashBuilder;
+	}
+
+	/**
+	 * @return empty stream for the UTF-8 encoded text data, is used for
+	 *         encoding and for the decrypted text data.
+	 */
+	ExposedByteArrayOutputStream getTextBuffer() {
+		textBuffer.reset();
+		return textBuffer;
+	}
+
+	/**
+	 * @return Deflater for the text data, is created on first use.
+	 */
+	Deflater getDeflater() {
+		if (deflater == null) {
+			deflater = new Deflater();
+		}
+		return deflater;
+	}
+
+	/**
+	 * @return Inflater for the text data, is created on first use.
+	 */
+	Inflater getInflater() {
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		return inflater;
+	}
+
+	/**
+	 * Ends the Deflater and Inflater of the text compression, they hold
+	 * native memory until they are ended. The context can still be used
+	 * afterwards, they are created again on the next use.
+	 */
+	@Override
+	public void close() {
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+	/**
+	 * @return empty stream for compressed or decompressed text data.
+	 */
+	ExposedByteArrayOutputStream getCompressBuffer() {
+		if (compressBuffer == null) {
+			compressBuffer = new ExposedByteArrayOutputStream(
+					DEFAULT_BYTEARRAY_SIZE);
+		} else {
+			compressBuffer.reset();
+		}
+		return compressBuffer;
+	}
+
+	/**
+	 * @return empty stream for a serialized row.
+	 */
+	ExposedByteArrayOutputStream getOutputStream() {
+		out.reset();
+		return out;
+	}
+}
@@ -34,6 +34,17 @@ public final class ContactConstants {
 	/** 103 */
 	public static final byte TYPE_CONTACTGROUP = 'g';
 
+	/**
+	 * Contacts in an envelope: the container starts with the IV of the
+	 * envelope, the encrypted values of the rows are segments without an
+	 * IV. Every segment is authenticated on its own, see
+	 * {@link RequestGenerator#PARAM_ENVELOPE}. 67
+	 */
+	public static final byte TYPE_CONTACT_ENVELOPE = 'C';
+
+	/** Groups in an envelope, see {@link #TYPE_CONTACT_ENVELOPE}. 71 */
+	public static final byte TYPE_CONTACTGROUP_ENVELOPE = 'G';
+
 	// Main-Constants
 
 	/** 105 */
@@ -42,12 +53,25 @@ public final class ContactConstants {
 	/** 116 */
 	public static final byte TEXTDATA = 't';
 
+	/**
+	 * Changed sections of the text data since the previous synced version,
+	 * instead of {@link #TEXTDATA}. 117
+	 */
+	public static final byte TEXTDELTA = 'u';
+
 	/** 112 */
 	public static final byte PHOTO = 'p';
 
 	/** 72 */
 	public static final byte HASH = 'H';
 
+	/**
+	 * Keyed digest of the photo. Is encrypted like a photo, so older readers
+	 * skip it. If the photo is missing it is unchanged since the last sync.
+	 * 80
+	 */
+	public static final byte PHOTO_REF = 'P';
+
 	/**
 	 * long value. 109
 	 */
@@ -61,6 +85,14 @@ public final class ContactConstants {
 	 */
 	public static final byte DELETED = 'd';
 
+	/**
+	 * Last value of an envelope: the count of rows and segments of the
+	 * envelope, encrypted as segment with the reserved row index -1. A
+	 * reader detects removed rows or segments at the end of the envelope.
+	 * 101
+	 */
+	public static final byte ENVELOPE_END = 'e';
+
 	// Text-Objects
 
 	public static final String STRUCTUREDNAME = "s";
@@ -97,6 +129,12 @@ public final class ContactConstants {
 
 	public static final String SEND_TO_VOICE_MAIL = "f";
 
+	/**
+	 * Hash of the version on which a {@link #TEXTDELTA} is based, see
+	 * {@link RawContact#computeDeltaBase(ContactCodecContext)}.
+	 */
+	public static final String DELTA_BASE = "b";
+
 	// StructuredPostal Conctants (includes List Constants without Data)
 	public static final String STREET = "s";
 
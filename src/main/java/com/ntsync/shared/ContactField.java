@@ -0,0 +1,81 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sections of a contact, used to decode only a part of the contact data.
+ * 
+ * @see ContactCodecContext#setFieldMask(java.util.Set)
+ */
+public enum ContactField {
+	STRUCTURED_NAME(ContactConstants.STRUCTUREDNAME),
+	PHONE(ContactConstants.PHONE),
+	EMAIL(ContactConstants.EMAIL),
+	ORGANIZATION(ContactConstants.ORGANIZATION),
+	IM(ContactConstants.IM),
+	NICKNAME(ContactConstants.NICKNAME),
+	NOTE(ContactConstants.NOTE),
+	ADDRESS(ContactConstants.STRUCTUREDPOSTAL),
+	GROUP_MEMBERSHIP(ContactConstants.GROUPMEMBERSHIP),
+	WEBSITE(ContactConstants.WEBSITE),
+	EVENT(ContactConstants.EVENT),
+	RELATION(ContactConstants.RELATION),
+	SIP_ADDRESS(ContactConstants.SIPADDRESS),
+	PHOTO_SUPERPRIMARY(ContactConstants.PHOTO_SUPERPRIMARY),
+	STARRED(ContactConstants.STARRED),
+	CUSTOM_RINGTONE(ContactConstants.DROID_CUSTOM_RINGTONE),
+	SEND_TO_VOICE_MAIL(ContactConstants.SEND_TO_VOICE_MAIL),
+	/** Photo value, is not part of the text data */
+	PHOTO(null);
+
+	private static final Map<String, ContactField> FIELDS_BY_JSON = new HashMap<String, ContactField>();
+
+	static {
+		for (ContactField field : values()) {
+			if (field.jsonField != null) {
+				FIELDS_BY_JSON.put(field.jsonField, field);
+			}
+		}
+	}
+
+	private final String jsonField;
+
+	private ContactField(String jsonField) {
+		this.jsonField = jsonField;
+	}
+
+	/**
+	 * @return name of the field in the text data, null for the photo
+	 */
+	public String getJsonField() {
+		return jsonField;
+	}
+
+	/**
+	 * 
+	 * @param jsonField
+	 * @return null if not found or the corresponding ContactField
+	 */
+	public static ContactField fromJsonField(String jsonField) {
+		return jsonField != null ? FIELDS_BY_JSON.get(jsonField) : null;
+	}
+}
@@ -20,22 +20,17 @@ package com.ntsync.shared;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.MessageDigest;
-import java.security.SecureRandom;
 import java.util.Date;
 import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.InvalidCipherTextException;
-import org.spongycastle.crypto.modes.AEADBlockCipher;
 
-import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
@@ -45,8 +40,6 @@ import com.fasterxml.jackson.core.JsonToken;
  */
 public final class ContactGroup {
 
-	private static final int DEFAULT_BYTEARRAY_SIZE = 100;
-
 	private static final Logger LOG = LoggerFactory
 			.getLogger(ContactGroup.class);
 
@@ -108,17 +101,32 @@ public final class ContactGroup {
 	 */
 	public byte[] toDTO(Key secret, String pwdSaltBase64) {
 		try {
-			ByteArrayOutputStream out = new ByteArrayOutputStream(
-					DEFAULT_BYTEARRAY_SIZE);
-
-			AEADBlockCipher ecipher = CryptoHelper.getCipher();
-
-			byte[] iv = new byte[CryptoHelper.IV_LEN];
-			SecureRandom random = new SecureRandom();
+			ContactCodecContext context = new ContactCodecContext(secret);
+			try {
+				return toDTO(context, pwdSaltBase64);
+			} finally {
+				context.close();
+			}
+		} catch (final RuntimeException ex) {
+			LOG.error(
+					"Error converting ContactGroup to ByteStream: "
+							+ ex.toString(), ex);
+		}
+		return null;
+	}
 
-			StringBuilder hashValue = new StringBuilder();
-			hashValue.append(pwdSaltBase64);
-			hashValue.append(title);
+	/**
+	 * Serialize this ContactGroup for transporting to a server and reuse the
+	 * cipher, buffers and key of the context.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param pwdSaltBase64
+	 * @return null if serializing failed.
+	 */
+	public byte[] toDTO(ContactCodecContext context, String pwdSaltBase64) {
+		try {
+			ExposedByteArrayOutputStream out = context.getOutputStream();
 
 			out.write(GroupConstants.ROWID);
 
@@ -128,9 +136,9 @@ public final class ContactGroup {
 			SyncDataHelper.writeInt(out, rowId.length);
 			out.write(rowId);
 
-			JsonFactory json = new JsonFactory();
-			StringWriter writer = new StringWriter();
-			JsonGenerator g = json.createGenerator(writer);
+			ExposedByteArrayOutputStream textData = context.getTextBuffer();
+			JsonGenerator g = context.getJsonFactory().createGenerator(
+					textData, JsonEncoding.UTF8);
 			g.writeStartObject();
 
 			writeField(g, GroupConstants.TITLE, title);
@@ -139,10 +147,11 @@ public final class ContactGroup {
 			g.writeEndObject();
 			g.close();
 
-			String textData = writer.toString();
-
-			CryptoHelper.writeValue(secret, out, ecipher, iv, random,
-					GroupConstants.TEXTDATA, textData);
+			if (context.isCompressText()) {
+				textData = TextCompression.compress(context, textData);
+			}
+			CryptoHelper.writeValue(context, out, GroupConstants.TEXTDATA,
+					textData.getBuffer(), 0, textData.size());
 
 			if (lastModified != null) {
 				writeRawValue(
@@ -161,12 +170,10 @@ public final class ContactGroup {
 						sourceId.getBytes(SyncDataHelper.DEFAULT_CHARSET_NAME));
 			}
 
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-
-			md.update(hashValue.toString().getBytes(
-					SyncDataHelper.DEFAULT_CHARSET_NAME));
-			byte[] hash = md.digest();
-			writeRawValue(out, GroupConstants.HASH, hash);
+			HashBuilder hashValue = context.getHashBuilder();
+			hashValue.append(pwdSaltBase64);
+			hashValue.append(title);
+			writeRawValue(out, GroupConstants.HASH, hashValue.digest());
 
 			return out.toByteArray();
 		} catch (final Exception ex) {
@@ -184,13 +191,53 @@ public final class ContactGroup {
 	public static ContactGroup valueOf(String rowId,
 			Map<Byte, ByteBuffer> values, Key privateKey)
 			throws InvalidKeyException {
+		ContactCodecContext context = new ContactCodecContext(privateKey);
+		try {
+			return valueOf(rowId, values, context);
+		} finally {
+			context.close();
+		}
+	}
+
+	/**
+	 * Creates and returns an instance of the ContactGroup from encrypted data
+	 * and reuse the cipher and key of the context.
+	 * 
+	 * @param rowId
+	 * @param values
+	 * @param context
+	 *            context of the current thread
+	 * @return null if the data could not be parsed
+	 * @throws InvalidKeyException
+	 *             if the data could not be decrypted
+	 */
+	public static ContactGroup valueOf(String rowId,
+			Map<Byte, ByteBuffer> values, ContactCodecContext context)
+			throws InvalidKeyException {
+		return valueOf(rowId, RowValues.valueOf(values), context);
+	}
+
+	/**
+	 * Creates and returns an instance of the ContactGroup from encrypted data
+	 * without copying the values.
+	 * 
+	 * @param rowId
+	 * @param values
+	 *            values of the row, can be reused after this call
+	 * @param context
+	 *            context of the current thread
+	 * @return null if the data could not be parsed
+	 * @throws InvalidKeyException
+	 *             if the data could not be decrypted
+	 */
+	public static ContactGroup valueOf(String rowId, RowValues values,
+			ContactCodecContext context) throws InvalidKeyException {
 		try {
 			String sourceId = null;
 			Long rawId = null;
 
-			if (values.containsKey(GroupConstants.SERVERROW_ID)) {
-				sourceId = readRawString(values
-						.get(GroupConstants.SERVERROW_ID));
+			if (values.contains(GroupConstants.SERVERROW_ID)) {
+				sourceId = values.getString(GroupConstants.SERVERROW_ID);
 			}
 
 			if (sourceId == null || !sourceId.equals(rowId)) {
@@ -202,14 +249,13 @@ public final class ContactGroup {
 				throw new IllegalArgumentException("Missing RowId in data");
 			}
 
-			AEADBlockCipher cipher = CryptoHelper.getCipher();
+			final boolean deleted = values.contains(GroupConstants.DELETED);
 
-			final boolean deleted = values.containsKey(GroupConstants.DELETED);
+			ExposedByteArrayOutputStream textData = context.getTextBuffer();
+			final int textLen = CryptoHelper.decodeValue(
+					GroupConstants.TEXTDATA, values, context, textData);
 
-			final String textData = CryptoHelper.decodeStringValue(
-					GroupConstants.TEXTDATA, values, cipher, privateKey);
-
-			if (textData == null && !deleted) {
+			if (textLen < 0 && !deleted) {
 				LOG.error("No textdata found for row with Id:" + rowId);
 				return null;
 			}
@@ -217,9 +263,17 @@ public final class ContactGroup {
 			String title = null;
 			String notes = null;
 
-			if (!isEmpty(textData)) {
-				JsonFactory fac = new JsonFactory();
-				JsonParser jp = fac.createParser(textData);
+			if (textLen > 0) {
+				byte[] textBuffer = textData.getBuffer();
+				int len = textLen;
+				if (TextCompression.isCompressed(textBuffer, len)) {
+					ExposedByteArrayOutputStream plain = TextCompression
+							.decompress(context, textBuffer, len);
+					textBuffer = plain.getBuffer();
+					len = plain.size();
+				}
+				JsonParser jp = context.getJsonFactory(textBuffer, 0, len)
+						.createParser(textBuffer, 0, len);
 				jp.nextToken();
 				while (jp.nextToken() != JsonToken.END_OBJECT) {
 					String fieldname = jp.getCurrentName();
@@ -237,7 +291,7 @@ public final class ContactGroup {
 				jp.close();
 			}
 
-			String modStr = readRawString(values.get(GroupConstants.MODIFIED));
+			String modStr = values.getString(GroupConstants.MODIFIED);
 			Date lastModified = null;
 			if (!isEmpty(modStr)) {
 				lastModified = new Date(Long.parseLong(modStr));
@@ -255,17 +309,6 @@ public final class ContactGroup {
 		return null;
 	}
 
-	private static String readRawString(ByteBuffer src)
-			throws UnsupportedEncodingException {
-		int len = src != null ? src.remaining() : -1;
-		if (len >= 0) {
-			byte[] output = new byte[len];
-			src.get(output, 0, len);
-			// Android has UTF-8 as default
-			return new String(output, SyncDataHelper.DEFAULT_CHARSET_NAME);
-		}
-		return null;
-	}
 
 	private static boolean isEmpty(String text) {
 		return text == null || text.length() == 0;
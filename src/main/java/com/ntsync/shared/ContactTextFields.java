@@ -0,0 +1,156 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.util.List;
+import java.util.Set;
+
+import com.ntsync.shared.ContactConstants.EmailType;
+import com.ntsync.shared.ContactConstants.EventType;
+import com.ntsync.shared.ContactConstants.NicknameType;
+import com.ntsync.shared.ContactConstants.PhoneType;
+import com.ntsync.shared.ContactConstants.RelationType;
+import com.ntsync.shared.ContactConstants.SipAddressType;
+import com.ntsync.shared.ContactConstants.WebsiteType;
+import com.ntsync.shared.ListRawData.RawAddressData;
+import com.ntsync.shared.ListRawData.RawImData;
+import com.ntsync.shared.ListRawData.RawOrganizationData;
+
+/**
+ * Fields of the text data of a contact while it is decoded, filled by the
+ * JSON and the binary format.
+ */
+final class ContactTextFields {
+	String fullName;
+	String firstName;
+	String lastName;
+	String middleName;
+	String prefixName;
+	String suffixName;
+	String phonecticFirst;
+	String phonecticMiddle;
+	String phonecticLast;
+	List<String> groupSourceIds;
+	String note;
+	List<ListRawData<PhoneType>> phones;
+	List<ListRawData<EmailType>> emails;
+	List<ListRawData<WebsiteType>> websites;
+	List<ListRawData<EventType>> events;
+	List<ListRawData<RelationType>> relations;
+	List<ListRawData<SipAddressType>> sipaddresses;
+	List<ListRawData<NicknameType>> nicknames;
+	List<RawAddressData> addresses;
+	List<RawImData> imAddresses;
+	RawOrganizationData organization;
+	boolean photoSuperPrimary;
+	boolean starred;
+	String customRingtone;
+	boolean sendToVoiceMail;
+	/** Hash of the base version of a delta, null for complete text data */
+	byte[] deltaBase;
+
+	/**
+	 * @return the text fields of the contact, the lists are shared.
+	 */
+	static ContactTextFields valueOf(RawContact contact) {
+		ContactTextFields text = new ContactTextFields();
+		text.fullName = contact.getFullName();
+		text.firstName = contact.getFirstName();
+		text.lastName = contact.getLastName();
+		text.middleName = contact.getMiddleName();
+		text.prefixName = contact.getPrefixName();
+		text.suffixName = contact.getSuffixName();
+		text.phonecticFirst = contact.getPhoneticGivenName();
+		text.phonecticMiddle = contact.getPhoneticMiddleName();
+		text.phonecticLast = contact.getPhoneticFamilyName();
+		text.groupSourceIds = contact.getGroupSourceIds();
+		text.note = contact.getNote();
+		text.phones = contact.getPhone();
+		text.emails = contact.getEmail();
+		text.websites = contact.getWebsite();
+		text.events = contact.getEvents();
+		text.relations = contact.getRelations();
+		text.sipaddresses = contact.getSipAddresses();
+		text.nicknames = contact.getNicknames();
+		text.addresses = contact.getAddress();
+		text.imAddresses = contact.getImAddresses();
+		text.organization = contact.getOrganization();
+		text.photoSuperPrimary = contact.isPhotoSuperPrimary();
+		text.starred = contact.isStarred();
+		text.customRingtone = contact.getDroidCustomRingtone();
+		text.sendToVoiceMail = contact.isSendToVoiceMail();
+		return text;
+	}
+
+	/**
+	 * Replaces the sections with the sections of a delta.
+	 * 
+	 * @param delta
+	 *            decoded delta, sections which were removed are null/false.
+	 * @param sections
+	 *            sections which are contained in the delta
+	 */
+	void merge(ContactTextFields delta, Set<ContactField> sections) {
+		for (ContactField field : sections) {
+			if (field == ContactField.STRUCTURED_NAME) {
+				fullName = delta.fullName;
+				firstName = delta.firstName;
+				lastName = delta.lastName;
+				middleName = delta.middleName;
+				prefixName = delta.prefixName;
+				suffixName = delta.suffixName;
+				phonecticFirst = delta.phonecticFirst;
+				phonecticMiddle = delta.phonecticMiddle;
+				phonecticLast = delta.phonecticLast;
+			} else if (field == ContactField.PHONE) {
+				phones = delta.phones;
+			} else if (field == ContactField.EMAIL) {
+				emails = delta.emails;
+			} else if (field == ContactField.ORGANIZATION) {
+				organization = delta.organization;
+			} else if (field == ContactField.IM) {
+				imAddresses = delta.imAddresses;
+			} else if (field == ContactField.NICKNAME) {
+				nicknames = delta.nicknames;
+			} else if (field == ContactField.NOTE) {
+				note = delta.note;
+			} else if (field == ContactField.ADDRESS) {
+				addresses = delta.addresses;
+			} else if (field == ContactField.GROUP_MEMBERSHIP) {
+				groupSourceIds = delta.groupSourceIds;
+			} else if (field == ContactField.WEBSITE) {
+				websites = delta.websites;
+			} else if (field == ContactField.EVENT) {
+				events = delta.events;
+			} else if (field == ContactField.RELATION) {
+				relations = delta.relations;
+			} else if (field == ContactField.SIP_ADDRESS) {
+				sipaddresses = delta.sipaddresses;
+			} else if (field == ContactField.PHOTO_SUPERPRIMARY) {
+				photoSuperPrimary = delta.photoSuperPrimary;
+			} else if (field == ContactField.STARRED) {
+				starred = delta.starred;
+			} else if (field == ContactField.CUSTOM_RINGTONE) {
+				customRingtone = delta.customRingtone;
+			} else if (field == ContactField.SEND_TO_VOICE_MAIL) {
+				sendToVoiceMail = delta.sendToVoiceMail;
+			}
+		}
+	}
+}
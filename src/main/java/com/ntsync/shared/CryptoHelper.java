@@ -19,17 +19,27 @@ package com.ntsync.shared;
  */
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.Key;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Map;
 
+import javax.crypto.NoSuchPaddingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.spongycastle.crypto.InvalidCipherTextException;
-import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.OutputLengthException;
 import org.spongycastle.crypto.modes.AEADBlockCipher;
 import org.spongycastle.crypto.modes.CCMBlockCipher;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
 import org.spongycastle.crypto.params.AEADParameters;
 import org.spongycastle.crypto.params.KeyParameter;
 
@@ -38,6 +48,9 @@ import org.spongycastle.crypto.params.KeyParameter;
  */
 public final class CryptoHelper {
 
+	private static final Logger LOG = LoggerFactory
+			.getLogger(CryptoHelper.class);
+
 	/** 3 Bytes are used to encode length in CCM (15 - 3 = 12), see rfc3610 */
 	public static final int IV_LEN = 12;
 
@@ -49,10 +62,66 @@ public final class CryptoHelper {
 
 	/**
 	 * Maximal Message is 2^24 because we use a fixed IV and 3 bytes (L) for
-	 * length encoding
+	 * length encoding. Values larger than {@link #CHUNK_SIZE} are encrypted in
+	 * chunks, so this limits only a single message.
 	 */
 	public static final int MAX_MSG_SIZE = 16777216;
 
+	/**
+	 * Plaintext size of a chunk. Values which are larger are encrypted in
+	 * chunks, each chunk has its own MAC.
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final int MAC_LEN = MAC_SIZE / 8;
+
+	/**
+	 * The bits 28-29 of the length in the preamble contain the cipher suite
+	 * of the value. Values before the cipher suites were introduced have
+	 * always 0 (CCM) there, because they are smaller than
+	 * {@link #MAX_MSG_SIZE}.
+	 */
+	private static final int SUITE_SHIFT = 28;
+
+	private static final int SUITE_MASK = 0x3;
+
+	/**
+	 * Bit 30 of the length in the preamble is set, if the value is encrypted
+	 * in chunks of {@link #CHUNK_SIZE}. The nonce of a chunk is the IV of the
+	 * value xor the chunk index (bytes 7-10) and xor 1 (byte 11) for the last
+	 * chunk, so reordered or truncated chunks are detected.
+	 */
+	private static final int CHUNKED_FLAG = 1 << 30;
+
+	private static final int LENGTH_MASK = 0x0FFFFFFF;
+
+	private static final int CHUNK_INDEX_POS = 7;
+
+	private static final int LAST_CHUNK_POS = 11;
+
+	/**
+	 * The nonce of a segment of an envelope is the IV of the envelope xor the
+	 * index of the row in the envelope (bytes 3-6) and xor the index of the
+	 * value in the row (bytes 1-2), so it never overlaps with the chunk
+	 * nonces of the segments. Only written rows are counted, every row starts
+	 * with its {@link ContactConstants#ROWID}.
+	 */
+	private static final int SEGMENT_ROW_POS = 3;
+
+	private static final int SEGMENT_VALUE_POS = 1;
+
+	/**
+	 * Row index of the end of an envelope ({@link ContactConstants#ENVELOPE_END}
+	 * ), is never used by a row.
+	 */
+	static final int ENVELOPE_END_ROW = -1;
+
+	/** Length of the end of an envelope: count of rows and segments */
+	static final int ENVELOPE_END_LEN = 2 * VALUE_LEN;
+
+	/** Length of a segment preamble, it has no IV */
+	static final int SEGMENT_PREAMBLE_LEN = VALUE_LEN;
+
 	private CryptoHelper() {
 		// private: is a utility-class
 	}
@@ -62,6 +131,8 @@ public final class CryptoHelper {
 	 * @param key
 	 * @param values
 	 * @param cipher
+	 *            CCM-Cipher, values of other cipher suites are decoded with
+	 *            a new cipher
 	 * @param privateKey
 	 * @return
 	 * @throws InvalidCipherTextException
@@ -84,6 +155,8 @@ public final class CryptoHelper {
 	 * @param key
 	 * @param values
 	 * @param cipher
+	 *            CCM-Cipher, values of other cipher suites are decoded with
+	 *            a new cipher
 	 * @param privateKey
 	 * @return
 	 * @throws InvalidCipherTextException
@@ -92,33 +165,457 @@ public final class CryptoHelper {
 	static byte[] decodeValue(byte key, Map<Byte, ByteBuffer> values,
 			AEADBlockCipher cipher, Key privateKey)
 			throws InvalidCipherTextException, UnsupportedEncodingException {
-
 		byte[] orgValue = null;
-		ByteBuffer buf = values.get(key);
-		if (buf != null) {
-			byte[] data = buf.array();
-
-			int pos = buf.position();
-			int len = buf.limit() - pos;
-			if (data != null && len > PREAMBLE_LEN) {
-				// data: 12byte iv, 4 len value
+		RowValues rowValues = RowValues.valueOf(values);
+		byte[] data = rowValues.getArray(key);
+		if (data != null) {
+			int pos = rowValues.getOffset(key);
+			int len = rowValues.getLength(key);
+			if (len > PREAMBLE_LEN) {
+				CipherSuite suite = getCipherSuite(data, pos);
+				AEADBlockCipher dcipher = suite == CipherSuite.CCM ? cipher
+						: getCipher(suite);
 				byte[] iv = new byte[IV_LEN];
 				System.arraycopy(data, pos, iv, 0, IV_LEN);
-				cipher.init(false, new AEADParameters(new KeyParameter(
-						privateKey.getEncoded()), MAC_SIZE, iv));
-				orgValue = cipherData(cipher, data, pos + PREAMBLE_LEN, len
-						- PREAMBLE_LEN);
+				orgValue = decrypt(dcipher,
+						new KeyParameter(privateKey.getEncoded()), iv,
+						isChunked(data, pos), data, pos + PREAMBLE_LEN, len
+								- PREAMBLE_LEN);
+			}
+		}
+		return orgValue;
+	}
+
+	/**
+	 * Decrypts a value with the cipher suite of the value.
+	 * 
+	 * @param key
+	 * @param values
+	 * @param context
+	 *            context of the current thread
+	 * @return null if the value is not available
+	 * @throws InvalidCipherTextException
+	 */
+	static byte[] decodeValue(byte key, RowValues values,
+			ContactCodecContext context) throws InvalidCipherTextException {
+		byte[] orgValue = null;
+		byte[] iv = context.getIv();
+		int lenPos = readIv(key, values, iv);
+		if (lenPos >= 0) {
+			byte[] data = values.getArray(key);
+			int lenField = SyncDataHelper.readInt(data, lenPos);
+			int dataPos = lenPos + VALUE_LEN;
+			AEADBlockCipher cipher = context
+					.getCipher(toCipherSuite(lenField));
+			orgValue = decrypt(cipher, context.getKeyParam(), iv,
+					(lenField & CHUNKED_FLAG) != 0, data, dataPos,
+					values.getOffset(key) + values.getLength(key) - dataPos);
+		}
+		return orgValue;
+	}
+
+	/**
+	 * Copies the IV of an encrypted value, for a segment of an envelope its
+	 * derived nonce.
+	 * 
+	 * @param iv
+	 *            receives the IV
+	 * @return position of the length of the value in its array, -1 if the
+	 *         value is not available or has no data.
+	 */
+	private static int readIv(byte key, RowValues values, byte[] iv) {
+		byte[] data = values.getArray(key);
+		if (data == null) {
+			return -1;
+		}
+		int pos = values.getOffset(key);
+		int len = values.getLength(key);
+		if (values.isSegment(key)) {
+			if (len <= VALUE_LEN) {
+				return -1;
 			}
+			values.getSegmentIv(key, iv, 0);
+			return pos;
+		}
+		if (len <= PREAMBLE_LEN) {
+			return -1;
+		}
+		System.arraycopy(data, pos, iv, 0, IV_LEN);
+		return pos + IV_LEN;
+	}
+
+	/**
+	 * Decrypts a value with a new cipher of the backend, used when no
+	 * context of the current thread is available.
+	 * 
+	 * @param data
+	 * @param pos
+	 *            start of the preamble of the value
+	 * @param len
+	 *            length of the value with preamble
+	 * @param keyParam
+	 * @param backend
+	 * @return null if the value is empty
+	 * @throws InvalidCipherTextException
+	 */
+	static byte[] decodeValue(byte[] data, int pos, int len,
+			KeyParameter keyParam, CipherBackend backend)
+			throws InvalidCipherTextException {
+		byte[] orgValue = null;
+		if (len > PREAMBLE_LEN) {
+			AEADBlockCipher cipher = getCipher(getCipherSuite(data, pos),
+					backend);
+			byte[] iv = new byte[IV_LEN];
+			System.arraycopy(data, pos, iv, 0, IV_LEN);
+			orgValue = decrypt(cipher, keyParam, iv, isChunked(data, pos),
+					data, pos + PREAMBLE_LEN, len - PREAMBLE_LEN);
 		}
 		return orgValue;
 	}
 
+	/**
+	 * Decrypts a value into a reused buffer.
+	 * 
+	 * @param key
+	 * @param values
+	 * @param context
+	 *            context of the current thread
+	 * @param target
+	 *            receives the decrypted value, is not cleared.
+	 * @return length of the decrypted value or -1 if the value is not
+	 *         available
+	 * @throws InvalidCipherTextException
+	 */
+	static int decodeValue(byte key, RowValues values,
+			ContactCodecContext context, ExposedByteArrayOutputStream target)
+			throws InvalidCipherTextException {
+		int orgLen = -1;
+		byte[] iv = context.getIv();
+		int lenPos = readIv(key, values, iv);
+		if (lenPos >= 0) {
+			byte[] data = values.getArray(key);
+			int lenField = SyncDataHelper.readInt(data, lenPos);
+			AEADBlockCipher cipher = context
+					.getCipher(toCipherSuite(lenField));
+			boolean chunked = (lenField & CHUNKED_FLAG) != 0;
+			int dataPos = lenPos + VALUE_LEN;
+			int dataLen = values.getOffset(key) + values.getLength(key)
+					- dataPos;
+			int offset = target.reserve(getDecryptedSize(chunked, dataLen));
+			orgLen = decrypt(cipher, context.getKeyParam(), iv, chunked, data,
+					dataPos, dataLen, target.getBuffer(), offset);
+			target.setSize(offset + orgLen);
+		}
+		return orgLen;
+	}
+
+	/**
+	 * Decrypts a value from a stream with constant memory for chunked
+	 * values. Every chunk is verified before it is written to the output.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param in
+	 *            positioned at the preamble of the value (after the
+	 *            value-key)
+	 * @param out
+	 *            receives the decrypted value
+	 * @return length of the decrypted value
+	 * @throws IOException
+	 * @throws InvalidCipherTextException
+	 *             if the MAC of a chunk fails to match
+	 */
+	public static long decodeValue(ContactCodecContext context,
+			InputStream in, OutputStream out) throws IOException,
+			InvalidCipherTextException {
+		DataInputStream din = new DataInputStream(in);
+		byte[] preamble = new byte[PREAMBLE_LEN];
+		din.readFully(preamble);
+		int dataLen = readDataLength(preamble, 0);
+		if (dataLen < 0) {
+			throw new IOException("Invalid value length");
+		}
+		AEADBlockCipher cipher = context.getCipher(getCipherSuite(preamble, 0));
+		byte[] iv = context.getIv();
+		System.arraycopy(preamble, 0, iv, 0, IV_LEN);
+		KeyParameter keyParam = context.getKeyParam();
+
+		if (!isChunked(preamble, 0)) {
+			// Only chunked values are allowed to exceed the message size
+			if (dataLen > MAX_MSG_SIZE + MAC_LEN) {
+				throw new IOException("Invalid value length:" + dataLen);
+			}
+			byte[] data = new byte[dataLen];
+			din.readFully(data);
+			byte[] value = decrypt(cipher, keyParam, iv, false, data, 0,
+					dataLen);
+			out.write(value);
+			return value.length;
+		}
+
+		byte[] chunk = new byte[Math.min(dataLen, CHUNK_SIZE + MAC_LEN)];
+		byte[] chunkOut = new byte[chunk.length];
+		byte[] chunkIv = new byte[IV_LEN];
+		long orgLen = 0;
+		int pos = 0;
+		int index = 0;
+		do {
+			int chunkLen = Math.min(CHUNK_SIZE + MAC_LEN, dataLen - pos);
+			din.readFully(chunk, 0, chunkLen);
+			pos += chunkLen;
+			initChunk(cipher, false, keyParam, iv, chunkIv, index,
+					pos == dataLen);
+			int outLen = cipherData(cipher, chunk, 0, chunkLen, chunkOut, 0);
+			out.write(chunkOut, 0, outLen);
+			orgLen += outLen;
+			index++;
+		} while (pos < dataLen);
+		return orgLen;
+	}
+
+	private static byte[] decrypt(AEADBlockCipher cipher,
+			KeyParameter keyParam, byte[] iv, boolean chunked, byte[] data,
+			int offset, int length) throws InvalidCipherTextException {
+		byte[] outBuf = new byte[getDecryptedSize(chunked, length)];
+		int outLen = decrypt(cipher, keyParam, iv, chunked, data, offset,
+				length, outBuf, 0);
+		if (outLen == outBuf.length) {
+			return outBuf;
+		}
+		byte[] result = new byte[outLen];
+		System.arraycopy(outBuf, 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * Decrypts a single message or all chunks of a value.
+	 * 
+	 * @return length of the decrypted data
+	 */
+	private static int decrypt(AEADBlockCipher cipher, KeyParameter keyParam,
+			byte[] iv, boolean chunked, byte[] data, int offset, int length,
+			byte[] out, int outOff) throws InvalidCipherTextException {
+		if (!chunked) {
+			cipher.init(false, new AEADParameters(keyParam, MAC_SIZE, iv));
+			return cipherData(cipher, data, offset, length, out, outOff);
+		}
+		byte[] chunkIv = new byte[IV_LEN];
+		int pos = 0;
+		int outPos = outOff;
+		int index = 0;
+		do {
+			int chunkLen = Math.min(CHUNK_SIZE + MAC_LEN, length - pos);
+			initChunk(cipher, false, keyParam, iv, chunkIv, index, pos
+					+ chunkLen == length);
+			outPos += cipherData(cipher, data, offset + pos, chunkLen, out,
+					outPos);
+			pos += chunkLen;
+			index++;
+		} while (pos < length);
+		return outPos - outOff;
+	}
+
+	/**
+	 * Encrypts a single message or a value in chunks.
+	 * 
+	 * @return length of the encrypted data
+	 */
+	private static int encrypt(AEADBlockCipher cipher, KeyParameter keyParam,
+			byte[] iv, boolean chunked, byte[] data, int offset, int length,
+			byte[] out, int outOff) throws InvalidCipherTextException {
+		if (!chunked) {
+			cipher.init(true, new AEADParameters(keyParam, MAC_SIZE, iv));
+			return cipherData(cipher, data, offset, length, out, outOff);
+		}
+		byte[] chunkIv = new byte[IV_LEN];
+		int pos = 0;
+		int outPos = outOff;
+		int index = 0;
+		do {
+			int chunkLen = Math.min(CHUNK_SIZE, length - pos);
+			initChunk(cipher, true, keyParam, iv, chunkIv, index, pos
+					+ chunkLen == length);
+			outPos += cipherData(cipher, data, offset + pos, chunkLen, out,
+					outPos);
+			pos += chunkLen;
+			index++;
+		} while (pos < length);
+		return outPos - outOff;
+	}
+
+	/**
+	 * Initializes the cipher with the nonce of a chunk.
+	 * 
+	 * @param iv
+	 *            IV of the value
+	 * @param chunkIv
+	 *            buffer for the nonce of the chunk
+	 */
+	private static void initChunk(AEADBlockCipher cipher, boolean encrypt,
+			KeyParameter keyParam, byte[] iv, byte[] chunkIv, int index,
+			boolean last) {
+		System.arraycopy(iv, 0, chunkIv, 0, IV_LEN);
+		int i = CHUNK_INDEX_POS;
+		chunkIv[i] ^= (byte) (index >>> 24);
+		chunkIv[i + 1] ^= (byte) (index >>> 16);
+		chunkIv[i + 2] ^= (byte) (index >>> 8);
+		chunkIv[i + 3] ^= (byte) index;
+		if (last) {
+			chunkIv[LAST_CHUNK_POS] ^= 1;
+		}
+		cipher.init(encrypt, new AEADParameters(keyParam, MAC_SIZE, chunkIv));
+	}
+
+	private static int getChunkCount(int encLength) {
+		int chunkCount = (encLength + CHUNK_SIZE + MAC_LEN - 1)
+				/ (CHUNK_SIZE + MAC_LEN);
+		return Math.max(chunkCount, 1);
+	}
+
+	/**
+	 * @return size of the decrypted data, 0 if the data is too short.
+	 */
+	private static int getDecryptedSize(boolean chunked, int encLength) {
+		int macCount = chunked ? getChunkCount(encLength) : 1;
+		return Math.max(encLength - macCount * MAC_LEN, 0);
+	}
+
+	/**
+	 * @return size of the encrypted data
+	 */
+	private static long getEncryptedSize(boolean chunked, int length) {
+		long chunkCount = 1;
+		if (chunked && length > 0) {
+			chunkCount = (length + CHUNK_SIZE - 1L) / CHUNK_SIZE;
+		}
+		return length + chunkCount * MAC_LEN;
+	}
+
+	/**
+	 * 
+	 * @param data
+	 * @param pos
+	 *            start of the preamble of the value
+	 * @return Cipher suite of a value
+	 * @throws IllegalArgumentException
+	 *             if the cipher suite is not supported
+	 */
+	static CipherSuite getCipherSuite(byte[] data, int pos) {
+		return toCipherSuite(SyncDataHelper.readInt(data, pos + IV_LEN));
+	}
+
+	private static CipherSuite toCipherSuite(int lenField) {
+		int suiteVal = (lenField >>> SUITE_SHIFT) & SUITE_MASK;
+		CipherSuite suite = CipherSuite.fromVal(suiteVal);
+		if (suite == null) {
+			throw new IllegalArgumentException("Unsupported cipher suite:"
+					+ suiteVal);
+		}
+		return suite;
+	}
+
+	/**
+	 * 
+	 * @param data
+	 * @param pos
+	 *            start of the preamble of the value
+	 * @return true if the value is encrypted in chunks
+	 */
+	static boolean isChunked(byte[] data, int pos) {
+		return (SyncDataHelper.readInt(data, pos + IV_LEN) & CHUNKED_FLAG) != 0;
+	}
+
+	/**
+	 * 
+	 * @param data
+	 * @param pos
+	 *            start of the preamble of the value
+	 * @return length of the encrypted data following the preamble, -1 if the
+	 *         length is invalid.
+	 */
+	static int readDataLength(byte[] data, int pos) {
+		return getDataLength(SyncDataHelper.readInt(data, pos + IV_LEN));
+	}
+
+	/**
+	 * 
+	 * @param data
+	 * @param pos
+	 *            start of the preamble of the segment
+	 * @return length of the encrypted data following the preamble of a
+	 *         segment, -1 if the length is invalid.
+	 */
+	static int readSegmentLength(byte[] data, int pos) {
+		return getDataLength(SyncDataHelper.readInt(data, pos));
+	}
+
+	private static int getDataLength(int lenField) {
+		return lenField < 0 ? -1 : lenField & LENGTH_MASK;
+	}
+
+	/**
+	 * Computes the nonce of a segment of an envelope.
+	 * 
+	 * @param envelopeIv
+	 *            IV of the envelope
+	 * @param rowIndex
+	 *            index of the row in the envelope
+	 * @param valueIndex
+	 *            index of the value in the row, a row has at most one value
+	 *            per value-key.
+	 * @param iv
+	 *            receives the nonce
+	 * @param offset
+	 *            start of the nonce in iv
+	 */
+	static void initSegmentIv(byte[] envelopeIv, int rowIndex,
+			int valueIndex, byte[] iv, int offset) {
+		System.arraycopy(envelopeIv, 0, iv, offset, IV_LEN);
+		int i = offset + SEGMENT_ROW_POS;
+		iv[i] ^= (byte) (rowIndex >>> 24);
+		iv[i + 1] ^= (byte) (rowIndex >>> 16);
+		iv[i + 2] ^= (byte) (rowIndex >>> 8);
+		iv[i + 3] ^= (byte) rowIndex;
+		i = offset + SEGMENT_VALUE_POS;
+		iv[i] ^= (byte) (valueIndex >>> 8);
+		iv[i + 1] ^= (byte) valueIndex;
+	}
+
+	/**
+	 * Copies a value to a standalone value, which can be decoded and stored
+	 * without the row values. The encrypted data is not changed, the nonce
+	 * of a segment of an envelope becomes the IV of the value.
+	 * 
+	 * @param key
+	 * @param values
+	 * @return value with preamble, null if the value is not available
+	 */
+	static byte[] copyValue(byte key, RowValues values) {
+		byte[] data = values.getArray(key);
+		if (data == null) {
+			return null;
+		}
+		int pos = values.getOffset(key);
+		int len = values.getLength(key);
+		byte[] value;
+		if (values.isSegment(key)) {
+			value = new byte[IV_LEN + len];
+			values.getSegmentIv(key, value, 0);
+			System.arraycopy(data, pos, value, IV_LEN, len);
+		} else {
+			value = new byte[len];
+			System.arraycopy(data, pos, value, 0, len);
+		}
+		return value;
+	}
+
 	/**
 	 * Write a String for transport to Server
 	 * 
 	 * @param secret
 	 * @param out
 	 * @param ecipher
+	 *            CCM-Cipher
 	 * @param iv
 	 * @param random
 	 * @param key
@@ -141,7 +638,7 @@ public final class CryptoHelper {
 	 * @param secret
 	 * @param out
 	 * @param ecipher
-	 *            will be initialized
+	 *            CCM-Cipher, will be initialized
 	 * @param iv
 	 *            buffer for a IV. Length has to be {@link #IV_LEN}
 	 * @param random
@@ -155,28 +652,227 @@ public final class CryptoHelper {
 			AEADBlockCipher ecipher, byte[] iv, SecureRandom random, byte key,
 			byte[] value) throws IOException, InvalidCipherTextException {
 		if (value != null) {
-			// 1byte key, //16byte iv// //4 len
-			out.write(key);
+			writeValue(new KeyParameter(secret.getEncoded()), out, ecipher,
+					CipherSuite.CCM, iv, random, key, value, 0, value.length);
+		}
+	}
+
+	/**
+	 * Writes a Byte[]-Value for Transport to Server with the cipher suite of
+	 * the context.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param out
+	 * @param key
+	 *            Value-Key
+	 * @param value
+	 * @throws IOException
+	 * @throws InvalidCipherTextException
+	 */
+	static void writeValue(ContactCodecContext context,
+			ByteArrayOutputStream out, byte key, byte[] value)
+			throws IOException, InvalidCipherTextException {
+		if (value != null) {
+			writeValue(context, out, key, value, 0, value.length);
+		}
+	}
+
+	/**
+	 * Writes a part of a buffer as value for Transport to Server. The buffer
+	 * is encrypted directly, so no copy of the data is needed. If an envelope
+	 * of the context is open, the value is written as its next segment.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param out
+	 * @param key
+	 *            Value-Key
+	 * @param value
+	 * @param offset
+	 *            start of the data in value
+	 * @param length
+	 *            length of the data
+	 * @throws IOException
+	 * @throws InvalidCipherTextException
+	 */
+	static void writeValue(ContactCodecContext context,
+			ByteArrayOutputStream out, byte key, byte[] value, int offset,
+			int length) throws IOException, InvalidCipherTextException {
+		if (value != null) {
+			if (context.isEnvelope()) {
+				// Segment: the nonce is derived from the envelope
+				writeValue(context.getKeyParam(), out, context.getCipher(),
+						context.getCipherSuite(), context.nextSegmentIv(),
+						null, key, value, offset, length);
+			} else {
+				writeValue(context.getKeyParam(), out, context.getCipher(),
+						context.getCipherSuite(), context.getIv(),
+						context.getRandom(), key, value, offset, length);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param random
+	 *            null for a segment of an envelope, the iv contains then the
+	 *            nonce of the segment and is not written.
+	 */
+	private static void writeValue(KeyParameter keyParam,
+			ByteArrayOutputStream out, AEADBlockCipher ecipher,
+			CipherSuite suite, byte[] iv, SecureRandom random, byte key,
+			byte[] value, int offset, int length) throws IOException,
+			InvalidCipherTextException {
+		// 1byte key, //12byte iv// //4 len (with cipher suite and chunk flag)
+		boolean chunked = length > CHUNK_SIZE;
+		int encSize = checkEncryptedSize(chunked, length);
+		out.write(key);
+		if (random != null) {
 			random.nextBytes(iv);
+			out.write(iv);
+		}
+		int flags = suite.getVal() << SUITE_SHIFT;
+		if (chunked) {
+			flags |= CHUNKED_FLAG;
+		}
+		if (out instanceof ExposedByteArrayOutputStream) {
+			// Encrypt directly into the buffer of the stream
+			ExposedByteArrayOutputStream exposedOut = (ExposedByteArrayOutputStream) out;
+			int lenPos = exposedOut.reserve(VALUE_LEN + encSize);
+			int encLen = encrypt(ecipher, keyParam, iv, chunked, value,
+					offset, length, exposedOut.getBuffer(), lenPos + VALUE_LEN);
+			SyncDataHelper.writeInt(exposedOut.getBuffer(), encLen | flags,
+					lenPos);
+			exposedOut.setSize(lenPos + VALUE_LEN + encLen);
+		} else {
+			byte[] enc = new byte[encSize];
+			int encLen = encrypt(ecipher, keyParam, iv, chunked, value,
+					offset, length, enc, 0);
+
+			SyncDataHelper.writeInt(out, encLen | flags);
+
+			out.write(enc, 0, encLen);
+		}
+	}
 
-			ecipher.init(true,
-					new AEADParameters(new KeyParameter(secret.getEncoded()),
-							MAC_SIZE, iv));
+	/**
+	 * Writes a value from a stream in chunks, so the value is never
+	 * completely in memory. If an envelope of the context is open, the value
+	 * is written as its next segment.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param out
+	 * @param key
+	 *            Value-Key
+	 * @param in
+	 *            provides the data of the value
+	 * @param length
+	 *            count of bytes which are read from in
+	 * @throws IOException
+	 *             if in has less than length bytes
+	 * @throws InvalidCipherTextException
+	 */
+	public static void writeValue(ContactCodecContext context,
+			OutputStream out, byte key, InputStream in, int length)
+			throws IOException, InvalidCipherTextException {
+		int encSize = checkEncryptedSize(true, length);
+		AEADBlockCipher cipher = context.getCipher();
+		KeyParameter keyParam = context.getKeyParam();
+		byte[] iv;
+		out.write(key);
+		if (context.isEnvelope()) {
+			iv = context.nextSegmentIv();
+		} else {
+			iv = context.getIv();
+			context.getRandom().nextBytes(iv);
 			out.write(iv);
-			// convert to utf-8 (default android)
-			byte[] enc = cipherData(ecipher, value);
+		}
+		SyncDataHelper.writeInt(out, encSize
+				| (context.getCipherSuite().getVal() << SUITE_SHIFT)
+				| CHUNKED_FLAG);
 
-			SyncDataHelper.writeInt(out, enc.length);
+		DataInputStream din = new DataInputStream(in);
+		byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+		byte[] chunkOut = new byte[chunk.length + MAC_LEN];
+		byte[] chunkIv = new byte[IV_LEN];
+		int pos = 0;
+		int index = 0;
+		do {
+			int chunkLen = Math.min(CHUNK_SIZE, length - pos);
+			din.readFully(chunk, 0, chunkLen);
+			pos += chunkLen;
+			initChunk(cipher, true, keyParam, iv, chunkIv, index,
+					pos == length);
+			int outLen = cipherData(cipher, chunk, 0, chunkLen, chunkOut, 0);
+			out.write(chunkOut, 0, outLen);
+			index++;
+		} while (pos < length);
+	}
 
-			out.write(enc);
+	/**
+	 * @return size of the encrypted data
+	 * @throws IllegalArgumentException
+	 *             if the encrypted value is too large for the preamble
+	 */
+	private static int checkEncryptedSize(boolean chunked, int length) {
+		long encSize = getEncryptedSize(chunked, length);
+		if (length < 0 || encSize > LENGTH_MASK
+				|| (!chunked && length > MAX_MSG_SIZE)) {
+			throw new IllegalArgumentException("Invalid value size:" + length);
 		}
+		return (int) encSize;
 	}
 
 	/**
-	 * @return New Cipher for Decoding or Encoding
+	 * @return New Cipher for Decoding or Encoding. The cipher keeps the
+	 *         expanded AES key while it is initialized with the same
+	 *         KeyParameter instance, see {@link PreparedKey}.
 	 */
 	public static AEADBlockCipher getCipher() {
-		return new CCMBlockCipher(new AESEngine());
+		return getCipher(CipherSuite.CCM);
+	}
+
+	/**
+	 * @return New Cipher of a cipher suite for Decoding or Encoding.
+	 */
+	public static AEADBlockCipher getCipher(CipherSuite suite) {
+		return getCipher(suite, CipherBackend.SPONGYCASTLE);
+	}
+
+	/**
+	 * Creates a cipher with the implementation of a backend. All backends
+	 * produce the same output.
+	 * 
+	 * @param suite
+	 * @param backend
+	 * @return New Cipher of a cipher suite for Decoding or Encoding. If the
+	 *         JCE has no implementation of the suite, a SpongyCastle cipher
+	 *         is returned.
+	 */
+	public static AEADBlockCipher getCipher(CipherSuite suite,
+			CipherBackend backend) {
+		if (backend == CipherBackend.JCE && suite == CipherSuite.GCM) {
+			// JCE has no standard parameters for CCM, so it is always
+			// SpongyCastle
+			try {
+				return new JceAEADBlockCipher();
+			} catch (NoSuchAlgorithmException ex) {
+				LOG.debug("No JCE implementation for "
+						+ JceAEADBlockCipher.TRANSFORMATION
+						+ ", SpongyCastle is used.");
+			} catch (NoSuchPaddingException ex) {
+				LOG.debug("No JCE implementation for "
+						+ JceAEADBlockCipher.TRANSFORMATION
+						+ ", SpongyCastle is used.");
+			}
+		}
+		if (suite == CipherSuite.GCM) {
+			return new GCMBlockCipher(new KeyCachingAESEngine(),
+					new KeyCachingGCMMultiplier());
+		}
+		return new CCMBlockCipher(new KeyCachingAESEngine());
 	}
 
 	/**
@@ -209,10 +905,79 @@ public final class CryptoHelper {
 			int offset, int length) throws InvalidCipherTextException {
 		int minSize = cipher.getOutputSize(length);
 		byte[] outBuf = new byte[minSize];
-		int outLen = cipher.processBytes(data, offset, length, outBuf, 0);
-		outLen += cipher.doFinal(outBuf, outLen);
+		int outLen = cipherData(cipher, data, offset, length, outBuf, 0);
+		if (outLen == outBuf.length) {
+			return outBuf;
+		}
 		byte[] result = new byte[outLen];
 		System.arraycopy(outBuf, 0, result, 0, result.length);
 		return result;
 	}
+
+	/**
+	 * Encode or Decode a part of a buffer into a buffer of the caller.
+	 * 
+	 * @param cipher
+	 *            Already initialized cipher.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 *            needs space for {@link AEADBlockCipher#getOutputSize(int)}
+	 *            bytes from outOffset. Can be the same array as data if the
+	 *            regions do not overlap.
+	 * @param outOffset
+	 * @return count of bytes written to out.
+	 * @throws InvalidCipherTextException
+	 *             if the MAC fails to match
+	 * @throws OutputLengthException
+	 *             if out is too small.
+	 */
+	public static int cipherData(AEADBlockCipher cipher, byte[] data,
+			int offset, int length, byte[] out, int outOffset)
+			throws InvalidCipherTextException {
+		if (out.length - outOffset < cipher.getOutputSize(length)) {
+			throw new OutputLengthException("Output buffer too short.");
+		}
+		int outLen = cipher.processBytes(data, offset, length, out, outOffset);
+		outLen += cipher.doFinal(out, outOffset + outLen);
+		return outLen;
+	}
+
+	/**
+	 * Encode or Decode a part of a buffer into a ByteBuffer. The position of
+	 * the ByteBuffer is moved behind the written data.
+	 * 
+	 * @param cipher
+	 *            Already initialized cipher.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 *            needs {@link AEADBlockCipher#getOutputSize(int)} bytes
+	 *            remaining.
+	 * @return count of bytes written to out.
+	 * @throws InvalidCipherTextException
+	 *             if the MAC fails to match
+	 * @throws OutputLengthException
+	 *             if out is too small.
+	 */
+	public static int cipherData(AEADBlockCipher cipher, byte[] data,
+			int offset, int length, ByteBuffer out)
+			throws InvalidCipherTextException {
+		int outLen;
+		if (out.hasArray()) {
+			if (out.remaining() < cipher.getOutputSize(length)) {
+				throw new OutputLengthException("Output buffer too short.");
+			}
+			outLen = cipherData(cipher, data, offset, length, out.array(),
+					out.arrayOffset() + out.position());
+			out.position(out.position() + outLen);
+		} else {
+			byte[] result = cipherData(cipher, data, offset, length);
+			out.put(result);
+			outLen = result.length;
+		}
+		return outLen;
+	}
 }
@@ -0,0 +1,72 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * Copy of an encrypted value which is decrypted when it is needed. Holds
+ * its own key, so it can be decoded without the context of the decoding
+ * thread.
+ */
+final class EncryptedValue {
+
+	private final byte[] data;
+
+	private final KeyParameter keyParam;
+
+	private final CipherBackend backend;
+
+	/**
+	 * Copies an encrypted value, a segment of an envelope is copied with its
+	 * nonce.
+	 * 
+	 * @param key
+	 *            Value-Key
+	 * @param values
+	 *            contains the value
+	 * @param context
+	 *            provides key and backend
+	 */
+	EncryptedValue(byte key, RowValues values, ContactCodecContext context) {
+		this.data = CryptoHelper.copyValue(key, values);
+		this.keyParam = context.getKeyParam();
+		this.backend = context.getBackend();
+	}
+
+	/**
+	 * @return length of the encrypted value
+	 */
+	int getLength() {
+		return data.length;
+	}
+
+	/**
+	 * Decrypts the value with a new cipher.
+	 * 
+	 * @return decrypted value
+	 * @throws InvalidCipherTextException
+	 *             if the MAC fails to match
+	 */
+	byte[] decode() throws InvalidCipherTextException {
+		return CryptoHelper.decodeValue(data, 0, data.length, keyParam,
+				backend);
+	}
+}
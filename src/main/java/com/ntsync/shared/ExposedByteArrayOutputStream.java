@@ -0,0 +1,72 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * ByteArrayOutputStream which gives access to its buffer, so the written data
+ * can be processed without copying it with {@link #toByteArray()}.
+ */
+final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+	ExposedByteArrayOutputStream(int size) {
+		super(size);
+	}
+
+	/**
+	 * @return the internal buffer, valid data is from 0 to {@link #size()}.
+	 *         The buffer is replaced when the stream grows.
+	 */
+	byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * Reserves space at the end of the stream which can be written directly
+	 * into the buffer.
+	 * 
+	 * @param len
+	 *            count of bytes to reserve
+	 * @return offset of the reserved space in {@link #getBuffer()}
+	 */
+	int reserve(int len) {
+		int offset = count;
+		int newCount = count + len;
+		if (newCount > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, newCount));
+		}
+		count = newCount;
+		return offset;
+	}
+
+	/**
+	 * Sets the size of the valid data, used to release unused reserved space.
+	 * 
+	 * @param size
+	 *            has to be smaller than the current size.
+	 */
+	void setSize(int size) {
+		if (size < 0 || size > count) {
+			throw new IllegalArgumentException("Invalid size:" + size);
+		}
+		count = size;
+	}
+}
@@ -0,0 +1,160 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.security.MessageDigest;
+
+/**
+ * Feeds text directly into a MessageDigest. The result is the same as the
+ * digest of the UTF-8 bytes of a StringBuilder with the same appends, but
+ * without creating the String and the byte-array.
+ * 
+ * Not thread-safe.
+ */
+final class HashBuilder {
+
+	private static final int BUFFER_SIZE = 256;
+
+	/** Longest UTF-8 sequence of a code point */
+	private static final int MAX_CHAR_LEN = 4;
+
+	private static final String NULL_TEXT = "null";
+
+	private final MessageDigest digest;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	private int count;
+
+	/**
+	 * 
+	 * @param digest
+	 *            is reset
+	 */
+	HashBuilder(MessageDigest digest) {
+		this.digest = digest;
+		digest.reset();
+	}
+
+	/**
+	 * Clears all appended data, so the builder can be reused.
+	 */
+	void reset() {
+		count = 0;
+		digest.reset();
+	}
+
+	/**
+	 * 
+	 * @param value
+	 *            "null" is appended for null, as in StringBuilder
+	 * @return this
+	 */
+	HashBuilder append(String value) {
+		String text = value != null ? value : NULL_TEXT;
+		int len = text.length();
+		for (int i = 0; i < len; i++) {
+			if (count > BUFFER_SIZE - MAX_CHAR_LEN) {
+				flush();
+			}
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				buffer[count++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[count++] = (byte) (0xC0 | (c >> 6));
+				buffer[count++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+				buffer[count++] = (byte) (0xF0 | (cp >> 18));
+				buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isHighSurrogate(c)
+					|| Character.isLowSurrogate(c)) {
+				// Same replacement as String.getBytes
+				buffer[count++] = '?';
+			} else {
+				buffer[count++] = (byte) (0xE0 | (c >> 12));
+				buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[count++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * 
+	 * @param c
+	 *            ASCII character
+	 * @return this
+	 */
+	HashBuilder append(char c) {
+		if (c >= 0x80) {
+			return append(String.valueOf(c));
+		}
+		if (count == BUFFER_SIZE) {
+			flush();
+		}
+		buffer[count++] = (byte) c;
+		return this;
+	}
+
+	/**
+	 * 
+	 * @param value
+	 *            is appended in decimal as in StringBuilder
+	 * @return this
+	 */
+	HashBuilder append(int value) {
+		if (value >= 0 && value < 10) {
+			return append((char) ('0' + value));
+		}
+		return append(Integer.toString(value));
+	}
+
+	/**
+	 * 
+	 * @param data
+	 *            bytes which are appended unchanged
+	 * @param offset
+	 * @param len
+	 * @return this
+	 */
+	HashBuilder append(byte[] data, int offset, int len) {
+		flush();
+		digest.update(data, offset, len);
+		return this;
+	}
+
+	/**
+	 * Completes the hash and resets the builder.
+	 * 
+	 * @return the hash
+	 */
+	byte[] digest() {
+		flush();
+		return digest.digest();
+	}
+
+	private void flush() {
+		digest.update(buffer, 0, count);
+		count = 0;
+	}
+}
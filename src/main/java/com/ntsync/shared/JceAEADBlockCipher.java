@@ -0,0 +1,302 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.OutputLengthException;
+import org.spongycastle.crypto.modes.AEADBlockCipher;
+import org.spongycastle.crypto.params.AEADParameters;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * AES/GCM AEADBlockCipher which uses a javax.crypto Cipher, so the AES
+ * implementation of the platform (ex. with AES-NI) is used. The output is
+ * the same as from the SpongyCastle implementation.
+ * 
+ * The GCM API of javax.crypto (GCMParameterSpec, updateAAD) needs Java 7. It
+ * is accessed with reflection, so the project still compiles for Java 6
+ * (Android) and the cipher is not available on older platforms.
+ */
+final class JceAEADBlockCipher implements AEADBlockCipher {
+
+	static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+	private static final String KEY_ALGORITHM = "AES";
+
+	private static final String GCM_SPEC_CLASS = "javax.crypto.spec.GCMParameterSpec";
+
+	/** GCMParameterSpec(int, byte[]), null before Java 7 */
+	private static final Constructor<?> GCM_SPEC_CONSTRUCTOR;
+
+	/** Cipher.updateAAD(byte[], int, int), null before Java 7 */
+	private static final Method UPDATE_AAD;
+
+	static {
+		Constructor<?> specConstructor = null;
+		Method updateAad = null;
+		try {
+			specConstructor = Class.forName(GCM_SPEC_CLASS).getConstructor(
+					int.class, byte[].class);
+			updateAad = Cipher.class.getMethod("updateAAD", byte[].class,
+					int.class, int.class);
+		} catch (ClassNotFoundException ex) {
+			specConstructor = null;
+		} catch (NoSuchMethodException ex) {
+			specConstructor = null;
+		}
+		GCM_SPEC_CONSTRUCTOR = specConstructor;
+		UPDATE_AAD = updateAad;
+	}
+
+	private static final int BITS_PER_BYTE = 8;
+
+	private final Cipher cipher;
+
+	private final String algorithmName;
+
+	private KeyParameter currentKeyParam;
+
+	private SecretKeySpec currentKey;
+
+	private AEADParameters currentParams;
+
+	private boolean forEncryption;
+
+	/** false after a reset, the cipher needs a new nonce */
+	private boolean initialized;
+
+	/** MAC of the last message */
+	private byte[] mac;
+
+	/** Last received bytes, contains the MAC when decrypting */
+	private byte[] tail;
+
+	private int tailLen;
+
+	/**
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 *             if the platform has no implementation or no GCM API
+	 * @throws NoSuchPaddingException
+	 */
+	JceAEADBlockCipher() throws NoSuchAlgorithmException,
+			NoSuchPaddingException {
+		if (GCM_SPEC_CONSTRUCTOR == null) {
+			throw new NoSuchAlgorithmException("No GCM API available.");
+		}
+		this.cipher = Cipher.getInstance(TRANSFORMATION);
+		this.algorithmName = TRANSFORMATION;
+	}
+
+	@Override
+	public void init(boolean encrypt, CipherParameters params) {
+		if (!(params instanceof AEADParameters)) {
+			throw new IllegalArgumentException("invalid parameters passed");
+		}
+		AEADParameters aeadParams = (AEADParameters) params;
+		KeyParameter keyParam = aeadParams.getKey();
+		if (keyParam == null) {
+			// Reuse the key of the last init
+			keyParam = currentKeyParam;
+		}
+		if (keyParam == null) {
+			throw new IllegalArgumentException("key must be specified");
+		}
+		if (keyParam != currentKeyParam) {
+			currentKey = new SecretKeySpec(keyParam.getKey(), KEY_ALGORITHM);
+			currentKeyParam = keyParam;
+		}
+		this.forEncryption = encrypt;
+		this.currentParams = aeadParams;
+		int macLen = aeadParams.getMacSize() / BITS_PER_BYTE;
+		if (tail == null || tail.length != macLen) {
+			tail = new byte[macLen];
+		}
+		tailLen = 0;
+		mac = null;
+		initCipher();
+	}
+
+	private void initCipher() {
+		try {
+			AlgorithmParameterSpec spec = (AlgorithmParameterSpec) GCM_SPEC_CONSTRUCTOR
+					.newInstance(currentParams.getMacSize(),
+							currentParams.getNonce());
+			cipher.init(forEncryption ? Cipher.ENCRYPT_MODE
+					: Cipher.DECRYPT_MODE, currentKey, spec);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalArgumentException(ex.getMessage(), ex);
+		} catch (InstantiationException ex) {
+			throw new IllegalStateException(ex);
+		} catch (IllegalAccessException ex) {
+			throw new IllegalStateException(ex);
+		} catch (InvocationTargetException ex) {
+			throw new IllegalArgumentException(ex.getCause());
+		}
+		initialized = true;
+		byte[] aad = currentParams.getAssociatedText();
+		if (aad != null) {
+			updateAAD(aad, 0, aad.length);
+		}
+	}
+
+	private void updateAAD(byte[] in, int inOff, int len) {
+		checkInitialized();
+		try {
+			UPDATE_AAD.invoke(cipher, in, inOff, len);
+		} catch (IllegalAccessException ex) {
+			throw new IllegalStateException(ex);
+		} catch (InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private void checkInitialized() {
+		if (!initialized) {
+			throw new IllegalStateException(
+					"Cipher has to be initialized with a new nonce.");
+		}
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return algorithmName;
+	}
+
+	/**
+	 * @return null, the block cipher of the platform is not accessible.
+	 */
+	@Override
+	public BlockCipher getUnderlyingCipher() {
+		return null;
+	}
+
+	@Override
+	public void processAADByte(byte in) {
+		updateAAD(new byte[] { in }, 0, 1);
+	}
+
+	@Override
+	public void processAADBytes(byte[] in, int inOff, int len) {
+		updateAAD(in, inOff, len);
+	}
+
+	@Override
+	public int processByte(byte in, byte[] out, int outOff) {
+		return processBytes(new byte[] { in }, 0, 1, out, outOff);
+	}
+
+	@Override
+	public int processBytes(byte[] in, int inOff, int len, byte[] out,
+			int outOff) {
+		checkInitialized();
+		if (!forEncryption) {
+			keepTail(in, inOff, len);
+		}
+		try {
+			return cipher.update(in, inOff, len, out, outOff);
+		} catch (ShortBufferException ex) {
+			throw new OutputLengthException("Output buffer too short.");
+		}
+	}
+
+	@Override
+	public int doFinal(byte[] out, int outOff)
+			throws InvalidCipherTextException {
+		checkInitialized();
+		int outLen;
+		try {
+			outLen = cipher.doFinal(out, outOff);
+		} catch (ShortBufferException ex) {
+			throw new OutputLengthException("Output buffer too short.");
+		} catch (GeneralSecurityException ex) {
+			// AEADBadTagException (Java 7) if the MAC fails to match
+			throw new InvalidCipherTextException("mac check failed", ex);
+		}
+		if (forEncryption) {
+			// MAC is appended to the output
+			keepTail(out, outOff, outLen);
+		}
+		mac = new byte[tailLen];
+		System.arraycopy(tail, tail.length - tailLen, mac, 0, tailLen);
+		tailLen = 0;
+		return outLen;
+	}
+
+	/**
+	 * Keeps the last bytes of the data which contain the MAC when the
+	 * message is complete.
+	 */
+	private void keepTail(byte[] data, int offset, int len) {
+		int size = tail.length;
+		if (len >= size) {
+			System.arraycopy(data, offset + len - size, tail, 0, size);
+			tailLen = size;
+		} else {
+			System.arraycopy(tail, len, tail, 0, size - len);
+			System.arraycopy(data, offset, tail, size - len, len);
+			tailLen = Math.min(size, tailLen + len);
+		}
+	}
+
+	@Override
+	public byte[] getMac() {
+		return mac != null ? mac.clone() : new byte[0];
+	}
+
+	@Override
+	public int getUpdateOutputSize(int len) {
+		return cipher.getOutputSize(len);
+	}
+
+	@Override
+	public int getOutputSize(int len) {
+		return cipher.getOutputSize(len);
+	}
+
+	/**
+	 * Clears the buffered state. The cipher is not initialized again with the
+	 * same nonce, it has to be initialized with {@link #init} before the next
+	 * message.
+	 */
+	@Override
+	public void reset() {
+		tailLen = 0;
+		mac = null;
+		initialized = false;
+	}
+}
@@ -0,0 +1,73 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.engines.AESEngine;
+
+/**
+ * AESEngine which keeps the expanded key schedule when it is initialized
+ * again with the same key. CCM initializes the engine twice for every value
+ * (CBC-MAC and CTR), so without this the key expansion is done for every
+ * value.
+ * 
+ * The key is compared by identity, so the same {@link PreparedKey} has to
+ * be used for all values to benefit from the cache.
+ */
+final class KeyCachingAESEngine implements BlockCipher {
+
+	private final AESEngine engine = new AESEngine();
+
+	private CipherParameters currentParams;
+
+	private boolean currentForEncryption;
+
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) {
+		if (params != currentParams
+				|| forEncryption != currentForEncryption) {
+			// Reset cache first, if init fails the engine is not initialized
+			currentParams = null;
+			engine.init(forEncryption, params);
+			currentParams = params;
+			currentForEncryption = forEncryption;
+		}
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return engine.getAlgorithmName();
+	}
+
+	@Override
+	public int getBlockSize() {
+		return engine.getBlockSize();
+	}
+
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+		return engine.processBlock(in, inOff, out, outOff);
+	}
+
+	@Override
+	public void reset() {
+		engine.reset();
+	}
+}
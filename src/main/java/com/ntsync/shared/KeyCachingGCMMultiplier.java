@@ -0,0 +1,50 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.util.Arrays;
+
+import org.spongycastle.crypto.modes.gcm.GCMMultiplier;
+import org.spongycastle.crypto.modes.gcm.Tables8kGCMMultiplier;
+
+/**
+ * GCMMultiplier which keeps its tables when it is initialized again with the
+ * same hash subkey. GCM initializes the multiplier for every value, building
+ * the tables is much more expensive than encrypting a short value.
+ */
+final class KeyCachingGCMMultiplier implements GCMMultiplier {
+
+	private final Tables8kGCMMultiplier multiplier = new Tables8kGCMMultiplier();
+
+	private byte[] currentH;
+
+	@Override
+	public void init(byte[] h) {
+		if (currentH == null || !Arrays.equals(currentH, h)) {
+			currentH = null;
+			multiplier.init(h);
+			currentH = h.clone();
+		}
+	}
+
+	@Override
+	public void multiplyH(byte[] x) {
+		multiplier.multiplyH(x);
+	}
+}
@@ -0,0 +1,38 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+/**
+ * Local store of the photos which were already synced. Is used to resolve
+ * the photos of contacts which only contain a reference to an unchanged
+ * photo ({@link ContactConstants#PHOTO_REF}).
+ * 
+ * Has to be thread-safe when rows are decoded in parallel.
+ */
+public interface PhotoCache {
+
+	/**
+	 * 
+	 * @param photoRef
+	 *            reference of the photo, see
+	 *            {@link RawContact#computePhotoRef(ContactCodecContext)}
+	 * @return the photo or null if it is not available.
+	 */
+	byte[] getPhoto(byte[] photoRef);
+}
@@ -0,0 +1,52 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.security.Key;
+
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * A key prepared for encrypting/decrypting values. Is created once for a
+ * sync and can be shared between threads, so the key bytes are not copied
+ * again for every row or value.
+ * 
+ * The expanded AES key schedule is kept per cipher, see
+ * {@link CryptoHelper#getCipher()}.
+ */
+public final class PreparedKey {
+
+	private final KeyParameter keyParam;
+
+	/**
+	 * 
+	 * @param secret
+	 *            Key for encrypting/decrypting the values.
+	 */
+	public PreparedKey(Key secret) {
+		this.keyParam = new KeyParameter(secret.getEncoded());
+	}
+
+	/**
+	 * @return Key parameter, always the same instance for this key.
+	 */
+	KeyParameter getKeyParam() {
+		return keyParam;
+	}
+}
@@ -38,25 +38,26 @@ package com.ntsync.shared;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.InvalidCipherTextException;
-import org.spongycastle.crypto.modes.AEADBlockCipher;
+import org.spongycastle.crypto.Mac;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -88,8 +89,6 @@ public final class RawContact {
 
 	private static final String JSON_FIELDNOTRECOGNIZED = "Unrecognized List field for row with Id:";
 
-	private static final int DEFAULT_BYTEARRAY_SIZE = 1000;
-
 	private static final Logger LOG = LoggerFactory.getLogger(RawContact.class);
 
 	private final String displayName;
@@ -132,7 +131,17 @@ public final class RawContact {
 
 	private final String note;
 
-	private final byte[] photo;
+	/** Guarded by this, is set on the first access of a lazy photo */
+	private byte[] photo;
+
+	/**
+	 * Photo which is decrypted on the first access, guarded by this. Is
+	 * decrypted without the context of the decoding thread.
+	 */
+	private EncryptedValue encryptedPhoto;
+
+	/** Reference of the photo in the decoded row */
+	private byte[] photoRef;
 
 	private final boolean photoSuperPrimary;
 
@@ -340,10 +349,34 @@ public final class RawContact {
 		return organization;
 	}
 
-	public byte[] getPhoto() {
+	/**
+	 * @return the photo, is decrypted on the first call if the contact was
+	 *         decoded with a lazy photo. Null if no photo is available or the
+	 *         photo could not be decrypted. Can be called from any thread.
+	 */
+	public synchronized byte[] getPhoto() {
+		EncryptedValue encPhoto = encryptedPhoto;
+		if (encPhoto != null) {
+			try {
+				photo = encPhoto.decode();
+			} catch (InvalidCipherTextException ex) {
+				LOG.warn("Photo could not be decrypted. Reason:"
+						+ ex.toString(), ex);
+			}
+			encryptedPhoto = null;
+		}
 		return photo;
 	}
 
+	/**
+	 * @return reference of the photo in the decoded row, null if not
+	 *         available. If {@link #getPhoto()} returns null the photo is
+	 *         unchanged, but was not found in the {@link PhotoCache}.
+	 */
+	public byte[] getPhotoRef() {
+		return photoRef;
+	}
+
 	public boolean isPhotoSuperPrimary() {
 		return photoSuperPrimary;
 	}
@@ -400,20 +433,91 @@ public final class RawContact {
 	 * @return a JSON string representation of the object
 	 */
 	public byte[] toDTO(Key secret, String pwdSaltBase64) {
+		ContactCodecContext context = new ContactCodecContext(secret);
 		try {
-			ByteArrayOutputStream out = new ByteArrayOutputStream(
-					DEFAULT_BYTEARRAY_SIZE);
-			AEADBlockCipher ecipher = CryptoHelper.getCipher();
+			return toDTO(context, pwdSaltBase64);
+		} finally {
+			context.close();
+		}
+	}
 
-			byte[] iv = new byte[CryptoHelper.IV_LEN];
-			SecureRandom random = new SecureRandom();
+	/**
+	 * Convert the RawContact object into a DTO and reuse the cipher, buffers
+	 * and key of the context.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param pwdSaltBase64
+	 * @return null if serializing failed.
+	 */
+	public byte[] toDTO(ContactCodecContext context, String pwdSaltBase64) {
+		return toDTO(context, pwdSaltBase64, false, null, null, null);
+	}
 
-			StringBuilder hashValue = new StringBuilder();
-			hashValue.append(pwdSaltBase64);
-			hashValue.append(displayName);
-			hashValue.append(lastName);
-			hashValue.append(firstName);
-			hashValue.append(middleName);
+	/**
+	 * Convert the RawContact object into a DTO which contains only the
+	 * sections of the text data which changed since the previous version (
+	 * {@link ContactConstants#TEXTDELTA}). A list section is sent completely
+	 * if one of its entries changed. The photo is omitted if it is the same
+	 * as in the previous version. The delta contains the hash of the previous
+	 * version ({@link #computeDeltaBase(ContactCodecContext)}), the receiver
+	 * needs the same version for decoding (
+	 * {@link #valueOf(String, RowValues, ContactCodecContext, RawContact)}).
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param pwdSaltBase64
+	 * @param previous
+	 *            last synced version of this contact. If null or this contact
+	 *            is deleted the contact is serialized completely.
+	 * @return null if serializing failed.
+	 */
+	public byte[] toDeltaDTO(ContactCodecContext context,
+			String pwdSaltBase64, RawContact previous) {
+		return toDeltaDTO(context, pwdSaltBase64, previous, null);
+	}
+
+	/**
+	 * 
+	 * @param contentHash
+	 *            content hash of this contact if it was already computed,
+	 *            otherwise null.
+	 * @see #toDeltaDTO(ContactCodecContext, String, RawContact)
+	 */
+	byte[] toDeltaDTO(ContactCodecContext context, String pwdSaltBase64,
+			RawContact previous, byte[] contentHash) {
+		byte[] syncedPhotoRef = null;
+		if (previous != null) {
+			syncedPhotoRef = previous.computePhotoRef(context);
+		}
+		return toDTO(context, pwdSaltBase64, true, syncedPhotoRef, previous,
+				contentHash);
+	}
+
+	/**
+	 * Convert the RawContact object into a DTO. With writePhotoRef the
+	 * reference of the photo ({@link ContactConstants#PHOTO_REF}) is written
+	 * and the photo is omitted if it is unchanged, only use it if the
+	 * receiver keeps the last photo ({@link Restrictions#isPhotoRefSupported()}
+	 * ).
+	 * 
+	 * @param writePhotoRef
+	 *            true to write the photo reference and omit the photo if the
+	 *            reference is the same as syncedPhotoRef.
+	 * @param syncedPhotoRef
+	 *            reference of the last synced photo. Can be null.
+	 * @param previous
+	 *            last synced version for a delta or null
+	 * @param contentHash
+	 *            content hash of this contact if it was already computed,
+	 *            otherwise null.
+	 * @return null if serializing failed.
+	 */
+	byte[] toDTO(ContactCodecContext context, String pwdSaltBase64,
+			boolean writePhotoRef, byte[] syncedPhotoRef, RawContact previous,
+			byte[] contentHash) {
+		try {
+			ExposedByteArrayOutputStream out = context.getOutputStream();
 
 			out.write(ContactConstants.ROWID);
 			byte[] rowId = String.valueOf(mRawContactId).getBytes(
@@ -422,50 +526,47 @@ public final class RawContact {
 			SyncDataHelper.writeInt(out, rowId.length);
 			out.write(rowId);
 
-			JsonFactory json = new JsonFactory();
-			StringWriter writer = new StringWriter();
-			JsonGenerator g = json.createGenerator(writer);
-			g.writeStartObject();
-
-			writeStructuredName(g);
-
-			writeList(hashValue, g, ContactConstants.PHONE, phones, true);
-			writeList(hashValue, g, ContactConstants.EMAIL, emails, true);
-			writeList(hashValue, g, ContactConstants.EVENT, events, false);
-			writeList(hashValue, g, ContactConstants.RELATION, relations, false);
-			writeList(hashValue, g, ContactConstants.SIPADDRESS, sipAddresses,
-					false);
-			writeList(hashValue, g, ContactConstants.NICKNAME, nicknames, false);
-			writeList(hashValue, g, ContactConstants.WEBSITE, websites, false);
-			writeAddress(hashValue, g, addresses);
-			writeImList(g, imAddresses);
-			writeOrganization(g, organization);
-
-			writeField(g, ContactConstants.NOTE, note);
-			if (starred) {
-				g.writeBooleanField(ContactConstants.STARRED, true);
+			byte[] deltaBase = null;
+			if (previous != null && !mDeleted) {
+				// Uses the text buffer
+				deltaBase = previous.computeDeltaBase(context);
 			}
-			if (sendToVoiceMail) {
-				g.writeBooleanField(ContactConstants.SEND_TO_VOICE_MAIL, true);
+			byte[] hash = contentHash;
+			if (hash == null) {
+				// Uses the text buffer
+				hash = computeContentHash(context, pwdSaltBase64);
 			}
-			writeField(g, ContactConstants.DROID_CUSTOM_RINGTONE,
-					droidCustomRingtone);
 
-			if (photoSuperPrimary) {
-				g.writeBooleanField(ContactConstants.PHOTO_SUPERPRIMARY, true);
+			ExposedByteArrayOutputStream textData = context.getTextBuffer();
+			byte textKey = ContactConstants.TEXTDATA;
+			if (deltaBase != null) {
+				writeJsonDelta(context, previous, deltaBase, textData);
+				textKey = ContactConstants.TEXTDELTA;
+			} else if (context.getTextFormat() == TextFormat.BINARY) {
+				BinaryContactFormat.write(this, textData);
+			} else {
+				writeJson(context, textData);
 			}
 
-			writeStringList(g, ContactConstants.GROUPMEMBERSHIP, groupSourceIds);
-
-			g.writeEndObject();
-			g.close();
-
-			String textData = writer.toString();
-
-			CryptoHelper.writeValue(secret, out, ecipher, iv, random,
-					ContactConstants.TEXTDATA, textData);
-			CryptoHelper.writeValue(secret, out, ecipher, iv, random,
-					ContactConstants.PHOTO, photo);
+			if (context.isCompressText()) {
+				textData = TextCompression.compress(context, textData);
+			}
+			CryptoHelper.writeValue(context, out, textKey,
+					textData.getBuffer(), 0, textData.size());
+			byte[] currPhoto = getPhoto();
+			if (currPhoto != null) {
+				boolean photoChanged = true;
+				if (writePhotoRef) {
+					byte[] currPhotoRef = computePhotoRef(context, currPhoto);
+					CryptoHelper.writeValue(context, out,
+							ContactConstants.PHOTO_REF, currPhotoRef);
+					photoChanged = !Arrays.equals(currPhotoRef, syncedPhotoRef);
+				}
+				if (photoChanged) {
+					CryptoHelper.writeValue(context, out,
+							ContactConstants.PHOTO, currPhoto);
+				}
+			}
 
 			if (lastModified != null) {
 				writeRawValue(
@@ -479,7 +580,7 @@ public final class RawContact {
 				writeRawValue(out, ContactConstants.DELETED,
 						"1".getBytes(SyncDataHelper.DEFAULT_CHARSET_NAME));
 			}
-			writeRawValue(out, ContactConstants.HASH, createHash(hashValue));
+			writeRawValue(out, ContactConstants.HASH, hash);
 
 			return out.toByteArray();
 		} catch (final IOException ex) {
@@ -507,16 +608,279 @@ public final class RawContact {
 		g.writeEndObject();
 	}
 
-	private byte[] createHash(StringBuilder hashValue)
-			throws NoSuchAlgorithmException, UnsupportedEncodingException {
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
+	private void writeJson(ContactCodecContext context,
+			ExposedByteArrayOutputStream textData) throws IOException {
+		writeJson(context.getJsonFactory(), textData);
+	}
+
+	private void writeJson(JsonFactory factory,
+			ExposedByteArrayOutputStream textData) throws IOException {
+		JsonGenerator g = factory.createGenerator(textData, JsonEncoding.UTF8);
+		g.writeStartObject();
+
+		writeStructuredName(g);
+
+		writeList(g, ContactConstants.PHONE, phones);
+		writeList(g, ContactConstants.EMAIL, emails);
+		writeList(g, ContactConstants.EVENT, events);
+		writeList(g, ContactConstants.RELATION, relations);
+		writeList(g, ContactConstants.SIPADDRESS, sipAddresses);
+		writeList(g, ContactConstants.NICKNAME, nicknames);
+		writeList(g, ContactConstants.WEBSITE, websites);
+		writeAddress(g, addresses);
+		writeImList(g, imAddresses);
+		writeOrganization(g, organization);
+
+		writeField(g, ContactConstants.NOTE, note);
+		if (starred) {
+			g.writeBooleanField(ContactConstants.STARRED, true);
+		}
+		if (sendToVoiceMail) {
+			g.writeBooleanField(ContactConstants.SEND_TO_VOICE_MAIL, true);
+		}
+		writeField(g, ContactConstants.DROID_CUSTOM_RINGTONE,
+				droidCustomRingtone);
+
+		if (photoSuperPrimary) {
+			g.writeBooleanField(ContactConstants.PHOTO_SUPERPRIMARY, true);
+		}
+
+		writeStringList(g, ContactConstants.GROUPMEMBERSHIP, groupSourceIds);
+
+		g.writeEndObject();
+		g.close();
+	}
+
+	/**
+	 * Writes the hash of the previous version and the sections which are
+	 * different from the previous version. Removed sections are written as
+	 * null, the structured name is always written completely.
+	 */
+	private void writeJsonDelta(ContactCodecContext context,
+			RawContact prev, byte[] deltaBase,
+			ExposedByteArrayOutputStream textData) throws IOException {
+		JsonGenerator g = context.getJsonFactory().createGenerator(
+				textData, JsonEncoding.UTF8);
+		g.writeStartObject();
+		g.writeBinaryField(ContactConstants.DELTA_BASE, deltaBase);
+
+		if (isChanged(displayName, prev.displayName)
+				|| isChanged(lastName, prev.lastName)
+				|| isChanged(firstName, prev.firstName)
+				|| isChanged(middleName, prev.middleName)
+				|| isChanged(prefixName, prev.prefixName)
+				|| isChanged(suffixName, prev.suffixName)
+				|| isChanged(phoneticFamilyName, prev.phoneticFamilyName)
+				|| isChanged(phoneticGivenName, prev.phoneticGivenName)
+				|| isChanged(phoneticMiddleName, prev.phoneticMiddleName)) {
+			writeStructuredName(g);
+		}
 
-		md.update(hashValue.toString().getBytes(
-				SyncDataHelper.DEFAULT_CHARSET_NAME));
-		byte[] hash = md.digest();
+		writeListDelta(g, ContactConstants.PHONE, phones, prev.phones);
+		writeListDelta(g, ContactConstants.EMAIL, emails, prev.emails);
+		writeListDelta(g, ContactConstants.EVENT, events, prev.events);
+		writeListDelta(g, ContactConstants.RELATION, relations,
+				prev.relations);
+		writeListDelta(g, ContactConstants.SIPADDRESS, sipAddresses,
+				prev.sipAddresses);
+		writeListDelta(g, ContactConstants.NICKNAME, nicknames,
+				prev.nicknames);
+		writeListDelta(g, ContactConstants.WEBSITE, websites, prev.websites);
+		if (isChanged(addresses, prev.addresses)) {
+			if (isEmptyValue(addresses)) {
+				g.writeNullField(ContactConstants.STRUCTUREDPOSTAL);
+			} else {
+				writeAddress(g, addresses);
+			}
+		}
+		if (isChanged(imAddresses, prev.imAddresses)) {
+			if (isEmptyValue(imAddresses)) {
+				g.writeNullField(ContactConstants.IM);
+			} else {
+				writeImList(g, imAddresses);
+			}
+		}
+		if (isChanged(organization, prev.organization)) {
+			if (organization == null) {
+				g.writeNullField(ContactConstants.ORGANIZATION);
+			} else {
+				writeOrganization(g, organization);
+			}
+		}
+
+		writeFieldDelta(g, ContactConstants.NOTE, note, prev.note);
+		if (starred != prev.starred) {
+			g.writeBooleanField(ContactConstants.STARRED, starred);
+		}
+		if (sendToVoiceMail != prev.sendToVoiceMail) {
+			g.writeBooleanField(ContactConstants.SEND_TO_VOICE_MAIL,
+					sendToVoiceMail);
+		}
+		writeFieldDelta(g, ContactConstants.DROID_CUSTOM_RINGTONE,
+				droidCustomRingtone, prev.droidCustomRingtone);
+		if (photoSuperPrimary != prev.photoSuperPrimary) {
+			g.writeBooleanField(ContactConstants.PHOTO_SUPERPRIMARY,
+					photoSuperPrimary);
+		}
+		if (isChanged(groupSourceIds, prev.groupSourceIds)) {
+			if (isEmptyValue(groupSourceIds)) {
+				g.writeNullField(ContactConstants.GROUPMEMBERSHIP);
+			} else {
+				writeStringList(g, ContactConstants.GROUPMEMBERSHIP,
+						groupSourceIds);
+			}
+		}
+
+		g.writeEndObject();
+		g.close();
+	}
+
+	private static void writeListDelta(JsonGenerator g, String key,
+			List<? extends IListRawData<?>> list,
+			List<? extends IListRawData<?>> prevList) throws IOException {
+		if (isChanged(list, prevList)) {
+			if (isEmptyValue(list)) {
+				g.writeNullField(key);
+			} else {
+				writeList(g, key, list);
+			}
+		}
+	}
+
+	private static void writeFieldDelta(JsonGenerator g, String key,
+			String field, String prevField) throws IOException {
+		if (isChanged(field, prevField)) {
+			if (isEmptyValue(field)) {
+				g.writeNullField(key);
+			} else {
+				g.writeStringField(key, field);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the values are different, null and empty values are
+	 *         the same.
+	 */
+	private static boolean isChanged(Object value, Object prevValue) {
+		if (isEmptyValue(value)) {
+			return !isEmptyValue(prevValue);
+		}
+		return !value.equals(prevValue);
+	}
+
+	private static boolean isEmptyValue(Object value) {
+		if (value instanceof String) {
+			return ((String) value).length() == 0;
+		}
+		if (value instanceof List) {
+			return ((List<?>) value).isEmpty();
+		}
+		return value == null;
+	}
+
+	/**
+	 * Computes a hash of the complete content of the contact: all text data
+	 * (serialized as JSON independent of the text format of the context)
+	 * and the photo reference. Every change which would be sent to the
+	 * server changes this hash, so it can be used to skip contacts which did
+	 * not change since the last sync. The hash is sent unencrypted with the
+	 * contact ({@link ContactConstants#HASH}).
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param pwdSaltBase64
+	 * @return SHA-256 hash
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 *             if the text data could not be serialized
+	 */
+	public byte[] computeContentHash(ContactCodecContext context,
+			String pwdSaltBase64) throws NoSuchAlgorithmException,
+			IOException {
+		return computeContentHash(context, pwdSaltBase64, false);
+	}
+
+	/**
+	 * Computes the hash which identifies this version as the base of a delta
+	 * ({@link ContactConstants#DELTA_BASE}). It covers the same content as
+	 * {@link #computeContentHash(ContactCodecContext, String)}, it is only
+	 * sent encrypted.
+	 * 
+	 * @param context
+	 *            context of the current thread, its text buffer is used.
+	 * @return SHA-256 hash
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 *             if the text data could not be serialized
+	 */
+	public byte[] computeDeltaBase(ContactCodecContext context)
+			throws NoSuchAlgorithmException, IOException {
+		return computeContentHash(context, null, true);
+	}
+
+	private byte[] computeContentHash(ContactCodecContext context,
+			String pwdSaltBase64, boolean deltaBase)
+			throws NoSuchAlgorithmException, IOException {
+		ExposedByteArrayOutputStream textData = context.getTextBuffer();
+		writeJson(RequestGenerator.getJsonFactory(), textData);
+		HashBuilder hashValue = context.getHashBuilder();
+		if (deltaBase) {
+			hashValue.append(ContactConstants.DELTA_BASE);
+		} else {
+			hashValue.append(pwdSaltBase64);
+		}
+		hashValue.append(textData.getBuffer(), 0, textData.size());
+		byte[] photoRef = computePhotoRef(context);
+		if (photoRef != null) {
+			hashValue.append(photoRef, 0, photoRef.length);
+		}
+		return hashValue.digest();
+	}
+
+	/**
+	 * Reads the content hash of an encoded contact (
+	 * {@link #computeContentHash(ContactCodecContext, String)}), the hash is
+	 * not encrypted.
+	 * 
+	 * @param values
+	 *            values of the row
+	 * @return copy of the hash or null if the row has no hash
+	 */
+	public static byte[] getHash(RowValues values) {
+		byte[] data = values.getArray(ContactConstants.HASH);
+		if (data == null) {
+			return null;
+		}
+		byte[] hash = new byte[values.getLength(ContactConstants.HASH)];
+		System.arraycopy(data, values.getOffset(ContactConstants.HASH), hash,
+				0, hash.length);
 		return hash;
 	}
 
+	/**
+	 * Computes the reference of the photo: a HMAC-SHA256 of the photo with a
+	 * key derived from the key of the context, so equal photos have the same
+	 * reference without disclosing the photo.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @return reference or null if the contact has no photo
+	 */
+	public byte[] computePhotoRef(ContactCodecContext context) {
+		byte[] currPhoto = getPhoto();
+		return currPhoto != null ? computePhotoRef(context, currPhoto) : null;
+	}
+
+	private static byte[] computePhotoRef(ContactCodecContext context,
+			byte[] photo) {
+		Mac mac = context.getPhotoRefMac();
+		mac.update(photo, 0, photo.length);
+		byte[] ref = new byte[mac.getMacSize()];
+		mac.doFinal(ref, 0);
+		return ref;
+	}
+
 	private static void writeField(JsonGenerator g, String fielName,
 			String field) throws IOException {
 		if (field != null && field.length() > 0) {
@@ -574,9 +938,8 @@ public final class RawContact {
 		}
 	}
 
-	private static void writeList(StringBuilder hashValue, JsonGenerator g,
-			String key, List<? extends IListRawData<?>> list, boolean hashRel)
-			throws IOException {
+	private static void writeList(JsonGenerator g, String key,
+			List<? extends IListRawData<?>> list) throws IOException {
 		if (list != null) {
 			g.writeArrayFieldStart(key);
 			for (IListRawData<?> listItem : list) {
@@ -592,12 +955,6 @@ public final class RawContact {
 					g.writeBooleanField(ContactConstants.PRIMARY, true);
 				}
 				g.writeEndObject();
-
-				if (hashRel) {
-					hashValue.append(listItem.getData());
-					hashValue.append(':');
-					hashValue.append(listItem.getType().getVal());
-				}
 			}
 			g.writeEndArray();
 		}
@@ -616,7 +973,7 @@ public final class RawContact {
 		}
 	}
 
-	private static void writeAddress(StringBuilder hashValue, JsonGenerator g,
+	private static void writeAddress(JsonGenerator g,
 			List<RawAddressData> list) throws IOException {
 		if (list != null) {
 			g.writeArrayFieldStart(ContactConstants.STRUCTUREDPOSTAL);
@@ -642,10 +999,6 @@ public final class RawContact {
 					g.writeBooleanField(ContactConstants.PRIMARY, true);
 				}
 				g.writeEndObject();
-
-				hashValue.append(listItem.getStreet());
-				hashValue.append(':');
-				hashValue.append(listItem.getType().getVal());
 			}
 			g.writeEndArray();
 		}
@@ -669,15 +1022,85 @@ public final class RawContact {
 	public static RawContact valueOf(String rowId,
 			Map<Byte, ByteBuffer> values, Key privateKey)
 			throws InvalidKeyException {
+		ContactCodecContext context = new ContactCodecContext(privateKey);
+		try {
+			return valueOf(rowId, values, context);
+		} finally {
+			context.close();
+		}
+	}
+
+	/**
+	 * Creates and returns an instance of the RawContact from encrypted data
+	 * and reuse the cipher and key of the context.
+	 * 
+	 * @param rowId
+	 * @param values
+	 * @param context
+	 *            context of the current thread
+	 * @return null if the data could not be parsed
+	 * @throws InvalidKeyException
+	 *             if the data could not be decrypted
+	 */
+	public static RawContact valueOf(String rowId,
+			Map<Byte, ByteBuffer> values, ContactCodecContext context)
+			throws InvalidKeyException {
+		return valueOf(rowId, RowValues.valueOf(values), context);
+	}
+
+	/**
+	 * Creates and returns an instance of the RawContact from encrypted data
+	 * without copying the values.
+	 * 
+	 * @param rowId
+	 * @param values
+	 *            values of the row, can be reused after this call
+	 * @param context
+	 *            context of the current thread
+	 * @return null if the data could not be parsed
+	 * @throws InvalidKeyException
+	 *             if the data could not be decrypted
+	 */
+	public static RawContact valueOf(String rowId, RowValues values,
+			ContactCodecContext context) throws InvalidKeyException {
+		return valueOf(rowId, values, context, null);
+	}
+
+	/**
+	 * Creates and returns an instance of the RawContact from encrypted data
+	 * without copying the values. If the row contains only the changes since
+	 * the previous version ({@link ContactConstants#TEXTDELTA}) they are
+	 * merged into the base contact. The base contact has to be the version on
+	 * which the delta is based ({@link ContactConstants#DELTA_BASE}).
+	 * 
+	 * @param rowId
+	 * @param values
+	 *            values of the row, can be reused after this call
+	 * @param context
+	 *            context of the current thread
+	 * @param base
+	 *            previous version of the contact, is not changed. Its photo
+	 *            is used if the photo is unchanged. If null the base is read
+	 *            from the synced contact cache of the context (
+	 *            {@link ContactCodecContext#setSyncedContactCache(SyncedContactCache)}
+	 *            ).
+	 * @return null if the data could not be parsed or a delta could not be
+	 *         merged because the base contact is missing or is a different
+	 *         version.
+	 * @throws InvalidKeyException
+	 *             if the data could not be decrypted
+	 */
+	public static RawContact valueOf(String rowId, RowValues values,
+			ContactCodecContext context, RawContact base)
+			throws InvalidKeyException {
 		try {
 			String serverContactId = null;
 			long rawContactId = -1;
-			if (values.containsKey(ContactConstants.SERVERROW_ID)) {
-				serverContactId = readRawString(values
-						.get(ContactConstants.SERVERROW_ID));
+			if (values.contains(ContactConstants.SERVERROW_ID)) {
+				serverContactId = values
+						.getString(ContactConstants.SERVERROW_ID);
 			}
-			String lastModStr = readRawString(values
-					.get(ContactConstants.MODIFIED));
+			String lastModStr = values.getString(ContactConstants.MODIFIED);
 			Date lastModified = null;
 			if (lastModStr != null) {
 				lastModified = new Date(Long.parseLong(lastModStr));
@@ -692,188 +1115,248 @@ public final class RawContact {
 				throw new IllegalArgumentException("Missing RowId in data");
 			}
 
-			AEADBlockCipher cipher = CryptoHelper.getCipher();
-			final boolean deleted = values
-					.containsKey(ContactConstants.DELETED);
-
-			final String textData = CryptoHelper.decodeStringValue(
-					ContactConstants.TEXTDATA, values, cipher, privateKey);
+			final boolean deleted = values.contains(ContactConstants.DELETED);
+
+			ExposedByteArrayOutputStream textData = context.getTextBuffer();
+			int textLen = CryptoHelper.decodeValue(ContactConstants.TEXTDATA,
+					values, context, textData);
+			Set<ContactField> deltaSections = null;
+			RawContact deltaBase = base;
+			if (textLen < 0 && values.contains(ContactConstants.TEXTDELTA)) {
+				SyncedContactCache cache = context.getSyncedContactCache();
+				if (deltaBase == null && cache != null) {
+					deltaBase = cache.getSyncedContact(rowId);
+				}
+				if (deltaBase == null) {
+					LOG.warn("No base contact for delta of row with Id:"
+							+ rowId);
+					return null;
+				}
+				textLen = CryptoHelper.decodeValue(ContactConstants.TEXTDELTA,
+						values, context, textData);
+				deltaSections = EnumSet.noneOf(ContactField.class);
+			}
 
-			if (textData == null && !deleted) {
+			if (textLen < 0 && !deleted) {
 				LOG.error("No textdata found for row with Id:" + rowId);
 				return null;
 			}
 
-			String fullName = null;
-			String firstName = null;
-			String lastName = null;
-			String middleName = null;
-			String prefixName = null;
-			String suffixName = null;
-			String phonecticFirst = null;
-			String phonecticMiddle = null;
-			String phonecticLast = null;
-			List<String> groupSourceIds = null;
-			String note = null;
-			List<ListRawData<PhoneType>> phones = null;
-			List<ListRawData<EmailType>> emails = null;
-			List<ListRawData<WebsiteType>> websites = null;
-			List<ListRawData<EventType>> events = null;
-			List<ListRawData<RelationType>> relations = null;
-			List<ListRawData<SipAddressType>> sipaddresses = null;
-			List<ListRawData<NicknameType>> nicknames = null;
-			List<RawAddressData> addresses = null;
-			List<RawImData> imAddresses = null;
-			RawOrganizationData organization = null;
-			boolean photoSuperPrimary = false;
-			boolean starred = false;
-			String customRingtone = null;
-			boolean sendToVoiceMail = false;
-
-			if (!SyncDataHelper.isEmpty(textData)) {
-				JsonFactory fac = new JsonFactory();
-				JsonParser jp = fac.createParser(textData);
-				jp.nextToken();
-				while (jp.nextToken() != JsonToken.END_OBJECT) {
-					String fieldname = jp.getCurrentName();
-					// move to value, or START_OBJECT/START_ARRAY
-					jp.nextToken();
-					if (ContactConstants.STRUCTUREDNAME.equals(fieldname)) {
-						while (jp.nextToken() != JsonToken.END_OBJECT) {
-							String namefield = jp.getCurrentName();
-							// move to value
-							if (jp.nextToken() == null) {
-								throw new JsonParseException(
-										"Invalid JSON-Structure. End of Object missing.",
-										jp.getCurrentLocation());
-							}
-							if (ContactConstants.DISPLAY_NAME.equals(namefield)) {
-								fullName = jp.getValueAsString();
-							} else if (ContactConstants.FAMILY_NAME
-									.equals(namefield)) {
-								lastName = jp.getValueAsString();
-							} else if (ContactConstants.GIVEN_NAME
-									.equals(namefield)) {
-								firstName = jp.getValueAsString();
-							} else if (ContactConstants.MIDDLE_NAME
-									.equals(namefield)) {
-								middleName = jp.getValueAsString();
-							} else if (ContactConstants.SUFFIX_NAME
-									.equals(namefield)) {
-								suffixName = jp.getValueAsString();
-							} else if (ContactConstants.PREFIX_NAME
-									.equals(namefield)) {
-								prefixName = jp.getValueAsString();
-							} else if (ContactConstants.PHONETIC_FAMILY
-									.equals(namefield)) {
-								phonecticLast = jp.getValueAsString();
-							} else if (ContactConstants.PHONETIC_GIVEN
-									.equals(namefield)) {
-								phonecticFirst = jp.getValueAsString();
-							} else if (ContactConstants.PHONETIC_MIDDLE
-									.equals(namefield)) {
-								phonecticMiddle = jp.getValueAsString();
-							} else {
-								LOG.error("Unrecognized structurednamefield for row with Id:"
-										+ rowId + " Fieldname:" + fieldname);
-								break;
-							}
-						}
-					} else if (ContactConstants.STRUCTUREDPOSTAL
-							.equals(fieldname)) {
-						addresses = readAddressList(rowId, addresses, jp);
-					} else if (ContactConstants.PHONE.equals(fieldname)) {
-						phones = readJsonList(rowId, phones, jp, fieldname,
-								PhoneType.TYPE_OTHER, PhoneType.class);
-					} else if (ContactConstants.EMAIL.equals(fieldname)) {
-						emails = readJsonList(rowId, emails, jp, fieldname,
-								EmailType.TYPE_OTHER, EmailType.class);
-					} else if (ContactConstants.WEBSITE.equals(fieldname)) {
-						websites = readJsonList(rowId, websites, jp, fieldname,
-								WebsiteType.TYPE_OTHER, WebsiteType.class);
-					} else if (ContactConstants.EVENT.equals(fieldname)) {
-						events = readJsonList(rowId, events, jp, fieldname,
-								EventType.TYPE_OTHER, EventType.class);
-					} else if (ContactConstants.RELATION.equals(fieldname)) {
-						relations = readJsonList(rowId, relations, jp,
-								fieldname, RelationType.TYPE_CUSTOM,
-								RelationType.class);
-					} else if (ContactConstants.SIPADDRESS.equals(fieldname)) {
-						sipaddresses = readJsonList(rowId, sipaddresses, jp,
-								fieldname, SipAddressType.TYPE_OTHER,
-								SipAddressType.class);
-					} else if (ContactConstants.NICKNAME.equals(fieldname)) {
-						nicknames = readJsonList(rowId, nicknames, jp,
-								fieldname, NicknameType.TYPE_DEFAULT,
-								NicknameType.class);
-					} else if (ContactConstants.IM.equals(fieldname)) {
-						imAddresses = readImList(rowId, imAddresses, jp);
-					} else if (ContactConstants.NOTE.equals(fieldname)) {
-						note = jp.getValueAsString();
-					} else if (ContactConstants.GROUPMEMBERSHIP
-							.equals(fieldname)) {
-						while (jp.nextToken() != JsonToken.END_ARRAY) {
-							String groupSourceId = jp.getValueAsString();
-							if (groupSourceIds == null) {
-								groupSourceIds = new ArrayList<String>();
-							}
-							groupSourceIds.add(groupSourceId);
-						}
-					} else if (ContactConstants.ORGANIZATION.equals(fieldname)) {
-						organization = readOrg(rowId, jp);
-					} else if (ContactConstants.PHOTO_SUPERPRIMARY
-							.equals(fieldname)) {
-						photoSuperPrimary = jp.getValueAsBoolean();
-					} else if (ContactConstants.STARRED.equals(fieldname)) {
-						starred = jp.getValueAsBoolean();
-					} else if (ContactConstants.SEND_TO_VOICE_MAIL
-							.equals(fieldname)) {
-						sendToVoiceMail = jp.getValueAsBoolean();
-					} else if (ContactConstants.DROID_CUSTOM_RINGTONE
-							.equals(fieldname)) {
-						customRingtone = jp.getValueAsString();
-					} else {
-						LOG.error("Unrecognized field for row with Id:" + rowId
-								+ " Fieldname:" + fieldname);
-					}
+			ContactTextFields text = new ContactTextFields();
+			if (textLen > 0) {
+				byte[] textBuffer = textData.getBuffer();
+				int len = textLen;
+				if (TextCompression.isCompressed(textBuffer, len)) {
+					ExposedByteArrayOutputStream plain = TextCompression
+							.decompress(context, textBuffer, len);
+					textBuffer = plain.getBuffer();
+					len = plain.size();
+				}
+				if (textBuffer[0] == BinaryContactFormat.FORMAT_MARKER) {
+					BinaryContactFormat.read(textBuffer, 0, len, text,
+							context);
+				} else {
+					JsonParser jp = context.getJsonFactory(textBuffer, 0, len)
+							.createParser(textBuffer, 0, len);
+					readJson(rowId, jp, context, text, deltaSections);
+					jp.close();
 				}
-				jp.close();
+			}
+			if (deltaSections != null) {
+				if (!Arrays.equals(text.deltaBase,
+						deltaBase.computeDeltaBase(context))) {
+					LOG.warn("Delta of row with Id:" + rowId
+							+ " was created for another base version.");
+					return null;
+				}
+				ContactTextFields merged = ContactTextFields.valueOf(deltaBase);
+				merged.merge(text, deltaSections);
+				text = merged;
 			}
 
-			final byte[] photo = CryptoHelper.decodeValue(
-					ContactConstants.PHOTO, values, cipher, privateKey);
+			byte[] photo = null;
+			EncryptedValue encPhoto = null;
+			byte[] photoRef = null;
+			if (context.isDecoded(ContactField.PHOTO)) {
+				photoRef = CryptoHelper.decodeValue(
+						ContactConstants.PHOTO_REF, values, context);
+				PhotoCache cache = context.getPhotoCache();
+				boolean unchangedPhoto = photoRef != null
+						&& !values.contains(ContactConstants.PHOTO);
+				if (unchangedPhoto && deltaBase != null) {
+					photo = deltaBase.getPhoto();
+				} else if (unchangedPhoto && cache != null) {
+					photo = cache.getPhoto(photoRef);
+				} else if (context.isLazyPhoto()) {
+					if (values.contains(ContactConstants.PHOTO)) {
+						// Values can be reused after this call: copy
+						encPhoto = new EncryptedValue(ContactConstants.PHOTO,
+								values, context);
+					}
+				} else {
+					photo = CryptoHelper.decodeValue(ContactConstants.PHOTO,
+							values, context);
+				}
+			}
 
-			return new RawContact(fullName, firstName, lastName, middleName,
-					prefixName, suffixName, phonecticFirst, phonecticMiddle,
-					phonecticLast, phones, emails, websites, addresses, events,
-					relations, sipaddresses, nicknames, imAddresses, note,
-					organization, photo, photoSuperPrimary, groupSourceIds,
-					null, starred, customRingtone, sendToVoiceMail,
+			RawContact contact = new RawContact(text.fullName,
+					text.firstName, text.lastName, text.middleName,
+					text.prefixName, text.suffixName, text.phonecticFirst,
+					text.phonecticMiddle, text.phonecticLast, text.phones,
+					text.emails, text.websites, text.addresses, text.events,
+					text.relations, text.sipaddresses, text.nicknames,
+					text.imAddresses, text.note, text.organization, photo,
+					text.photoSuperPrimary, text.groupSourceIds, null,
+					text.starred, text.customRingtone, text.sendToVoiceMail,
 					lastModified, deleted, serverContactId, rawContactId,
 					false, -1);
+			contact.encryptedPhoto = encPhoto;
+			contact.photoRef = photoRef;
+			return contact;
 		} catch (InvalidCipherTextException ex) {
 			throw new InvalidKeyException("Invalid key detected.", ex);
 		} catch (final IOException ex) {
 			LOG.info("Error parsing contact data. Reason:" + ex.toString(), ex);
 		} catch (IllegalArgumentException ex) {
 			LOG.warn("Error parsing contact data. Reason:" + ex.toString(), ex);
+		} catch (DataFormatException ex) {
+			LOG.warn("Error parsing contact data. Reason:" + ex.toString(), ex);
+		} catch (NoSuchAlgorithmException ex) {
+			LOG.warn("Error checking the base of a delta. Reason:"
+					+ ex.toString(), ex);
 		}
 
 		return null;
 	}
 
-	private static String readRawString(ByteBuffer src)
-			throws UnsupportedEncodingException {
-		if (src != null) {
-			int len = src.remaining();
-			if (len >= 0) {
-				byte[] output = new byte[len];
-				src.get(output, 0, len);
-				// Android has UTF-8 as default
-				return new String(output, SyncDataHelper.DEFAULT_CHARSET_NAME);
+	/**
+	 * Reads the text data in JSON format.
+	 * 
+	 * @param sections
+	 *            receives the sections of the text data, can be null.
+	 */
+	private static void readJson(String rowId, JsonParser jp,
+			ContactCodecContext context, ContactTextFields text,
+			Set<ContactField> sections) throws IOException {
+		jp.nextToken();
+		while (jp.nextToken() != JsonToken.END_OBJECT) {
+			String fieldname = jp.getCurrentName();
+			// move to value, or START_OBJECT/START_ARRAY
+			JsonToken token = jp.nextToken();
+			ContactField field = ContactField.fromJsonField(fieldname);
+			if (field != null && !context.isDecoded(field)) {
+				// Not requested: skip without parsing the values
+				jp.skipChildren();
+				continue;
+			}
+			if (field != null && sections != null) {
+				sections.add(field);
+			}
+			if (token == JsonToken.VALUE_NULL) {
+				// Removed section of a delta
+				continue;
+			}
+			if (ContactConstants.STRUCTUREDNAME.equals(fieldname)) {
+				while (jp.nextToken() != JsonToken.END_OBJECT) {
+					String namefield = jp.getCurrentName();
+					// move to value
+					if (jp.nextToken() == null) {
+						throw new JsonParseException(
+								"Invalid JSON-Structure. End of Object missing.",
+								jp.getCurrentLocation());
+					}
+					if (ContactConstants.DISPLAY_NAME.equals(namefield)) {
+						text.fullName = jp.getValueAsString();
+					} else if (ContactConstants.FAMILY_NAME
+							.equals(namefield)) {
+						text.lastName = jp.getValueAsString();
+					} else if (ContactConstants.GIVEN_NAME
+							.equals(namefield)) {
+						text.firstName = jp.getValueAsString();
+					} else if (ContactConstants.MIDDLE_NAME
+							.equals(namefield)) {
+						text.middleName = jp.getValueAsString();
+					} else if (ContactConstants.SUFFIX_NAME
+							.equals(namefield)) {
+						text.suffixName = jp.getValueAsString();
+					} else if (ContactConstants.PREFIX_NAME
+							.equals(namefield)) {
+						text.prefixName = jp.getValueAsString();
+					} else if (ContactConstants.PHONETIC_FAMILY
+							.equals(namefield)) {
+						text.phonecticLast = jp.getValueAsString();
+					} else if (ContactConstants.PHONETIC_GIVEN
+							.equals(namefield)) {
+						text.phonecticFirst = jp.getValueAsString();
+					} else if (ContactConstants.PHONETIC_MIDDLE
+							.equals(namefield)) {
+						text.phonecticMiddle = jp.getValueAsString();
+					} else {
+						LOG.error("Unrecognized structurednamefield for row with Id:"
+								+ rowId + " Fieldname:" + fieldname);
+						break;
+					}
+				}
+			} else if (ContactConstants.STRUCTUREDPOSTAL
+					.equals(fieldname)) {
+				text.addresses = readAddressList(rowId, text.addresses, jp);
+			} else if (ContactConstants.PHONE.equals(fieldname)) {
+				text.phones = readJsonList(rowId, text.phones, jp, fieldname,
+						PhoneType.TYPE_OTHER, PhoneType.class);
+			} else if (ContactConstants.EMAIL.equals(fieldname)) {
+				text.emails = readJsonList(rowId, text.emails, jp, fieldname,
+						EmailType.TYPE_OTHER, EmailType.class);
+			} else if (ContactConstants.WEBSITE.equals(fieldname)) {
+				text.websites = readJsonList(rowId, text.websites, jp,
+						fieldname, WebsiteType.TYPE_OTHER, WebsiteType.class);
+			} else if (ContactConstants.EVENT.equals(fieldname)) {
+				text.events = readJsonList(rowId, text.events, jp, fieldname,
+						EventType.TYPE_OTHER, EventType.class);
+			} else if (ContactConstants.RELATION.equals(fieldname)) {
+				text.relations = readJsonList(rowId, text.relations, jp,
+						fieldname, RelationType.TYPE_CUSTOM,
+						RelationType.class);
+			} else if (ContactConstants.SIPADDRESS.equals(fieldname)) {
+				text.sipaddresses = readJsonList(rowId, text.sipaddresses, jp,
+						fieldname, SipAddressType.TYPE_OTHER,
+						SipAddressType.class);
+			} else if (ContactConstants.NICKNAME.equals(fieldname)) {
+				text.nicknames = readJsonList(rowId, text.nicknames, jp,
+						fieldname, NicknameType.TYPE_DEFAULT,
+						NicknameType.class);
+			} else if (ContactConstants.IM.equals(fieldname)) {
+				text.imAddresses = readImList(rowId, text.imAddresses, jp);
+			} else if (ContactConstants.NOTE.equals(fieldname)) {
+				text.note = jp.getValueAsString();
+			} else if (ContactConstants.DELTA_BASE.equals(fieldname)) {
+				text.deltaBase = jp.getBinaryValue();
+			} else if (ContactConstants.GROUPMEMBERSHIP
+					.equals(fieldname)) {
+				while (jp.nextToken() != JsonToken.END_ARRAY) {
+					String groupSourceId = jp.getValueAsString();
+					if (text.groupSourceIds == null) {
+						text.groupSourceIds = new ArrayList<String>();
+					}
+					text.groupSourceIds.add(groupSourceId);
+				}
+			} else if (ContactConstants.ORGANIZATION.equals(fieldname)) {
+				text.organization = readOrg(rowId, jp);
+			} else if (ContactConstants.PHOTO_SUPERPRIMARY
+					.equals(fieldname)) {
+				text.photoSuperPrimary = jp.getValueAsBoolean();
+			} else if (ContactConstants.STARRED.equals(fieldname)) {
+				text.starred = jp.getValueAsBoolean();
+			} else if (ContactConstants.SEND_TO_VOICE_MAIL
+					.equals(fieldname)) {
+				text.sendToVoiceMail = jp.getValueAsBoolean();
+			} else if (ContactConstants.DROID_CUSTOM_RINGTONE
+					.equals(fieldname)) {
+				text.customRingtone = jp.getValueAsString();
+			} else {
+				LOG.error("Unrecognized field for row with Id:" + rowId
+						+ " Fieldname:" + fieldname);
 			}
 		}
-		return null;
 	}
 
 	private static RawOrganizationData readOrg(String rowId, JsonParser jp)
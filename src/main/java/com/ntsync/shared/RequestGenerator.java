@@ -18,22 +18,35 @@ package com.ntsync.shared;
  * <http://www.gnu.org/licenses/gpl-3.0.html>. 
  */
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.crypto.SecretKey;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.InvalidCipherTextException;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -80,22 +93,104 @@ public final class RequestGenerator {
 
 	public static final String FIELD_SOFTWARE = "software";
 
+	/**
+	 * Client: cipher suites which can be decoded by the client. Server
+	 * config: cipher suites which can be decoded by all clients of the
+	 * account, values of a request are encrypted with the fastest of them.
+	 */
+	public static final String PARAM_CIPHER_SUITES = "cipherSuites";
+
+	/**
+	 * Client: formats of the contact text data which can be decoded by the
+	 * client. Server config: formats which can be decoded by all clients of
+	 * the account.
+	 */
+	public static final String PARAM_TEXT_FORMATS = "textFormats";
+
+	/**
+	 * Client: true if the client can decode compressed text data. Server
+	 * config: true if all clients of the account can decode it.
+	 */
+	public static final String PARAM_TEXT_COMPRESSION = "textCompression";
+
 	private static final int VERSION_LENGTH = 2;
 	private static final int HEADER_LENGTH = 4;
 
 	public static final short PROT_VERSION = 1;
 
+	/**
+	 * Version of a frame whose header is encoded with the binary JSON factory
+	 * of the request.
+	 */
+	public static final short PROT_VERSION_BINARY_JSON = 2;
+
+	/** Server config: true if the server accepts binary JSON requests */
+	public static final String PARAM_BINARY_JSON = "binaryJson";
+
+	/**
+	 * Server config: true if the server accepts rows in envelopes. Client:
+	 * true if the client can decode envelopes. An envelope saves only the IV
+	 * of every value, it is not a single authenticated stream: every segment
+	 * is encrypted with its own nonce and has its own MAC, so a value can be
+	 * decoded in place on its own (e.g. a photo on first access). A removed
+	 * or reordered row changes the nonces of the following rows and fails
+	 * their MAC. The end of an envelope ({@link ContactConstants#ENVELOPE_END}
+	 * ) authenticates the count of its rows and segments, so removed rows or
+	 * segments at the end are counted as skipped rows.
+	 */
+	public static final String PARAM_ENVELOPE = "envelope";
+
+	/**
+	 * Server config: true if the server keeps the last photo of a contact
+	 * when a row contains only the photo reference.
+	 */
+	public static final String PARAM_PHOTO_REF = "photoRef";
+
+	/**
+	 * Server config: true if the server accepts contacts which contain only
+	 * the changes since the previous version (
+	 * {@link ContactConstants#TEXTDELTA}). Client: true if the client keeps the synced contacts and can decode
+	 * deltas.
+	 */
+	public static final String PARAM_TEXT_DELTA = "textDelta";
+
 	private static final int HEADER_POS = 6;
 
 	private static final int ROWID_LEN = 4;
 
 	private static final int VALUE_LEN = 4;
 
+	private static final int CONTAINER_HEADER_LEN = 5;
+
+	/** Count of rows which are decoded/encoded together in one task */
+	private static final int ROWS_PER_TASK = 32;
+
+	/** Encoded row of a contact which did not change since the last sync */
+	private static final byte[] UNCHANGED_ROW = new byte[0];
+
+	/**
+	 * Rows are collected up to this size before a container is written in
+	 * {@link #writeServerRequest}.
+	 */
+	private static final int STREAM_CONTAINER_SIZE = 64 * 1024;
+
+	/** Initial size of the buffer for the values of a row in a stream */
+	private static final int ROW_BUFFER_SIZE = 4 * 1024;
+
 	private static final Logger LOG = LoggerFactory
 			.getLogger(RequestGenerator.class);
 
 	public static final String PARAM_SYNC_ANCHOR = "syncanchor";
 
+	/** Maximal count of rows in a response of the server */
+	public static final String PARAM_PAGE_SIZE = "pageSize";
+
+	/**
+	 * Token of the server for the next page of a paged sync, see
+	 * {@link SyncAnchor#getContinuation()}.
+	 */
+	public static final String PARAM_CONTINUATION = "continuation";
+
 	private static final JsonFactory JSONFACTORY = new JsonFactory();
 
 	private RequestGenerator() {
@@ -110,6 +205,80 @@ public final class RequestGenerator {
 		return JSONFACTORY;
 	}
 
+	/**
+	 * 
+	 * @return format of the text data for a request. Binary JSON if the
+	 *         client has a factory for it, otherwise the binary format if all
+	 *         clients can decode it.
+	 */
+	private static TextFormat getRequestTextFormat(Restrictions restr,
+			JsonFactory binaryJsonFactory) {
+		if (restr != null && restr.isBinaryJsonSupported()
+				&& binaryJsonFactory != null) {
+			return TextFormat.BINARY_JSON;
+		}
+		if (restr != null && restr.isBinaryTextSupported()) {
+			return TextFormat.BINARY;
+		}
+		return TextFormat.JSON;
+	}
+
+	/**
+	 * 
+	 * @return cipher suite for the values of a request, which can be decoded
+	 *         by all clients.
+	 */
+	private static CipherSuite getRequestCipherSuite(Restrictions restr) {
+		if (restr != null && restr.isGcmSupported()) {
+			return CipherSuite.GCM;
+		}
+		return CipherSuite.CCM;
+	}
+
+	/**
+	 * 
+	 * @return context for encoding the rows of a request
+	 */
+	private static ContactCodecContext createRequestContext(PreparedKey key,
+			Restrictions restr, JsonFactory binaryJsonFactory) {
+		ContactCodecContext context = new ContactCodecContext(key,
+				getRequestCipherSuite(restr));
+		context.setBinaryJsonFactory(binaryJsonFactory);
+		context.setTextFormat(getRequestTextFormat(restr, binaryJsonFactory));
+		context.setCompressText(restr != null
+				&& restr.isTextCompressionSupported());
+		return context;
+	}
+
+	/**
+	 * 
+	 * @return true if the rows of a request are encoded in envelopes
+	 */
+	private static boolean isEnvelopeRequest(Restrictions restr) {
+		return restr != null && restr.isEnvelopeSupported();
+	}
+
+	private static short getProtVersion(TextFormat textFormat) {
+		return textFormat == TextFormat.BINARY_JSON ? PROT_VERSION_BINARY_JSON
+				: PROT_VERSION;
+	}
+
+	/**
+	 * 
+	 * @return factory for the header of a frame, null if the version is not
+	 *         supported.
+	 */
+	private static JsonFactory getHeaderFactory(short version,
+			JsonFactory binaryJsonFactory) {
+		if (version == PROT_VERSION) {
+			return JSONFACTORY;
+		}
+		if (version == PROT_VERSION_BINARY_JSON) {
+			return binaryJsonFactory;
+		}
+		return null;
+	}
+
 	/**
 	 * Generate Request-Data for sync-Request
 	 * 
@@ -131,102 +300,507 @@ public final class RequestGenerator {
 			String pwdSaltHexStr, Map<Long, String> newIdMap,
 			SyncPrepErrorStatistic prepError, Restrictions restr,
 			boolean explizitPhotoSave) throws HeaderCreateException {
-		int totContactBufLen = 0;
-		int totGroupBufLen = 0;
+		return prepareServerRequest(syncAnchor, dirtyContacts, dirtyGroups,
+				key, pkgVersion, clientId, pwdSaltHexStr, newIdMap, prepError,
+				restr, explizitPhotoSave, new ContactEncoder(pwdSaltHexStr,
+						null), null);
+	}
 
-		List<byte[]> contacts = new ArrayList<byte[]>();
+	/**
+	 * Generate Request-Data for sync-Request with optional inputs. With an
+	 * executor the rows are encoded in batches in parallel, the order of the
+	 * rows in the request is the same as in the lists.
+	 * 
+	 * @param options
+	 *            optional inputs, null to create the same request as
+	 *            {@link #prepareServerRequest(SyncAnchor, List, List, SecretKey, String, String, String, Map, SyncPrepErrorStatistic, Restrictions, boolean)}
+	 *            .
+	 * @throws HeaderCreateException
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting for
+	 *             the encoded rows.
+	 * @see SyncOptions
+	 */
+	public static byte[] prepareServerRequest(SyncAnchor syncAnchor,
+			List<RawContact> dirtyContacts, List<ContactGroup> dirtyGroups,
+			SecretKey key, String pkgVersion, String clientId,
+			String pwdSaltHexStr, Map<Long, String> newIdMap,
+			SyncPrepErrorStatistic prepError, Restrictions restr,
+			boolean explizitPhotoSave, SyncOptions options)
+			throws HeaderCreateException, InterruptedException {
+		if (options == null) {
+			return prepareServerRequest(syncAnchor, dirtyContacts,
+					dirtyGroups, key, pkgVersion, clientId, pwdSaltHexStr,
+					newIdMap, prepError, restr, explizitPhotoSave);
+		}
+		ContactEncoder contactEncoder = createContactEncoder(pwdSaltHexStr,
+				restr, options);
+		JsonFactory binaryJsonFactory = options.getBinaryJsonFactory();
+		Executor executor = options.getExecutor();
+		if (executor == null) {
+			return prepareServerRequest(syncAnchor, dirtyContacts,
+					dirtyGroups, key, pkgVersion, clientId, pwdSaltHexStr,
+					newIdMap, prepError, restr, explizitPhotoSave,
+					contactEncoder, binaryJsonFactory);
+		}
+		// Shared by all threads, every batch has its own context
+		PreparedKey preparedKey = new PreparedKey(key);
+		List<EncodedBatch> contacts = null;
 		if (dirtyContacts != null) {
-			final Date lastSync = syncAnchor
-					.getAnchorDate(ContactConstants.TYPE_CONTACT);
+			setDefaultLastModified(syncAnchor, dirtyContacts);
+			contacts = encodeRows(dirtyContacts, contactEncoder, preparedKey,
+					restr, binaryJsonFactory, executor);
+		}
+		List<EncodedBatch> contactGroups = null;
+		if (dirtyGroups != null) {
+			setDefaultGroupLastModified(syncAnchor, dirtyGroups);
+			contactGroups = encodeRows(dirtyGroups, new GroupEncoder(
+					pwdSaltHexStr), preparedKey, restr, binaryJsonFactory,
+					executor);
+		}
+
+		boolean syncOnlyGroup = dirtyContacts == null;
+		short version = getProtVersion(getRequestTextFormat(restr,
+				binaryJsonFactory));
+		byte[] syncHeaderBuff = createHeader(version, syncAnchor, pkgVersion,
+				clientId, pwdSaltHexStr, newIdMap, syncOnlyGroup, restr,
+				explizitPhotoSave, binaryJsonFactory,
+				contactEncoder.isTextDeltaDecoded());
+
+		return createRequest(version, syncHeaderBuff, contacts,
+				contactGroups, prepError);
+	}
+
+	private static byte[] prepareServerRequest(SyncAnchor syncAnchor,
+			List<RawContact> dirtyContacts, List<ContactGroup> dirtyGroups,
+			SecretKey key, String pkgVersion, String clientId,
+			String pwdSaltHexStr, Map<Long, String> newIdMap,
+			SyncPrepErrorStatistic prepError, Restrictions restr,
+			boolean explizitPhotoSave, ContactEncoder contactEncoder,
+			JsonFactory binaryJsonFactory) throws HeaderCreateException {
+		boolean envelope = isEnvelopeRequest(restr);
+		ContactCodecContext context = createRequestContext(new PreparedKey(
+				key), restr, binaryJsonFactory);
+		List<EncodedBatch> contacts = null;
+		List<EncodedBatch> contactGroups = null;
+		try {
+			if (dirtyContacts != null) {
+				setDefaultLastModified(syncAnchor, dirtyContacts);
+				contacts = Collections.singletonList(encodeRows(
+						dirtyContacts, contactEncoder, context, envelope));
+			}
+			if (dirtyGroups != null) {
+				setDefaultGroupLastModified(syncAnchor, dirtyGroups);
+				contactGroups = Collections.singletonList(encodeRows(
+						dirtyGroups, new GroupEncoder(pwdSaltHexStr), context,
+						envelope));
+			}
+		} finally {
+			context.close();
+		}
+
+		boolean syncOnlyGroup = dirtyContacts == null;
+
+		// Prepare our POST data
+		short version = getProtVersion(getRequestTextFormat(restr,
+				binaryJsonFactory));
+		byte[] syncHeaderBuff = createHeader(version, syncAnchor, pkgVersion,
+				clientId, pwdSaltHexStr, newIdMap, syncOnlyGroup, restr,
+				explizitPhotoSave, binaryJsonFactory,
+				contactEncoder.isTextDeltaDecoded());
+
+		return createRequest(version, syncHeaderBuff, contacts,
+				contactGroups, prepError);
+	}
+
+	/**
+	 * 
+	 * @param options
+	 *            can be null.
+	 * @return encoder which omits the photos and sends deltas only if the
+	 *         server supports it.
+	 */
+	private static ContactEncoder createContactEncoder(String pwdSaltHexStr,
+			Restrictions restr, SyncOptions options) {
+		if (options == null) {
+			return new ContactEncoder(pwdSaltHexStr, null);
+		}
+		Map<Long, byte[]> photoRefs = null;
+		if (restr != null && restr.isPhotoRefSupported()) {
+			photoRefs = options.getSyncedPhotoRefs();
+		}
+		Map<Long, RawContact> syncedContacts = options.getSyncedContacts();
+		Map<Long, RawContact> deltaBases = null;
+		if (restr != null && restr.isTextDeltaSupported()) {
+			deltaBases = syncedContacts;
+		}
+		return new ContactEncoder(pwdSaltHexStr, photoRefs, deltaBases,
+				syncedContacts != null, options.getSyncedHashes());
+	}
+
+	private static void setDefaultLastModified(SyncAnchor syncAnchor,
+			List<RawContact> dirtyContacts) {
+		final Date lastSync = syncAnchor
+				.getAnchorDate(ContactConstants.TYPE_CONTACT);
+		if (lastSync != null) {
 			for (RawContact rawContact : dirtyContacts) {
-				if (lastSync != null && rawContact.getLastModified() == null) {
+				if (rawContact.getLastModified() == null) {
 					rawContact.setLastModified(lastSync);
 				}
-
-				byte[] buffer = rawContact.toDTO(key, pwdSaltHexStr);
-				if (buffer != null) {
-					contacts.add(buffer);
-					totContactBufLen += buffer.length;
-				} else if (prepError != null) {
-					prepError.incIgnoredRows();
-				}
 			}
 		}
-		List<byte[]> contactGroups = new ArrayList<byte[]>();
-		if (dirtyGroups != null) {
-			final Date lastSync = syncAnchor
-					.getAnchorDate(ContactConstants.TYPE_CONTACTGROUP);
+	}
+
+	private static void setDefaultGroupLastModified(SyncAnchor syncAnchor,
+			List<ContactGroup> dirtyGroups) {
+		final Date lastSync = syncAnchor
+				.getAnchorDate(ContactConstants.TYPE_CONTACTGROUP);
+		if (lastSync != null) {
 			for (ContactGroup group : dirtyGroups) {
-				if (lastSync != null && group.getLastModified() == null) {
+				if (group.getLastModified() == null) {
 					group.setLastModified(lastSync);
 				}
-
-				byte[] buffer = group.toDTO(key, pwdSaltHexStr);
-				if (buffer != null) {
-					contactGroups.add(buffer);
-					totGroupBufLen += buffer.length;
-				} else if (prepError != null) {
-					prepError.incIgnoredRows();
-				}
 			}
 		}
+	}
 
-		boolean syncOnlyGroup = dirtyContacts == null;
+	/**
+	 * 
+	 * @param envelope
+	 *            true to encode the rows in one envelope
+	 * @return serialized rows in the same order, null for a row which could
+	 *         not be serialized. If the end of the envelope could not be
+	 *         written all rows are null.
+	 */
+	private static <T> EncodedBatch encodeRows(List<T> rows,
+			RowEncoder<T> encoder, ContactCodecContext context,
+			boolean envelope) {
+		byte[] envelopeIv = envelope ? context.beginEnvelope() : null;
+		List<byte[]> encoded = new ArrayList<byte[]>(rows.size());
+		for (T row : rows) {
+			byte[] buffer = encoder.toDTO(row, context);
+			if (envelope) {
+				context.endEnvelopeRow(buffer != null
+						&& buffer != UNCHANGED_ROW);
+			}
+			encoded.add(buffer);
+		}
+		byte[] envelopeEnd = null;
+		if (envelope) {
+			try {
+				envelopeEnd = context.endEnvelope();
+			} catch (IOException ex) {
+				LOG.error("End of envelope could not be written.", ex);
+			} catch (InvalidCipherTextException ex) {
+				LOG.error("End of envelope could not be written.", ex);
+			}
+			if (envelopeEnd == null) {
+				Collections.fill(encoded, null);
+			}
+		}
+		return new EncodedBatch(envelopeIv, envelopeEnd, encoded);
+	}
 
-		// Prepare our POST data
-		byte[] syncHeaderBuff = createHeader(syncAnchor, pkgVersion, clientId,
-				pwdSaltHexStr, newIdMap, syncOnlyGroup, restr,
-				explizitPhotoSave);
+	/**
+	 * 
+	 * @param restr
+	 *            the formats of the request, every batch of a task is encoded
+	 *            in its own envelope if envelopes are supported.
+	 * @return encoded batches in the same order as the rows.
+	 */
+	private static <T> List<EncodedBatch> encodeRows(List<T> rows,
+			final RowEncoder<T> encoder, final PreparedKey key,
+			final Restrictions restr, final JsonFactory binaryJsonFactory,
+			Executor executor) throws InterruptedException {
+		final boolean envelope = isEnvelopeRequest(restr);
+		List<FutureTask<EncodedBatch>> tasks = new ArrayList<FutureTask<EncodedBatch>>();
+		final int rowCount = rows.size();
+		for (int start = 0; start < rowCount; start += ROWS_PER_TASK) {
+			final List<T> batch = rows.subList(start,
+					Math.min(rowCount, start + ROWS_PER_TASK));
+			FutureTask<EncodedBatch> task = new FutureTask<EncodedBatch>(
+					new Callable<EncodedBatch>() {
+						@Override
+						public EncodedBatch call() {
+							ContactCodecContext context = createRequestContext(
+									key, restr, binaryJsonFactory);
+							try {
+								return encodeRows(batch, encoder, context,
+										envelope);
+							} finally {
+								context.close();
+							}
+						}
+					});
+			tasks.add(task);
+			executor.execute(task);
+		}
 
-		final int containerHeaderLen = 5;
-		final boolean contactDataAvail = totContactBufLen > 0;
-		final boolean groupDataAvail = totGroupBufLen > 0;
+		List<EncodedBatch> encoded = new ArrayList<EncodedBatch>(
+				tasks.size());
+		try {
+			for (FutureTask<EncodedBatch> task : tasks) {
+				encoded.add(getTaskResult(task));
+			}
+		} finally {
+			for (FutureTask<EncodedBatch> task : tasks) {
+				task.cancel(false);
+			}
+		}
+		return encoded;
+	}
 
+	/**
+	 * Creates the request from the header and the serialized rows. The rows
+	 * of all batches without an envelope are written in one container, every
+	 * envelope is written in its own container.
+	 * 
+	 * @param contacts
+	 *            null-entries are counted as ignored rows
+	 * @param contactGroups
+	 *            null-entries are counted as ignored rows
+	 */
+	private static byte[] createRequest(short version, byte[] syncHeaderBuff,
+			List<EncodedBatch> contacts, List<EncodedBatch> contactGroups,
+			SyncPrepErrorStatistic prepError) {
 		int headerBuffLen = syncHeaderBuff.length;
 		byte[] totBuffer = new byte[VERSION_LENGTH + HEADER_LENGTH
-				+ headerBuffLen + (contactDataAvail ? containerHeaderLen : 0)
-				+ totContactBufLen + (groupDataAvail ? containerHeaderLen : 0)
-				+ totGroupBufLen];
+				+ headerBuffLen + getContainersLength(contacts, prepError)
+				+ getContainersLength(contactGroups, prepError)];
 		// Fill buffer
 		int index = 0;
-		index = SyncDataHelper.writeShort(totBuffer, PROT_VERSION, index);
+		index = SyncDataHelper.writeShort(totBuffer, version, index);
 		index = SyncDataHelper.writeInt(totBuffer, headerBuffLen, index);
 		System.arraycopy(syncHeaderBuff, 0, totBuffer, index, headerBuffLen);
 		index += headerBuffLen;
 
-		if (contactDataAvail) {
-			// Write ContainerHeader
-			totBuffer[index] = ContactConstants.TYPE_CONTACT;
-			index += 1;
-			index = SyncDataHelper.writeInt(totBuffer, totContactBufLen, index);
-			for (byte[] contactBuff : contacts) {
-				System.arraycopy(contactBuff, 0, totBuffer, index,
-						contactBuff.length);
-				index += contactBuff.length;
+		index = copyContainers(contacts, ContactConstants.TYPE_CONTACT,
+				ContactConstants.TYPE_CONTACT_ENVELOPE, totBuffer, index);
+		copyContainers(contactGroups, ContactConstants.TYPE_CONTACTGROUP,
+				ContactConstants.TYPE_CONTACTGROUP_ENVELOPE, totBuffer, index);
+		return totBuffer;
+	}
+
+	/**
+	 * 
+	 * @return length of the containers with their headers
+	 */
+	private static int getContainersLength(List<EncodedBatch> batches,
+			SyncPrepErrorStatistic prepError) {
+		int totLen = 0;
+		if (batches != null) {
+			int plainLen = 0;
+			for (EncodedBatch batch : batches) {
+				int rowsLen = getTotalLength(batch.rows, prepError);
+				if (batch.envelopeIv == null) {
+					plainLen += rowsLen;
+				} else if (rowsLen > 0) {
+					totLen += CONTAINER_HEADER_LEN + CryptoHelper.IV_LEN
+							+ rowsLen + batch.envelopeEnd.length;
+				}
+			}
+			if (plainLen > 0) {
+				totLen += CONTAINER_HEADER_LEN + plainLen;
 			}
 		}
-		if (groupDataAvail) {
-			// Write ContainerHeader
-			totBuffer[index] = ContactConstants.TYPE_CONTACTGROUP;
-			index += 1;
-			index = SyncDataHelper.writeInt(totBuffer, totGroupBufLen, index);
-			for (byte[] buff : contactGroups) {
-				System.arraycopy(buff, 0, totBuffer, index, buff.length);
-				index += buff.length;
+		return totLen;
+	}
+
+	private static int copyContainers(List<EncodedBatch> batches,
+			byte contType, byte envelopeType, byte[] totBuffer, int index) {
+		int i = index;
+		if (batches != null) {
+			int plainLen = 0;
+			for (EncodedBatch batch : batches) {
+				int rowsLen = getTotalLength(batch.rows, null);
+				if (batch.envelopeIv == null) {
+					plainLen += rowsLen;
+				} else if (rowsLen > 0) {
+					// Write ContainerHeader and the IV of the envelope
+					totBuffer[i] = envelopeType;
+					i += 1;
+					int endLen = batch.envelopeEnd.length;
+					i = SyncDataHelper.writeInt(totBuffer, CryptoHelper.IV_LEN
+							+ rowsLen + endLen, i);
+					System.arraycopy(batch.envelopeIv, 0, totBuffer, i,
+							CryptoHelper.IV_LEN);
+					i += CryptoHelper.IV_LEN;
+					i = copyRows(batch.rows, totBuffer, i);
+					System.arraycopy(batch.envelopeEnd, 0, totBuffer, i,
+							endLen);
+					i += endLen;
+				}
+			}
+			if (plainLen > 0) {
+				// Write ContainerHeader
+				totBuffer[i] = contType;
+				i += 1;
+				i = SyncDataHelper.writeInt(totBuffer, plainLen, i);
+				for (EncodedBatch batch : batches) {
+					if (batch.envelopeIv == null) {
+						i = copyRows(batch.rows, totBuffer, i);
+					}
+				}
 			}
 		}
-		return totBuffer;
+		return i;
+	}
+
+	private static int getTotalLength(List<byte[]> rows,
+			SyncPrepErrorStatistic prepError) {
+		int totLen = 0;
+		if (rows != null) {
+			for (byte[] buffer : rows) {
+				if (buffer == null) {
+					if (prepError != null) {
+						prepError.incIgnoredRows();
+					}
+				} else if (buffer == UNCHANGED_ROW) {
+					if (prepError != null) {
+						prepError.addUnchangedRows(1);
+					}
+				} else {
+					totLen += buffer.length;
+				}
+			}
+		}
+		return totLen;
+	}
+
+	private static int copyRows(List<byte[]> rows, byte[] totBuffer,
+			int index) {
+		int i = index;
+		for (byte[] buff : rows) {
+			if (buff != null) {
+				System.arraycopy(buff, 0, totBuffer, i, buff.length);
+				i += buff.length;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Writes the Request-Data for a sync-Request directly to a stream.
+	 * 
+	 * In contrast to
+	 * {@link #prepareServerRequest(SyncAnchor, List, List, SecretKey, String, String, String, Map, SyncPrepErrorStatistic, Restrictions, boolean)}
+	 * the rows are serialized one after another and are written in containers
+	 * of limited size. So only one row and one partly filled container are
+	 * held in memory. A container-type can therefore appear more than once in
+	 * the request, the rows of all containers of the same type belong
+	 * together.
+	 * 
+	 * @param out
+	 *            the stream is not closed.
+	 * @param options
+	 *            optional inputs, can be null. The executor is not used, the
+	 *            rows are written in the current thread.
+	 * @throws HeaderCreateException
+	 * @throws IOException
+	 *             if writing to the stream failed
+	 * @see #prepareServerRequest(SyncAnchor, List, List, SecretKey, String,
+	 *      String, String, Map, SyncPrepErrorStatistic, Restrictions,
+	 *      boolean, SyncOptions)
+	 */
+	public static void writeServerRequest(OutputStream out,
+			SyncAnchor syncAnchor, List<RawContact> dirtyContacts,
+			List<ContactGroup> dirtyGroups, SecretKey key, String pkgVersion,
+			String clientId, String pwdSaltHexStr, Map<Long, String> newIdMap,
+			SyncPrepErrorStatistic prepError, Restrictions restr,
+			boolean explizitPhotoSave, SyncOptions options)
+			throws HeaderCreateException, IOException {
+		ContactEncoder contactEncoder = createContactEncoder(pwdSaltHexStr,
+				restr, options);
+		JsonFactory binaryJsonFactory = options != null ? options
+				.getBinaryJsonFactory() : null;
+		boolean syncOnlyGroup = dirtyContacts == null;
+		short version = getProtVersion(getRequestTextFormat(restr,
+				binaryJsonFactory));
+		byte[] syncHeaderBuff = createHeader(version, syncAnchor, pkgVersion,
+				clientId, pwdSaltHexStr, newIdMap, syncOnlyGroup, restr,
+				explizitPhotoSave, binaryJsonFactory,
+				contactEncoder.isTextDeltaDecoded());
+
+		byte[] frameHeader = new byte[VERSION_LENGTH + HEADER_LENGTH];
+		int index = SyncDataHelper.writeShort(frameHeader, version, 0);
+		SyncDataHelper.writeInt(frameHeader, syncHeaderBuff.length, index);
+		out.write(frameHeader);
+		out.write(syncHeaderBuff);
+
+		ContactCodecContext context = createRequestContext(new PreparedKey(
+				key), restr, binaryJsonFactory);
+		try {
+			if (dirtyContacts != null) {
+				setDefaultLastModified(syncAnchor, dirtyContacts);
+				writeContainer(out, ContactConstants.TYPE_CONTACT,
+						dirtyContacts, contactEncoder, context, prepError);
+			}
+			if (dirtyGroups != null) {
+				setDefaultGroupLastModified(syncAnchor, dirtyGroups);
+				writeContainer(out, ContactConstants.TYPE_CONTACTGROUP,
+						dirtyGroups, new GroupEncoder(pwdSaltHexStr), context,
+						prepError);
+			}
+		} finally {
+			context.close();
+		}
+		out.flush();
+	}
+
+	private static <T> void writeContainer(OutputStream out, byte contType,
+			List<T> rows, RowEncoder<T> encoder, ContactCodecContext context,
+			SyncPrepErrorStatistic prepError) throws IOException {
+		ContainerWriter container = new ContainerWriter(out, contType);
+		for (T row : rows) {
+			byte[] buffer = encoder.toDTO(row, context);
+			if (buffer == UNCHANGED_ROW) {
+				if (prepError != null) {
+					prepError.addUnchangedRows(1);
+				}
+			} else if (buffer != null) {
+				container.writeRow(buffer);
+			} else if (prepError != null) {
+				prepError.incIgnoredRows();
+			}
+		}
+		container.flush();
+	}
+
+	/**
+	 * Writes the Request-Data for a sync-Request to a channel.
+	 * 
+	 * @see #writeServerRequest(OutputStream, SyncAnchor, List, List,
+	 *      SecretKey, String, String, String, Map, SyncPrepErrorStatistic,
+	 *      Restrictions, boolean, SyncOptions)
+	 */
+	public static void writeServerRequest(WritableByteChannel channel,
+			SyncAnchor syncAnchor, List<RawContact> dirtyContacts,
+			List<ContactGroup> dirtyGroups, SecretKey key, String pkgVersion,
+			String clientId, String pwdSaltHexStr, Map<Long, String> newIdMap,
+			SyncPrepErrorStatistic prepError, Restrictions restr,
+			boolean explizitPhotoSave, SyncOptions options)
+			throws HeaderCreateException, IOException {
+		writeServerRequest(Channels.newOutputStream(channel), syncAnchor,
+				dirtyContacts, dirtyGroups, key, pkgVersion, clientId,
+				pwdSaltHexStr, newIdMap, prepError, restr, explizitPhotoSave,
+				options);
 	}
 
-	private static byte[] createHeader(SyncAnchor syncAnchor,
+	private static byte[] createHeader(short version, SyncAnchor syncAnchor,
 			String pkgVersion, String clientId, String pwdSaltHexStr,
 			Map<Long, String> newIdMap, boolean syncOnlyGroup,
-			Restrictions restr, boolean explizitPhotoSave)
+			Restrictions restr, boolean explizitPhotoSave,
+			JsonFactory binaryJsonFactory, boolean textDelta)
 			throws HeaderCreateException {
+		JsonFactory factory = getHeaderFactory(version, binaryJsonFactory);
+		if (factory == null) {
+			throw new HeaderCreateException("Unsupported protocol version:"
+					+ version);
+		}
 
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		try {
-			JsonGenerator g = getJsonFactory().createGenerator(out);
+			JsonGenerator g = factory.createGenerator(out);
 
 			g.writeStartObject();
 
@@ -242,6 +816,15 @@ public final class RequestGenerator {
 			}
 			g.writeEndObject();
 
+			String continuation = syncAnchor.getContinuation();
+			if (continuation != null) {
+				g.writeStringField(PARAM_CONTINUATION, continuation);
+			}
+			int size = syncAnchor.getPageSize();
+			if (size > 0) {
+				g.writeNumberField(PARAM_PAGE_SIZE, size);
+			}
+
 			if (syncOnlyGroup) {
 				LOG.info("Sync only ContactGroups");
 				g.writeBooleanField(PARAM_SYNCONLYGROUP, true);
@@ -263,6 +846,26 @@ public final class RequestGenerator {
 				g.writeBooleanField(PARAM_FORCE_PHOTO_SAVE, true);
 			}
 
+			g.writeArrayFieldStart(PARAM_CIPHER_SUITES);
+			for (CipherSuite suite : CipherSuite.values()) {
+				g.writeNumber(suite.getVal());
+			}
+			g.writeEndArray();
+
+			g.writeArrayFieldStart(PARAM_TEXT_FORMATS);
+			for (TextFormat format : TextFormat.values()) {
+				if (format != TextFormat.BINARY_JSON
+						|| binaryJsonFactory != null) {
+					g.writeNumber(format.getVal());
+				}
+			}
+			g.writeEndArray();
+			g.writeBooleanField(PARAM_TEXT_COMPRESSION, true);
+			g.writeBooleanField(PARAM_ENVELOPE, true);
+			if (textDelta) {
+				g.writeBooleanField(PARAM_TEXT_DELTA, true);
+			}
+
 			// Set PwdSalt
 			if (pwdSaltHexStr != null) {
 				g.writeStringField(FIELD_PWDSALT, pwdSaltHexStr);
@@ -299,112 +902,335 @@ public final class RequestGenerator {
 	 */
 	public static SyncResponse processServerResponse(SecretKey key,
 			String clientId, final byte[] response) throws HeaderParseException {
+		return processResponse(key, clientId, response, null, null, null);
+	}
+
+	private static SyncResponse processResponse(SecretKey key,
+			String clientId, final byte[] response, PhotoCache photoCache,
+			JsonFactory binaryJsonFactory, SyncedContactCache syncedContacts)
+			throws HeaderParseException {
+		short version = SyncDataHelper.readShort(response, 0);
+		ResponseHeader header = new ResponseHeader(clientId);
+		RowCollector rows = new RowCollector();
+		int skippedRows = 0;
+
+		JsonFactory headerFactory = getHeaderFactory(version,
+				binaryJsonFactory);
+		if (headerFactory != null) {
+			int headerLength = SyncDataHelper.readInt(response, 2);
+			parseHeader(headerFactory, header, response, HEADER_POS,
+					headerLength);
+
+			final int respLen = response.length;
+			if (respLen > headerLength + HEADER_POS) {
+				ContactCodecContext context = new ContactCodecContext(key);
+				context.setPhotoCache(photoCache);
+				context.setBinaryJsonFactory(binaryJsonFactory);
+				context.setSyncedContactCache(syncedContacts);
+				try {
+					skippedRows = getUpdatedRows(context, new DecodingRowSink(
+							context, rows), response, headerLength, respLen);
+				} catch (UnsupportedEncodingException ex) {
+					throw new RuntimeException(ex);
+				} finally {
+					context.close();
+				}
+			}
+		}
+
+		return header.createResponse(rows.contacts, rows.groups, skippedRows);
+	}
+
+	/**
+	 * Parses only the header of a response, the rows are not decoded.
+	 * 
+	 * @return response without rows, the continuation token is available in
+	 *         the new sync anchor.
+	 * @throws HeaderParseException
+	 */
+	static SyncResponse processResponseHeader(String clientId,
+			final byte[] response, JsonFactory binaryJsonFactory)
+			throws HeaderParseException {
 		short version = SyncDataHelper.readShort(response, 0);
-		SyncState syncState = null;
+		ResponseHeader header = new ResponseHeader(clientId);
+		JsonFactory headerFactory = getHeaderFactory(version,
+				binaryJsonFactory);
+		if (headerFactory != null) {
+			int headerLength = SyncDataHelper.readInt(response, 2);
+			parseHeader(headerFactory, header, response, HEADER_POS,
+					headerLength);
+		}
+		return header.createResponse(new ArrayList<RawContact>(),
+				new ArrayList<ContactGroup>(), 0);
+	}
 
-		Map<Long, String> newGroupIdMap = null;
-		Map<Long, String> newContactIdMap = null;
-		SyncAnchor newSyncAnchor = new SyncAnchor();
+	/**
+	 * Processes a server response with optional inputs. With an executor the
+	 * row boundaries are determined first, then the rows are decrypted and
+	 * parsed in batches with the executor. The order of the rows in the
+	 * response is preserved.
+	 * 
+	 * @param key
+	 * @param clientId
+	 * @param response
+	 * @param options
+	 *            optional inputs, null to process the response like
+	 *            {@link #processServerResponse(SecretKey, String, byte[])}.
+	 * @return
+	 * @throws HeaderParseException
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting for
+	 *             the decoded rows.
+	 * @see SyncOptions
+	 */
+	public static SyncResponse processServerResponse(final SecretKey key,
+			String clientId, final byte[] response, SyncOptions options)
+			throws HeaderParseException, InterruptedException {
+		if (options == null) {
+			return processServerResponse(key, clientId, response);
+		}
+		Executor executor = options.getExecutor();
+		PhotoCache photoCache = options.getPhotoCache();
+		JsonFactory binaryJsonFactory = options.getBinaryJsonFactory();
+		SyncedContactCache syncedContacts = options.getSyncedContactCache();
+		if (executor == null) {
+			return processResponse(key, clientId, response, photoCache,
+					binaryJsonFactory, syncedContacts);
+		}
+		short version = SyncDataHelper.readShort(response, 0);
+		ResponseHeader header = new ResponseHeader(clientId);
+		RowCollector rows = new RowCollector();
 		int skippedRows = 0;
-		List<RawContact> serverContactList = new ArrayList<RawContact>();
-		List<ContactGroup> serverGroupList = new ArrayList<ContactGroup>();
 
-		String newClientId = clientId;
-		Restrictions restr = null;
-		if (version == RequestGenerator.PROT_VERSION) {
+		JsonFactory headerFactory = getHeaderFactory(version,
+				binaryJsonFactory);
+		if (headerFactory != null) {
 			int headerLength = SyncDataHelper.readInt(response, 2);
+			parseHeader(headerFactory, header, response, HEADER_POS,
+					headerLength);
+
+			final int respLen = response.length;
+			if (respLen > headerLength + HEADER_POS) {
+				PreparedKey preparedKey = new PreparedKey(key);
+				EncodedRowSink encodedRows = new EncodedRowSink();
+				// Only for checking the end of the envelopes
+				ContactCodecContext context = new ContactCodecContext(
+						preparedKey);
+				try {
+					skippedRows = getUpdatedRows(context, encodedRows,
+							response, headerLength, respLen);
+				} catch (UnsupportedEncodingException ex) {
+					throw new RuntimeException(ex);
+				} finally {
+					context.close();
+				}
+				skippedRows += decodeRows(preparedKey,
+						encodedRows.rows, executor, photoCache,
+						binaryJsonFactory, syncedContacts, rows);
+			}
+		}
+
+		return header.createResponse(rows.contacts, rows.groups, skippedRows);
+	}
+
+	/**
+	 * Reads a server response from a stream. Every row is passed to the
+	 * visitor as soon as it is decoded, so the rows can be processed while
+	 * the response is still being received. Only the header and the current
+	 * row are held in memory.
+	 * 
+	 * @param key
+	 * @param clientId
+	 * @param in
+	 *            the stream is not closed.
+	 * @param visitor
+	 *            receives all decoded rows in the order of the response.
+	 * @param options
+	 *            optional inputs, can be null. The executor is not used, the
+	 *            rows are decoded in the current thread.
+	 * @return response with the header values. The lists of contacts and
+	 *         groups are empty, these were passed to the visitor.
+	 * @throws HeaderParseException
+	 * @throws IOException
+	 *             if reading from the stream failed or the stream ended
+	 *             before the end of a container.
+	 */
+	public static SyncResponse processServerResponse(SecretKey key,
+			String clientId, InputStream in, SyncRowVisitor visitor,
+			SyncOptions options) throws HeaderParseException, IOException {
+		PhotoCache photoCache = null;
+		JsonFactory binaryJsonFactory = null;
+		SyncedContactCache syncedContacts = null;
+		if (options != null) {
+			photoCache = options.getPhotoCache();
+			binaryJsonFactory = options.getBinaryJsonFactory();
+			syncedContacts = options.getSyncedContactCache();
+		}
+		DataInputStream din = new DataInputStream(new BufferedInputStream(in));
+		byte[] frameHeader = new byte[HEADER_POS];
+		din.readFully(frameHeader);
+		short version = SyncDataHelper.readShort(frameHeader, 0);
+		ResponseHeader header = new ResponseHeader(clientId);
+		int skippedRows = 0;
 
-			JsonParser jp = null;
+		JsonFactory headerFactory = getHeaderFactory(version,
+				binaryJsonFactory);
+		if (headerFactory != null) {
+			int headerLength = SyncDataHelper.readInt(frameHeader,
+					VERSION_LENGTH);
+			if (headerLength < 0) {
+				throw new HeaderParseException("Invalid header length:"
+						+ headerLength);
+			}
+			byte[] headerBuff = new byte[headerLength];
+			din.readFully(headerBuff);
+			parseHeader(headerFactory, header, headerBuff, 0, headerLength);
+
+			ContactCodecContext context = new ContactCodecContext(key);
+			context.setPhotoCache(photoCache);
+			context.setBinaryJsonFactory(binaryJsonFactory);
+			context.setSyncedContactCache(syncedContacts);
 			try {
-				jp = getJsonFactory().createParser(response, HEADER_POS,
-						headerLength);
-				jp.nextToken();
-				while (jp.nextToken() != JsonToken.END_OBJECT) {
-					String fieldname = jp.getCurrentName();
-					// move to value, or START_OBJECT/START_ARRAY
-					if (jp.nextToken() == null) {
-						break;
-					}
-					if (CLIENT_FIELD_NAME.equals(fieldname)) {
-						while (jp.nextToken() != JsonToken.END_OBJECT) {
-							String clientField = jp.getCurrentName();
-							if (jp.nextToken() == null) {
-								break;
-							}
-							if (PARAM_SYNC_ANCHOR.equals(clientField)) {
-								while (jp.nextToken() != JsonToken.END_OBJECT) {
-									String anchorType = jp.getCurrentName();
-									if (jp.nextToken() == null) {
-										break;
-									}
-									long syncAnchor = jp.getLongValue();
-									if (anchorType != null
-											&& anchorType.length() > 0) {
-										newSyncAnchor.setAnchor(
-												(byte) anchorType.charAt(0),
-												syncAnchor);
-									}
+				skippedRows = readContainers(context, visitor, din);
+			} finally {
+				context.close();
+			}
+		}
+
+		return header.createResponse(new ArrayList<RawContact>(),
+				new ArrayList<ContactGroup>(), skippedRows);
+	}
+
+	/**
+	 * Reads all containers of a stream until its end.
+	 * 
+	 * @return count of skipped rows
+	 */
+	private static int readContainers(ContactCodecContext context,
+			SyncRowVisitor visitor, DataInputStream din) throws IOException {
+		int skippedRows = 0;
+		int contType = din.read();
+		while (contType >= 0) {
+			int contLen = SyncDataHelper.readInt(din);
+			if (contLen < 0) {
+				throw new IOException("Invalid Container length:" + contLen);
+			}
+			if (contType == ContactConstants.TYPE_CONTACT
+					|| contType == ContactConstants.TYPE_CONTACTGROUP) {
+				skippedRows += readRowContainer(context, visitor, din,
+						contLen, (byte) contType, null);
+			} else if (isEnvelope(contType) && contLen >= CryptoHelper.IV_LEN) {
+				byte[] envelopeIv = new byte[CryptoHelper.IV_LEN];
+				din.readFully(envelopeIv);
+				skippedRows += readRowContainer(context, visitor, din,
+						contLen - CryptoHelper.IV_LEN, getRowType(contType),
+						envelopeIv);
+			} else {
+				skipFully(din, contLen);
+			}
+			contType = din.read();
+		}
+		return skippedRows;
+	}
+
+	/**
+	 * Reads a server response from a channel.
+	 * 
+	 * @see #processServerResponse(SecretKey, String, InputStream,
+	 *      SyncRowVisitor, SyncOptions)
+	 */
+	public static SyncResponse processServerResponse(SecretKey key,
+			String clientId, ReadableByteChannel channel,
+			SyncRowVisitor visitor, SyncOptions options)
+			throws HeaderParseException, IOException {
+		return processServerResponse(key, clientId,
+				Channels.newInputStream(channel), visitor, options);
+	}
+
+	private static void parseHeader(JsonFactory factory,
+			ResponseHeader header, byte[] buffer, int offset, int headerLength)
+			throws HeaderParseException {
+		JsonParser jp = null;
+		try {
+			jp = factory.createParser(buffer, offset, headerLength);
+			jp.nextToken();
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				String fieldname = jp.getCurrentName();
+				// move to value, or START_OBJECT/START_ARRAY
+				if (jp.nextToken() == null) {
+					break;
+				}
+				if (CLIENT_FIELD_NAME.equals(fieldname)) {
+					while (jp.nextToken() != JsonToken.END_OBJECT) {
+						String clientField = jp.getCurrentName();
+						if (jp.nextToken() == null) {
+							break;
+						}
+						if (PARAM_SYNC_ANCHOR.equals(clientField)) {
+							while (jp.nextToken() != JsonToken.END_OBJECT) {
+								String anchorType = jp.getCurrentName();
+								if (jp.nextToken() == null) {
+									break;
+								}
+								long syncAnchor = jp.getLongValue();
+								if (anchorType != null
+										&& anchorType.length() > 0) {
+									header.newSyncAnchor.setAnchor(
+											(byte) anchorType.charAt(0),
+											syncAnchor);
 								}
-							} else if (PARAM_CLIENTID.equals(clientField)) {
-								newClientId = jp.getValueAsString();
-							} else if (TAG_GROUPIDS.equals(clientField)) {
-								newGroupIdMap = extractNewIdList(jp);
-							} else if (TAG_CONTACTIDS.equals(clientField)) {
-								newContactIdMap = extractNewIdList(jp);
-							} else {
-								LOG.warn("Unsupported Client-Header-Field: {}",
-										clientField);
 							}
+						} else if (PARAM_CONTINUATION.equals(clientField)) {
+							header.newSyncAnchor.setContinuation(jp
+									.getValueAsString());
+						} else if (PARAM_CLIENTID.equals(clientField)) {
+							header.clientId = jp.getValueAsString();
+						} else if (TAG_GROUPIDS.equals(clientField)) {
+							header.newGroupIdMap = extractNewIdList(jp);
+						} else if (TAG_CONTACTIDS.equals(clientField)) {
+							header.newContactIdMap = extractNewIdList(jp);
+						} else {
+							LOG.warn("Unsupported Client-Header-Field: {}",
+									clientField);
+							// Skip arrays and objects of unknown fields
+							jp.skipChildren();
 						}
-					} else if (SERVER_FIELD_NAME.equals(fieldname)) {
-						while (jp.nextToken() != JsonToken.END_OBJECT) {
-							String serverField = jp.getCurrentName();
-							if (jp.nextToken() == null) {
-								break;
-							}
-							if (RequestGenerator.SYNCSTATE_FIELD_NAME
-									.equals(serverField)) {
-								String syncStateStr = jp.getValueAsString();
-								if (syncStateStr != null
-										&& syncStateStr.length() > 0) {
-									syncState = SyncState
-											.fromErrorVal(syncStateStr);
-								}
-							} else if (RequestGenerator.TAG_SERVER_CONFIG
-									.equals(serverField)) {
-								restr = parseRestr(jp);
+					}
+				} else if (SERVER_FIELD_NAME.equals(fieldname)) {
+					while (jp.nextToken() != JsonToken.END_OBJECT) {
+						String serverField = jp.getCurrentName();
+						if (jp.nextToken() == null) {
+							break;
+						}
+						if (RequestGenerator.SYNCSTATE_FIELD_NAME
+								.equals(serverField)) {
+							String syncStateStr = jp.getValueAsString();
+							if (syncStateStr != null
+									&& syncStateStr.length() > 0) {
+								header.syncState = SyncState
+										.fromErrorVal(syncStateStr);
 							}
+						} else if (RequestGenerator.TAG_SERVER_CONFIG
+								.equals(serverField)) {
+							header.restr = parseRestr(jp);
 						}
-
 					}
-				}
 
-				final int respLen = response.length;
-
-				if (respLen > headerLength + HEADER_POS) {
-					skippedRows = getUpdatedRows(key, serverContactList,
-							serverGroupList, response, headerLength, respLen);
 				}
-			} catch (UnsupportedEncodingException ex) {
-				throw new RuntimeException(ex);
-			} catch (JsonParseException ex) {
-				throw new HeaderParseException(ex);
-			} catch (IOException e) {
-				throw new HeaderParseException(e);
-			} finally {
-				if (jp != null) {
-					try {
-						jp.close();
-					} catch (IOException ex) {
-						LOG.warn("Could not close JSONParser", ex);
-					}
+			}
+		} catch (JsonParseException ex) {
+			throw new HeaderParseException(ex);
+		} catch (IOException e) {
+			throw new HeaderParseException(e);
+		} finally {
+			if (jp != null) {
+				try {
+					jp.close();
+				} catch (IOException ex) {
+					LOG.warn("Could not close JSONParser", ex);
 				}
 			}
 		}
-
-		return new SyncResponse(syncState, serverContactList, serverGroupList,
-				newSyncAnchor, newClientId, newGroupIdMap, newContactIdMap,
-				skippedRows, restr);
 	}
 
 	private static Map<Long, String> extractNewIdList(JsonParser jp)
@@ -460,11 +1286,38 @@ public final class RequestGenerator {
 		return restr;
 	}
 
+	/**
+	 * 
+	 * @return true if the array of the current token contains the number
+	 */
+	private static boolean containsNumber(JsonParser jp, int number)
+			throws IOException {
+		boolean found = false;
+		if (jp.getCurrentToken() == JsonToken.START_ARRAY) {
+			JsonToken token = jp.nextToken();
+			while (token != null && token != JsonToken.END_ARRAY) {
+				if (token == JsonToken.VALUE_NUMBER_INT
+						&& jp.getIntValue() == number) {
+					found = true;
+				}
+				token = jp.nextToken();
+			}
+		}
+		return found;
+	}
+
 	private static Restrictions parseRestr(JsonParser jp) throws IOException {
 		int maxContacts = Integer.MAX_VALUE;
 		int maxGroups = Integer.MAX_VALUE;
 		boolean photoSyncSupported = false;
 		Date validUntil = null;
+		boolean binaryJson = false;
+		boolean envelope = false;
+		boolean photoRef = false;
+		boolean textDelta = false;
+		boolean gcm = false;
+		boolean binaryText = false;
+		boolean textCompression = false;
 
 		while (jp.nextToken() != JsonToken.END_OBJECT) {
 			String configName = jp.getCurrentName();
@@ -479,17 +1332,35 @@ public final class RequestGenerator {
 				maxGroups = jp.getIntValue();
 			} else if (PARAM_VALID_UNTIL.equals(configName)) {
 				validUntil = new Date(jp.getLongValue());
+			} else if (PARAM_BINARY_JSON.equals(configName)) {
+				binaryJson = jp.getBooleanValue();
+			} else if (PARAM_ENVELOPE.equals(configName)) {
+				envelope = jp.getBooleanValue();
+			} else if (PARAM_PHOTO_REF.equals(configName)) {
+				photoRef = jp.getBooleanValue();
+			} else if (PARAM_TEXT_DELTA.equals(configName)) {
+				textDelta = jp.getBooleanValue();
+			} else if (PARAM_CIPHER_SUITES.equals(configName)) {
+				gcm = containsNumber(jp, CipherSuite.GCM.getVal());
+			} else if (PARAM_TEXT_FORMATS.equals(configName)) {
+				binaryText = containsNumber(jp, TextFormat.BINARY.getVal());
+			} else if (PARAM_TEXT_COMPRESSION.equals(configName)) {
+				textCompression = jp.getBooleanValue();
 			}
 		}
 		return new Restrictions(maxContacts, maxGroups, photoSyncSupported,
-				validUntil);
+				validUntil, binaryJson, envelope, photoRef, textDelta, gcm,
+				binaryText, textCompression);
 	}
 
-	private static int getUpdatedRows(SecretKey key,
-			List<RawContact> serverDirtyList,
-			List<ContactGroup> serverGroupList, final byte[] response,
-			int xmlLength, final int respLen)
-			throws UnsupportedEncodingException {
+	/**
+	 * 
+	 * @param context
+	 *            for checking the end of the envelopes
+	 */
+	private static int getUpdatedRows(ContactCodecContext context,
+			RowSink sink, final byte[] response, int xmlLength,
+			final int respLen) throws UnsupportedEncodingException {
 
 		int skippedRows = 0;
 
@@ -512,8 +1383,15 @@ public final class RequestGenerator {
 			// Container lesen
 			if (contType == ContactConstants.TYPE_CONTACT
 					|| contType == ContactConstants.TYPE_CONTACTGROUP) {
-				skippedRows += readRowContainer(key, serverDirtyList,
-						serverGroupList, response, contEndPos, pos, contType);
+				skippedRows += readRowContainer(context, sink, response,
+						contEndPos, pos, contType, null);
+			} else if (isEnvelope(contType) && contLen >= CryptoHelper.IV_LEN) {
+				byte[] envelopeIv = new byte[CryptoHelper.IV_LEN];
+				System.arraycopy(response, pos, envelopeIv, 0,
+						CryptoHelper.IV_LEN);
+				skippedRows += readRowContainer(context, sink, response,
+						contEndPos, pos + CryptoHelper.IV_LEN,
+						getRowType(contType), envelopeIv);
 			}
 			pos += contLen;
 		}
@@ -521,25 +1399,44 @@ public final class RequestGenerator {
 		return skippedRows;
 	}
 
-	private static int readRowContainer(SecretKey key,
-			List<RawContact> serverDirtyList,
-			List<ContactGroup> serverGroupList, final byte[] response,
-			final int contEndPos, int startPos, byte contType)
+	/**
+	 * 
+	 * @param context
+	 *            for checking the end of the envelope
+	 * @param envelopeIv
+	 *            IV of the envelope, null if the container is not an
+	 *            envelope.
+	 */
+	private static int readRowContainer(ContactCodecContext context,
+			RowSink sink, final byte[] response, final int contEndPos,
+			int startPos, byte contType, byte[] envelopeIv)
 			throws UnsupportedEncodingException {
 		int skippedRows = 0;
 		String rowId = null;
-		Map<Byte, ByteBuffer> values = new HashMap<Byte, ByteBuffer>();
+		RowValues values = new RowValues();
+		RowValues envelopeEnd = new RowValues();
 		int pos = startPos;
+		// Every row starts with its id
+		int rowIndex = -1;
+		int valueIndex = 0;
+		int segmentCount = 0;
 
 		while (pos < contEndPos && pos >= 0) {
 			byte valueKey = response[pos];
+			if (envelopeEnd.size() > 0) {
+				// The end has to be the last value of the envelope
+				LOG.warn("Value after the end of the envelope. Pos:" + pos);
+				envelopeEnd.clear();
+				break;
+			}
 			if (valueKey == ContactConstants.ROWID) {
-				boolean ok = addRow(key, serverDirtyList, serverGroupList,
-						contType, rowId, values);
+				boolean ok = sink.addRow(contType, rowId, values);
 				if (!ok) {
 					skippedRows++;
 				}
 				values.clear();
+				rowIndex++;
+				valueIndex = 0;
 
 				// Read RowId
 				pos += 1;
@@ -557,22 +1454,38 @@ public final class RequestGenerator {
 				int valueLen = SyncDataHelper.readInt(response, pos);
 				pos += VALUE_LEN;
 				if (pos + valueLen <= contEndPos && valueLen >= 0) {
-					values.put(valueKey,
-							ByteBuffer.wrap(response, pos, valueLen));
+					values.put(valueKey, response, pos, valueLen);
 				} else {
 					LOG.warn(INVALID_BUFFER_MSG, pos, valueLen, contEndPos);
 				}
 				pos += valueLen;
+			} else if (envelopeIv != null) {
+				// 1byte key, //4 len, nonce is derived from the envelope
+				pos += 1;
+
+				int valueLen = CryptoHelper.readSegmentLength(response, pos);
+				int bufLen = CryptoHelper.SEGMENT_PREAMBLE_LEN + valueLen;
+				if (pos + bufLen > contEndPos || valueLen < 0) {
+					LOG.warn(INVALID_BUFFER_MSG, pos, valueLen, contEndPos);
+				} else if (valueKey == ContactConstants.ENVELOPE_END) {
+					envelopeEnd.putSegment(valueKey, response, pos, bufLen,
+							envelopeIv, CryptoHelper.ENVELOPE_END_ROW, 0);
+				} else {
+					// Decoded in place with the derived nonce
+					values.putSegment(valueKey, response, pos, bufLen,
+							envelopeIv, rowIndex, valueIndex);
+					valueIndex++;
+					segmentCount++;
+				}
+				pos += bufLen;
 			} else {
 				// 1byte key, //16byte iv// //4 len
 				pos += 1;
 
-				int valueLen = SyncDataHelper.readInt(response, pos
-						+ CryptoHelper.IV_LEN);
+				int valueLen = CryptoHelper.readDataLength(response, pos);
 				int bufLen = CryptoHelper.PREAMBLE_LEN + valueLen;
 				if (pos + bufLen <= contEndPos && valueLen >= 0) {
-					values.put(Byte.valueOf((byte) valueKey),
-							ByteBuffer.wrap(response, pos, bufLen));
+					values.put(valueKey, response, pos, bufLen);
 				} else {
 					LOG.warn(INVALID_BUFFER_MSG, pos, valueLen, contEndPos);
 				}
@@ -580,42 +1493,349 @@ public final class RequestGenerator {
 			}
 		}
 
-		boolean ok = addRow(key, serverDirtyList, serverGroupList, contType,
-				rowId, values);
+		boolean ok = sink.addRow(contType, rowId, values);
 		if (!ok) {
 			skippedRows++;
 		}
+		if (envelopeIv != null) {
+			skippedRows += checkEnvelopeEnd(context, envelopeEnd,
+					rowIndex + 1, segmentCount);
+		}
 		return skippedRows;
 	}
 
 	/**
+	 * Checks the end of an envelope ({@link ContactConstants#ENVELOPE_END})
+	 * against the read rows and segments.
 	 * 
-	 * @param key
-	 * @param serverDirtyList
-	 * @param serverGroupList
+	 * @param envelopeEnd
+	 *            contains the end of the envelope, empty if it is missing.
+	 * @return count of missing rows, at least 1 if the end is missing,
+	 *         invalid or does not match.
+	 */
+	private static int checkEnvelopeEnd(ContactCodecContext context,
+			RowValues envelopeEnd, int rowCount, int segmentCount) {
+		byte[] counts = null;
+		try {
+			counts = CryptoHelper.decodeValue(ContactConstants.ENVELOPE_END,
+					envelopeEnd, context);
+		} catch (InvalidCipherTextException ex) {
+			LOG.warn("Invalid end of envelope.", ex);
+		}
+		if (counts == null || counts.length != CryptoHelper.ENVELOPE_END_LEN) {
+			LOG.warn("Envelope without valid end. Rows:" + rowCount);
+			return 1;
+		}
+		int envelopeRows = SyncDataHelper.readInt(counts, 0);
+		int envelopeSegments = SyncDataHelper.readInt(counts, VALUE_LEN);
+		if (envelopeRows != rowCount || envelopeSegments != segmentCount) {
+			LOG.warn("Envelope is incomplete. Rows:" + rowCount + "/"
+					+ envelopeRows + " Segments:" + segmentCount + "/"
+					+ envelopeSegments);
+			return Math.max(1, envelopeRows - rowCount);
+		}
+		return 0;
+	}
+
+	/**
+	 * 
+	 * @param envelopeIv
+	 *            IV of the envelope, null if the container is not an
+	 *            envelope.
+	 */
+	private static int readRowContainer(ContactCodecContext context,
+			SyncRowVisitor visitor, DataInputStream in, final int contLen,
+			byte contType, byte[] envelopeIv) throws IOException {
+		int skippedRows = 0;
+		// Every row starts with its id
+		int rowIndex = -1;
+		int valueIndex = 0;
+		int segmentCount = 0;
+		String rowId = null;
+		RowValues values = new RowValues();
+		RowValues envelopeEnd = new RowValues();
+		// All values of the current row are read into this buffer
+		byte[] rowBuffer = new byte[ROW_BUFFER_SIZE];
+		int rowBufferLen = 0;
+		int remaining = contLen;
+
+		while (remaining > 0) {
+			if (envelopeEnd.size() > 0) {
+				// The end has to be the last value of the envelope
+				LOG.warn("Value after the end of the envelope. Pos:"
+						+ (contLen - remaining));
+				envelopeEnd.clear();
+				break;
+			}
+			byte valueKey = in.readByte();
+			remaining--;
+			if (valueKey == ContactConstants.ROWID) {
+				boolean ok = addRow(context, visitor, contType, rowId, values);
+				if (!ok) {
+					skippedRows++;
+				}
+				values.clear();
+				rowBufferLen = 0;
+				rowId = null;
+				rowIndex++;
+				valueIndex = 0;
+
+				// Read RowId
+				int rowIdLen = remaining >= ROWID_LEN ? SyncDataHelper
+						.readInt(in) : -1;
+				remaining -= ROWID_LEN;
+				if (rowIdLen < 0 || rowIdLen > remaining) {
+					LOG.warn(INVALID_BUFFER_MSG, contLen - remaining,
+							rowIdLen, contLen);
+					break;
+				}
+				byte[] rowIdBuff = new byte[rowIdLen];
+				in.readFully(rowIdBuff);
+				remaining -= rowIdLen;
+				// UTF-8 is default on Android
+				rowId = new String(rowIdBuff,
+						SyncDataHelper.DEFAULT_CHARSET_NAME);
+			} else if (valueKey == ContactConstants.SERVERROW_ID
+					|| valueKey == ContactConstants.MODIFIED
+					|| valueKey == ContactConstants.HASH
+					|| valueKey == ContactConstants.DELETED) {
+				int valueLen = remaining >= VALUE_LEN ? SyncDataHelper
+						.readInt(in) : -1;
+				remaining -= VALUE_LEN;
+				if (valueLen < 0 || valueLen > remaining) {
+					LOG.warn(INVALID_BUFFER_MSG, contLen - remaining,
+							valueLen, contLen);
+					break;
+				}
+				rowBuffer = ensureCapacity(values, rowBuffer, rowBufferLen
+						+ valueLen);
+				in.readFully(rowBuffer, rowBufferLen, valueLen);
+				remaining -= valueLen;
+				values.put(valueKey, rowBuffer, rowBufferLen, valueLen);
+				rowBufferLen += valueLen;
+			} else {
+				// 1byte key, //16byte iv// //4 len
+				// A segment of an envelope has no iv, it is derived from the
+				// envelope.
+				boolean segment = envelopeIv != null;
+				int preambleLen = segment ? CryptoHelper.SEGMENT_PREAMBLE_LEN
+						: CryptoHelper.PREAMBLE_LEN;
+				if (remaining < preambleLen) {
+					LOG.warn(INVALID_BUFFER_MSG, contLen - remaining,
+							remaining, contLen);
+					break;
+				}
+				rowBuffer = ensureCapacity(values, rowBuffer, rowBufferLen
+						+ preambleLen);
+				in.readFully(rowBuffer, rowBufferLen, preambleLen);
+				remaining -= preambleLen;
+				int valueLen = segment ? CryptoHelper.readSegmentLength(
+						rowBuffer, rowBufferLen) : CryptoHelper.readDataLength(
+						rowBuffer, rowBufferLen);
+				if (valueLen < 0 || valueLen > remaining) {
+					LOG.warn(INVALID_BUFFER_MSG, contLen - remaining,
+							valueLen, contLen);
+					break;
+				}
+				int bufLen = preambleLen + valueLen;
+				if (segment && valueKey == ContactConstants.ENVELOPE_END) {
+					// Not part of the row
+					byte[] end = new byte[bufLen];
+					System.arraycopy(rowBuffer, rowBufferLen, end, 0,
+							preambleLen);
+					in.readFully(end, preambleLen, valueLen);
+					remaining -= valueLen;
+					envelopeEnd.putSegment(valueKey, end, 0, bufLen,
+							envelopeIv, CryptoHelper.ENVELOPE_END_ROW, 0);
+					continue;
+				}
+				rowBuffer = ensureCapacity(values, rowBuffer, rowBufferLen
+						+ bufLen);
+				in.readFully(rowBuffer, rowBufferLen + preambleLen, valueLen);
+				remaining -= valueLen;
+				if (segment) {
+					values.putSegment(valueKey, rowBuffer, rowBufferLen,
+							bufLen, envelopeIv, rowIndex, valueIndex);
+					valueIndex++;
+					segmentCount++;
+				} else {
+					values.put(valueKey, rowBuffer, rowBufferLen, bufLen);
+				}
+				rowBufferLen += bufLen;
+			}
+		}
+		if (remaining > 0) {
+			// Skip rest of an invalid container
+			skipFully(in, remaining);
+		}
+
+		boolean ok = addRow(context, visitor, contType, rowId, values);
+		if (!ok) {
+			skippedRows++;
+		}
+		if (envelopeIv != null) {
+			skippedRows += checkEnvelopeEnd(context, envelopeEnd,
+					rowIndex + 1, segmentCount);
+		}
+		return skippedRows;
+	}
+
+	/**
+	 * Enlarges the row buffer if needed. The values referring to the old
+	 * buffer are moved to the new one.
+	 * 
+	 * @return buffer with at least the needed size.
+	 */
+	private static byte[] ensureCapacity(RowValues values, byte[] buffer,
+			int needed) {
+		if (needed <= buffer.length) {
+			return buffer;
+		}
+		byte[] newBuffer = new byte[Math.max(needed, buffer.length * 2)];
+		System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+		values.replaceArray(buffer, newBuffer);
+		return newBuffer;
+	}
+
+	private static void skipFully(DataInputStream in, int len)
+			throws IOException {
+		int remaining = len;
+		while (remaining > 0) {
+			int skipped = in.skipBytes(remaining);
+			if (skipped <= 0) {
+				// skipBytes does not report the end of the stream
+				in.readByte();
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if the container type is an envelope
+	 */
+	private static boolean isEnvelope(int contType) {
+		return contType == ContactConstants.TYPE_CONTACT_ENVELOPE
+				|| contType == ContactConstants.TYPE_CONTACTGROUP_ENVELOPE;
+	}
+
+	/**
+	 * 
+	 * @return type of the rows in an envelope
+	 */
+	private static byte getRowType(int envelopeType) {
+		if (envelopeType == ContactConstants.TYPE_CONTACT_ENVELOPE) {
+			return ContactConstants.TYPE_CONTACT;
+		}
+		return ContactConstants.TYPE_CONTACTGROUP;
+	}
+
+	/**
+	 * Decodes rows in batches with an executor.
+	 * 
+	 * @return count of skipped rows
+	 */
+	private static int decodeRows(final PreparedKey key,
+			List<EncodedRow> encodedRows, Executor executor,
+			final PhotoCache photoCache, final JsonFactory binaryJsonFactory,
+			final SyncedContactCache syncedContacts, RowCollector result)
+			throws InterruptedException {
+		List<FutureTask<RowCollector>> tasks = new ArrayList<FutureTask<RowCollector>>();
+		final int rowCount = encodedRows.size();
+		for (int start = 0; start < rowCount; start += ROWS_PER_TASK) {
+			final List<EncodedRow> batch = encodedRows.subList(start,
+					Math.min(rowCount, start + ROWS_PER_TASK));
+			FutureTask<RowCollector> task = new FutureTask<RowCollector>(
+					new Callable<RowCollector>() {
+						@Override
+						public RowCollector call() {
+							ContactCodecContext context = new ContactCodecContext(
+									key);
+							context.setPhotoCache(photoCache);
+							context.setBinaryJsonFactory(binaryJsonFactory);
+							context.setSyncedContactCache(syncedContacts);
+							RowCollector decoded = new RowCollector();
+							try {
+								for (EncodedRow row : batch) {
+									if (!addRow(context, decoded,
+											row.contType, row.rowId,
+											row.values)) {
+										decoded.skippedRows++;
+									}
+								}
+							} finally {
+								context.close();
+							}
+							return decoded;
+						}
+					});
+			tasks.add(task);
+			executor.execute(task);
+		}
+
+		int skippedRows = 0;
+		try {
+			for (FutureTask<RowCollector> task : tasks) {
+				RowCollector decoded = getTaskResult(task);
+				result.contacts.addAll(decoded.contacts);
+				result.groups.addAll(decoded.groups);
+				skippedRows += decoded.skippedRows;
+			}
+		} finally {
+			for (FutureTask<RowCollector> task : tasks) {
+				task.cancel(false);
+			}
+		}
+		return skippedRows;
+	}
+
+	private static <T> T getTaskResult(FutureTask<T> task)
+			throws InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * 
+	 * @param context
+	 * @param visitor
 	 * @param contType
 	 * @param rowId
 	 * @param values
 	 * @return false if row could not be added due to an conversion error.
 	 */
-	private static boolean addRow(SecretKey key,
-			List<RawContact> serverDirtyList,
-			List<ContactGroup> serverGroupList, byte contType, String rowId,
-			Map<Byte, ByteBuffer> values) {
+	private static boolean addRow(ContactCodecContext context,
+			SyncRowVisitor visitor, byte contType, String rowId,
+			RowValues values) {
 		boolean ok = true;
 		if (rowId != null) {
 			try {
 				if (contType == ContactConstants.TYPE_CONTACT) {
 					RawContact rawContact = RawContact.valueOf(rowId, values,
-							key);
+							context);
 					if (rawContact != null) {
-						serverDirtyList.add(rawContact);
+						visitor.visitContact(rawContact);
+					} else {
+						// Invalid data or delta without its base
+						ok = false;
 					}
 				} else if (contType == ContactConstants.TYPE_CONTACTGROUP) {
 					ContactGroup group = ContactGroup.valueOf(rowId, values,
-							key);
+							context);
 					if (group != null) {
-						serverGroupList.add(group);
+						visitor.visitGroup(group);
+					} else {
+						ok = false;
 					}
 				}
 			} catch (InvalidKeyException e) {
@@ -627,6 +1847,284 @@ public final class RequestGenerator {
 		return ok;
 	}
 
+	/**
+	 * Serializes a row for the transport to the server.
+	 */
+	private interface RowEncoder<T> {
+		/**
+		 * @return null if serializing failed, {@link #UNCHANGED_ROW} if the
+		 *         row is not sent.
+		 */
+		byte[] toDTO(T row, ContactCodecContext context);
+	}
+
+	private static final class ContactEncoder implements
+			RowEncoder<RawContact> {
+		private final String pwdSaltHexStr;
+		private final Map<Long, byte[]> syncedPhotoRefs;
+		private final Map<Long, RawContact> deltaBases;
+		private final boolean textDeltaDecoded;
+		private final Map<Long, byte[]> syncedHashes;
+
+		/**
+		 * 
+		 * @param pwdSaltHexStr
+		 * @param syncedPhotoRefs
+		 *            photo references of the last sync by raw contact id. If
+		 *            null the photos are sent without reference.
+		 */
+		ContactEncoder(String pwdSaltHexStr,
+				Map<Long, byte[]> syncedPhotoRefs) {
+			this(pwdSaltHexStr, syncedPhotoRefs, null, false, null);
+		}
+
+		/**
+		 * 
+		 * @param pwdSaltHexStr
+		 * @param syncedPhotoRefs
+		 *            photo references of the last sync by raw contact id. If
+		 *            null the photos are sent without reference.
+		 * @param deltaBases
+		 *            last synced contacts by raw contact id, a contact is sent
+		 *            as delta to it. Can be null.
+		 * @param textDeltaDecoded
+		 *            true if the client can decode deltas
+		 * @param syncedHashes
+		 *            content hash of the last sync by raw contact id, a
+		 *            contact with the same hash is not sent. Can be null.
+		 */
+		ContactEncoder(String pwdSaltHexStr,
+				Map<Long, byte[]> syncedPhotoRefs,
+				Map<Long, RawContact> deltaBases, boolean textDeltaDecoded,
+				Map<Long, byte[]> syncedHashes) {
+			this.pwdSaltHexStr = pwdSaltHexStr;
+			this.syncedPhotoRefs = syncedPhotoRefs;
+			this.deltaBases = deltaBases;
+			this.textDeltaDecoded = textDeltaDecoded;
+			this.syncedHashes = syncedHashes;
+		}
+
+		boolean isTextDeltaDecoded() {
+			return textDeltaDecoded;
+		}
+
+		@Override
+		public byte[] toDTO(RawContact row, ContactCodecContext context) {
+			Long rawContactId = row.getRawContactId();
+			byte[] contentHash = null;
+			byte[] syncedHash = syncedHashes != null ? syncedHashes
+					.get(rawContactId) : null;
+			if (syncedHash != null && !row.isDeleted()) {
+				try {
+					contentHash = row.computeContentHash(context,
+							pwdSaltHexStr);
+				} catch (NoSuchAlgorithmException ex) {
+					LOG.warn("Hash of contact could not be computed.", ex);
+				} catch (IOException ex) {
+					LOG.warn("Hash of contact could not be computed.", ex);
+				}
+				if (Arrays.equals(syncedHash, contentHash)) {
+					return UNCHANGED_ROW;
+				}
+			}
+
+			RawContact base = null;
+			if (deltaBases != null) {
+				base = deltaBases.get(rawContactId);
+			}
+			if (base != null) {
+				return row.toDeltaDTO(context, pwdSaltHexStr, base,
+						contentHash);
+			}
+			byte[] syncedPhotoRef = null;
+			if (syncedPhotoRefs != null) {
+				syncedPhotoRef = syncedPhotoRefs.get(rawContactId);
+			}
+			return row.toDTO(context, pwdSaltHexStr, syncedPhotoRefs != null,
+					syncedPhotoRef, null, contentHash);
+		}
+	}
+
+	private static final class GroupEncoder implements
+			RowEncoder<ContactGroup> {
+		private final String pwdSaltHexStr;
+
+		GroupEncoder(String pwdSaltHexStr) {
+			this.pwdSaltHexStr = pwdSaltHexStr;
+		}
+
+		@Override
+		public byte[] toDTO(ContactGroup row, ContactCodecContext context) {
+			return row.toDTO(context, pwdSaltHexStr);
+		}
+	}
+
+	/**
+	 * Collects serialized rows and writes them as containers of a limited size
+	 * to a stream.
+	 */
+	private static final class ContainerWriter {
+		private final OutputStream out;
+		private final byte contType;
+		private final byte[] header = new byte[CONTAINER_HEADER_LEN];
+		private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+		ContainerWriter(OutputStream out, byte contType) {
+			this.out = out;
+			this.contType = contType;
+		}
+
+		void writeRow(byte[] row) throws IOException {
+			if (pending.size() > 0
+					&& pending.size() + row.length > STREAM_CONTAINER_SIZE) {
+				flush();
+			}
+			if (row.length >= STREAM_CONTAINER_SIZE) {
+				// Big row (ex. with photo): write without copying
+				writeContainerHeader(row.length);
+				out.write(row);
+			} else {
+				pending.write(row);
+			}
+		}
+
+		void flush() throws IOException {
+			if (pending.size() > 0) {
+				writeContainerHeader(pending.size());
+				pending.writeTo(out);
+				pending.reset();
+			}
+		}
+
+		private void writeContainerHeader(int contLen) throws IOException {
+			header[0] = contType;
+			SyncDataHelper.writeInt(header, contLen, 1);
+			out.write(header);
+		}
+	}
+
+	/**
+	 * Receives the rows found in a row container.
+	 */
+	private interface RowSink {
+		/**
+		 * @param contType
+		 * @param rowId
+		 *            null if no row was found yet
+		 * @param values
+		 *            will be cleared after this call
+		 * @return false if row could not be added due to an conversion error.
+		 */
+		boolean addRow(byte contType, String rowId, RowValues values);
+	}
+
+	/**
+	 * Decodes the rows immediately.
+	 */
+	private static final class DecodingRowSink implements RowSink {
+		private final ContactCodecContext context;
+		private final SyncRowVisitor visitor;
+
+		DecodingRowSink(ContactCodecContext context, SyncRowVisitor visitor) {
+			this.context = context;
+			this.visitor = visitor;
+		}
+
+		@Override
+		public boolean addRow(byte contType, String rowId, RowValues values) {
+			return RequestGenerator.addRow(context, visitor, contType, rowId,
+					values);
+		}
+	}
+
+	/**
+	 * Collects the still encrypted rows for decoding them later.
+	 */
+	private static final class EncodedRowSink implements RowSink {
+		private final List<EncodedRow> rows = new ArrayList<EncodedRow>();
+
+		@Override
+		public boolean addRow(byte contType, String rowId, RowValues values) {
+			if (rowId != null) {
+				// The copy refers to the response, the values are not copied
+				rows.add(new EncodedRow(contType, rowId, values.copy()));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Serialized rows which are written in one container if they are in an
+	 * envelope.
+	 */
+	private static final class EncodedBatch {
+		/** null if the rows are not in an envelope */
+		private final byte[] envelopeIv;
+		/** Value which is written after the rows of an envelope */
+		private final byte[] envelopeEnd;
+		private final List<byte[]> rows;
+
+		EncodedBatch(byte[] envelopeIv, byte[] envelopeEnd, List<byte[]> rows) {
+			this.envelopeIv = envelopeIv;
+			this.envelopeEnd = envelopeEnd;
+			this.rows = rows;
+		}
+	}
+
+	private static final class EncodedRow {
+		private final byte contType;
+		private final String rowId;
+		private final RowValues values;
+
+		EncodedRow(byte contType, String rowId, RowValues values) {
+			this.contType = contType;
+			this.rowId = rowId;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Collects all rows of a response in lists.
+	 */
+	private static final class RowCollector implements SyncRowVisitor {
+		private final List<RawContact> contacts = new ArrayList<RawContact>();
+		private final List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		private int skippedRows = 0;
+
+		@Override
+		public void visitContact(RawContact contact) {
+			contacts.add(contact);
+		}
+
+		@Override
+		public void visitGroup(ContactGroup group) {
+			groups.add(group);
+		}
+	}
+
+	/**
+	 * Values of the response header.
+	 */
+	private static final class ResponseHeader {
+		private SyncState syncState = null;
+		private Map<Long, String> newGroupIdMap = null;
+		private Map<Long, String> newContactIdMap = null;
+		private final SyncAnchor newSyncAnchor = new SyncAnchor();
+		private String clientId;
+		private Restrictions restr = null;
+
+		ResponseHeader(String clientId) {
+			this.clientId = clientId;
+		}
+
+		SyncResponse createResponse(List<RawContact> serverContacts,
+				List<ContactGroup> serverGroups, int skippedRows) {
+			return new SyncResponse(syncState, serverContacts, serverGroups,
+					newSyncAnchor, clientId, newGroupIdMap, newContactIdMap,
+					skippedRows, restr, newSyncAnchor.getContinuation());
+		}
+	}
+
 	public static class SyncResponse {
 		public final SyncState syncstate;
 		public final List<RawContact> serverContacts;
@@ -637,6 +2135,11 @@ public final class RequestGenerator {
 		public final Map<Long, String> newGroupIdMap;
 		public final Map<Long, String> newContactIdMap;
 		public final Restrictions restrictions;
+		/**
+		 * Token for the next page of a paged sync, null if the sync is
+		 * complete.
+		 */
+		public final String continuation;
 
 		public SyncResponse(SyncState syncstate,
 				List<RawContact> serverContacts,
@@ -644,6 +2147,17 @@ public final class RequestGenerator {
 				String clientId, Map<Long, String> newGroupIdMap,
 				Map<Long, String> newContactIdMap, int skippedResponse,
 				Restrictions restrictions) {
+			this(syncstate, serverContacts, serverGroups, newServerAnchor,
+					clientId, newGroupIdMap, newContactIdMap, skippedResponse,
+					restrictions, null);
+		}
+
+		public SyncResponse(SyncState syncstate,
+				List<RawContact> serverContacts,
+				List<ContactGroup> serverGroups, SyncAnchor newServerAnchor,
+				String clientId, Map<Long, String> newGroupIdMap,
+				Map<Long, String> newContactIdMap, int skippedResponse,
+				Restrictions restrictions, String continuation) {
 			super();
 			this.syncstate = syncstate;
 			this.serverContacts = serverContacts;
@@ -654,6 +2168,7 @@ public final class RequestGenerator {
 			this.newContactIdMap = newContactIdMap;
 			this.skippedResponse = skippedResponse;
 			this.restrictions = restrictions;
+			this.continuation = continuation;
 		}
 	}
 
@@ -663,6 +2178,8 @@ public final class RequestGenerator {
 	public static class SyncPrepErrorStatistic {
 		private int ignoredRows = 0;
 
+		private int unchangedRows = 0;
+
 		public void incIgnoredRows() {
 			ignoredRows++;
 		}
@@ -670,6 +2187,18 @@ public final class RequestGenerator {
 		public int getIgnoredRows() {
 			return ignoredRows;
 		}
+
+		void addUnchangedRows(int count) {
+			unchangedRows += count;
+		}
+
+		/**
+		 * @return count of dirty contacts which were not sent because they
+		 *         did not change since the last sync.
+		 */
+		public int getUnchangedRows() {
+			return unchangedRows;
+		}
 	}
 
 }
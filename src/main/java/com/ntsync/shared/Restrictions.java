@@ -32,6 +32,20 @@ public class Restrictions {
 
 	private final Date validUntil;
 
+	private final boolean binaryJsonSupported;
+
+	private final boolean envelopeSupported;
+
+	private final boolean photoRefSupported;
+
+	private final boolean textDeltaSupported;
+
+	private final boolean gcmSupported;
+
+	private final boolean binaryTextSupported;
+
+	private final boolean textCompressionSupported;
+
 	/**
 	 * 
 	 * @param maxContactCount
@@ -43,11 +57,236 @@ public class Restrictions {
 	 */
 	public Restrictions(int maxContactCount, int maxGroupCount,
 			boolean photoSyncSupported, Date validUntil) {
+		this(maxContactCount, maxGroupCount, photoSyncSupported, validUntil,
+				false);
+	}
+
+	/**
+	 * 
+	 * @param maxContactCount
+	 * @param maxGroupCount
+	 * @param photoSyncSupported
+	 * @param validUntil
+	 *            null if no subscription is available, otherwise the last date
+	 *            of the current subscription interval.
+	 * @param binaryJsonSupported
+	 *            true if the server accepts requests in binary JSON
+	 *            ({@link RequestGenerator#PROT_VERSION_BINARY_JSON}).
+	 */
+	public Restrictions(int maxContactCount, int maxGroupCount,
+			boolean photoSyncSupported, Date validUntil,
+			boolean binaryJsonSupported) {
+		this(maxContactCount, maxGroupCount, photoSyncSupported, validUntil,
+				binaryJsonSupported, false);
+	}
+
+	/**
+	 * 
+	 * @param maxContactCount
+	 * @param maxGroupCount
+	 * @param photoSyncSupported
+	 * @param validUntil
+	 *            null if no subscription is available, otherwise the last date
+	 *            of the current subscription interval.
+	 * @param binaryJsonSupported
+	 *            true if the server accepts requests in binary JSON
+	 *            ({@link RequestGenerator#PROT_VERSION_BINARY_JSON}).
+	 * @param envelopeSupported
+	 *            true if the server accepts rows in envelopes
+	 *            ({@link ContactConstants#TYPE_CONTACT_ENVELOPE}).
+	 */
+	public Restrictions(int maxContactCount, int maxGroupCount,
+			boolean photoSyncSupported, Date validUntil,
+			boolean binaryJsonSupported, boolean envelopeSupported) {
+		this(maxContactCount, maxGroupCount, photoSyncSupported, validUntil,
+				binaryJsonSupported, envelopeSupported, false);
+	}
+
+	/**
+	 * 
+	 * @param maxContactCount
+	 * @param maxGroupCount
+	 * @param photoSyncSupported
+	 * @param validUntil
+	 *            null if no subscription is available, otherwise the last date
+	 *            of the current subscription interval.
+	 * @param binaryJsonSupported
+	 *            true if the server accepts requests in binary JSON
+	 *            ({@link RequestGenerator#PROT_VERSION_BINARY_JSON}).
+	 * @param envelopeSupported
+	 *            true if the server accepts rows in envelopes
+	 *            ({@link ContactConstants#TYPE_CONTACT_ENVELOPE}).
+	 * @param photoRefSupported
+	 *            true if the server keeps the last photo of a contact when a
+	 *            row contains only its reference (
+	 *            {@link ContactConstants#PHOTO_REF}).
+	 */
+	public Restrictions(int maxContactCount, int maxGroupCount,
+			boolean photoSyncSupported, Date validUntil,
+			boolean binaryJsonSupported, boolean envelopeSupported,
+			boolean photoRefSupported) {
+		this(maxContactCount, maxGroupCount, photoSyncSupported, validUntil,
+				binaryJsonSupported, envelopeSupported, photoRefSupported,
+				false);
+	}
+
+	/**
+	 * 
+	 * @param maxContactCount
+	 * @param maxGroupCount
+	 * @param photoSyncSupported
+	 * @param validUntil
+	 *            null if no subscription is available, otherwise the last date
+	 *            of the current subscription interval.
+	 * @param binaryJsonSupported
+	 *            true if the server accepts requests in binary JSON
+	 *            ({@link RequestGenerator#PROT_VERSION_BINARY_JSON}).
+	 * @param envelopeSupported
+	 *            true if the server accepts rows in envelopes
+	 *            ({@link ContactConstants#TYPE_CONTACT_ENVELOPE}).
+	 * @param photoRefSupported
+	 *            true if the server keeps the last photo of a contact when a
+	 *            row contains only its reference (
+	 *            {@link ContactConstants#PHOTO_REF}).
+	 * @param textDeltaSupported
+	 *            true if the server accepts rows which contain only the
+	 *            changes since the previous version (
+	 *            {@link ContactConstants#TEXTDELTA}).
+	 */
+	public Restrictions(int maxContactCount, int maxGroupCount,
+			boolean photoSyncSupported, Date validUntil,
+			boolean binaryJsonSupported, boolean envelopeSupported,
+			boolean photoRefSupported, boolean textDeltaSupported) {
+		this(maxContactCount, maxGroupCount, photoSyncSupported, validUntil,
+				binaryJsonSupported, envelopeSupported, photoRefSupported,
+				textDeltaSupported, false);
+	}
+
+	/**
+	 * 
+	 * @param maxContactCount
+	 * @param maxGroupCount
+	 * @param photoSyncSupported
+	 * @param validUntil
+	 *            null if no subscription is available, otherwise the last date
+	 *            of the current subscription interval.
+	 * @param binaryJsonSupported
+	 *            true if the server accepts requests in binary JSON
+	 *            ({@link RequestGenerator#PROT_VERSION_BINARY_JSON}).
+	 * @param envelopeSupported
+	 *            true if the server accepts rows in envelopes
+	 *            ({@link ContactConstants#TYPE_CONTACT_ENVELOPE}).
+	 * @param photoRefSupported
+	 *            true if the server keeps the last photo of a contact when a
+	 *            row contains only its reference (
+	 *            {@link ContactConstants#PHOTO_REF}).
+	 * @param textDeltaSupported
+	 *            true if the server accepts rows which contain only the
+	 *            changes since the previous version (
+	 *            {@link ContactConstants#TEXTDELTA}).
+	 * @param gcmSupported
+	 *            true if all clients of the account can decode values
+	 *            encrypted with {@link CipherSuite#GCM}.
+	 */
+	public Restrictions(int maxContactCount, int maxGroupCount,
+			boolean photoSyncSupported, Date validUntil,
+			boolean binaryJsonSupported, boolean envelopeSupported,
+			boolean photoRefSupported, boolean textDeltaSupported,
+			boolean gcmSupported) {
+		this(maxContactCount, maxGroupCount, photoSyncSupported, validUntil,
+				binaryJsonSupported, envelopeSupported, photoRefSupported,
+				textDeltaSupported, gcmSupported, false);
+	}
+
+	/**
+	 * 
+	 * @param maxContactCount
+	 * @param maxGroupCount
+	 * @param photoSyncSupported
+	 * @param validUntil
+	 *            null if no subscription is available, otherwise the last date
+	 *            of the current subscription interval.
+	 * @param binaryJsonSupported
+	 *            true if the server accepts requests in binary JSON
+	 *            ({@link RequestGenerator#PROT_VERSION_BINARY_JSON}).
+	 * @param envelopeSupported
+	 *            true if the server accepts rows in envelopes
+	 *            ({@link ContactConstants#TYPE_CONTACT_ENVELOPE}).
+	 * @param photoRefSupported
+	 *            true if the server keeps the last photo of a contact when a
+	 *            row contains only its reference (
+	 *            {@link ContactConstants#PHOTO_REF}).
+	 * @param textDeltaSupported
+	 *            true if the server accepts rows which contain only the
+	 *            changes since the previous version (
+	 *            {@link ContactConstants#TEXTDELTA}).
+	 * @param gcmSupported
+	 *            true if all clients of the account can decode values
+	 *            encrypted with {@link CipherSuite#GCM}.
+	 * @param binaryTextSupported
+	 *            true if all clients of the account can decode text data in
+	 *            {@link TextFormat#BINARY}.
+	 */
+	public Restrictions(int maxContactCount, int maxGroupCount,
+			boolean photoSyncSupported, Date validUntil,
+			boolean binaryJsonSupported, boolean envelopeSupported,
+			boolean photoRefSupported, boolean textDeltaSupported,
+			boolean gcmSupported, boolean binaryTextSupported) {
+		this(maxContactCount, maxGroupCount, photoSyncSupported, validUntil,
+				binaryJsonSupported, envelopeSupported, photoRefSupported,
+				textDeltaSupported, gcmSupported, binaryTextSupported, false);
+	}
+
+	/**
+	 * 
+	 * @param maxContactCount
+	 * @param maxGroupCount
+	 * @param photoSyncSupported
+	 * @param validUntil
+	 *            null if no subscription is available, otherwise the last date
+	 *            of the current subscription interval.
+	 * @param binaryJsonSupported
+	 *            true if the server accepts requests in binary JSON
+	 *            ({@link RequestGenerator#PROT_VERSION_BINARY_JSON}).
+	 * @param envelopeSupported
+	 *            true if the server accepts rows in envelopes
+	 *            ({@link ContactConstants#TYPE_CONTACT_ENVELOPE}).
+	 * @param photoRefSupported
+	 *            true if the server keeps the last photo of a contact when a
+	 *            row contains only its reference (
+	 *            {@link ContactConstants#PHOTO_REF}).
+	 * @param textDeltaSupported
+	 *            true if the server accepts rows which contain only the
+	 *            changes since the previous version (
+	 *            {@link ContactConstants#TEXTDELTA}).
+	 * @param gcmSupported
+	 *            true if all clients of the account can decode values
+	 *            encrypted with {@link CipherSuite#GCM}.
+	 * @param binaryTextSupported
+	 *            true if all clients of the account can decode text data in
+	 *            {@link TextFormat#BINARY}.
+	 * @param textCompressionSupported
+	 *            true if all clients of the account can decode compressed
+	 *            text data.
+	 */
+	public Restrictions(int maxContactCount, int maxGroupCount,
+			boolean photoSyncSupported, Date validUntil,
+			boolean binaryJsonSupported, boolean envelopeSupported,
+			boolean photoRefSupported, boolean textDeltaSupported,
+			boolean gcmSupported, boolean binaryTextSupported,
+			boolean textCompressionSupported) {
 		super();
 		this.maxContactCount = maxContactCount;
 		this.maxGroupCount = maxGroupCount;
 		this.photoSyncSupported = photoSyncSupported;
 		this.validUntil = validUntil;
+		this.binaryJsonSupported = binaryJsonSupported;
+		this.envelopeSupported = envelopeSupported;
+		this.photoRefSupported = photoRefSupported;
+		this.textDeltaSupported = textDeltaSupported;
+		this.gcmSupported = gcmSupported;
+		this.binaryTextSupported = binaryTextSupported;
+		this.textCompressionSupported = textCompressionSupported;
 	}
 
 	public int getMaxContactCount() {
@@ -62,6 +301,60 @@ public class Restrictions {
 		return photoSyncSupported;
 	}
 
+	/**
+	 * @return true if the server accepts requests in binary JSON.
+	 */
+	public boolean isBinaryJsonSupported() {
+		return binaryJsonSupported;
+	}
+
+	/**
+	 * @return true if the server accepts rows in envelopes.
+	 */
+	public boolean isEnvelopeSupported() {
+		return envelopeSupported;
+	}
+
+	/**
+	 * @return true if unchanged photos can be omitted in a request, the
+	 *         server keeps the last photo of the contact.
+	 */
+	public boolean isPhotoRefSupported() {
+		return photoRefSupported;
+	}
+
+	/**
+	 * @return true if a contact can be sent as delta to its last synced
+	 *         version, the server keeps the previous versions and the photo.
+	 */
+	public boolean isTextDeltaSupported() {
+		return textDeltaSupported;
+	}
+
+	/**
+	 * @return true if all clients of the account can decode values encrypted
+	 *         with {@link CipherSuite#GCM}.
+	 */
+	public boolean isGcmSupported() {
+		return gcmSupported;
+	}
+
+	/**
+	 * @return true if all clients of the account can decode text data in
+	 *         {@link TextFormat#BINARY}.
+	 */
+	public boolean isBinaryTextSupported() {
+		return binaryTextSupported;
+	}
+
+	/**
+	 * @return true if all clients of the account can decode compressed text
+	 *         data.
+	 */
+	public boolean isTextCompressionSupported() {
+		return textCompressionSupported;
+	}
+
 	/**
 	 * @return null if there is no end date
 	 */
@@ -95,6 +388,27 @@ public class Restrictions {
 		if (photoSyncSupported != other.photoSyncSupported) {
 			return false;
 		}
+		if (binaryJsonSupported != other.binaryJsonSupported) {
+			return false;
+		}
+		if (envelopeSupported != other.envelopeSupported) {
+			return false;
+		}
+		if (photoRefSupported != other.photoRefSupported) {
+			return false;
+		}
+		if (textDeltaSupported != other.textDeltaSupported) {
+			return false;
+		}
+		if (gcmSupported != other.gcmSupported) {
+			return false;
+		}
+		if (binaryTextSupported != other.binaryTextSupported) {
+			return false;
+		}
+		if (textCompressionSupported != other.textCompressionSupported) {
+			return false;
+		}
 		if (validUntil == null && other.validUntil != null) {
 			return false;
 		}
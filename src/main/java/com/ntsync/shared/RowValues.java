@@ -0,0 +1,302 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * The values of one row, each value is a range of a byte-array (mostly the
+ * response-buffer). The value-keys are single bytes, so the values are found
+ * with a table of 256 slots without boxing or hashing. A segment of an
+ * envelope is kept in place with its derived nonce.
+ * 
+ * An instance can be reused for all rows with {@link #clear()}. Not
+ * thread-safe.
+ */
+public final class RowValues {
+
+	private static final int SLOT_COUNT = 256;
+
+	private static final int KEY_MASK = 0xFF;
+
+	private static final int DEFAULT_CAPACITY = 8;
+
+	/**
+	 * Index+1 of the value for every key, 0 if the key is not available. A
+	 * short holds the index of all 256 keys.
+	 */
+	private final short[] slots = new short[SLOT_COUNT];
+
+	private byte[] keys;
+	private byte[][] arrays;
+	private int[] offsets;
+	private int[] lengths;
+	private int count;
+
+	/**
+	 * Nonces of the segments, {@link CryptoHelper#IV_LEN} bytes for every
+	 * value. Is created with the first segment.
+	 */
+	private byte[] nonces;
+	private boolean[] segments;
+
+	public RowValues() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	private RowValues(int capacity) {
+		keys = new byte[capacity];
+		arrays = new byte[capacity][];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * Creates RowValues from a Map with values. The ByteBuffers have to be
+	 * backed by an array.
+	 * 
+	 * @param values
+	 * @return never null
+	 */
+	public static RowValues valueOf(Map<Byte, ByteBuffer> values) {
+		RowValues rowValues = new RowValues(Math.max(values.size(), 1));
+		for (Map.Entry<Byte, ByteBuffer> entry : values.entrySet()) {
+			ByteBuffer buf = entry.getValue();
+			if (buf != null) {
+				rowValues.put(entry.getKey().byteValue(), buf.array(),
+						buf.arrayOffset() + buf.position(), buf.remaining());
+			}
+		}
+		return rowValues;
+	}
+
+	/**
+	 * Adds or replaces a value. The array is not copied.
+	 * 
+	 * @param key
+	 *            Value-Key
+	 * @param array
+	 * @param offset
+	 *            Start of the value in the array
+	 * @param length
+	 *            Length of the value
+	 */
+	public void put(byte key, byte[] array, int offset, int length) {
+		int slot = key & KEY_MASK;
+		int index = slots[slot];
+		if (index == 0) {
+			if (count == keys.length) {
+				grow();
+			}
+			index = ++count;
+			slots[slot] = (short) index;
+			keys[index - 1] = key;
+		}
+		arrays[index - 1] = array;
+		offsets[index - 1] = offset;
+		lengths[index - 1] = length;
+		if (segments != null) {
+			segments[index - 1] = false;
+		}
+	}
+
+	/**
+	 * Adds or replaces a segment of an envelope. The array is not copied,
+	 * the nonce of the segment is derived from the envelope.
+	 * 
+	 * @param key
+	 *            Value-Key
+	 * @param array
+	 * @param offset
+	 *            Start of the segment preamble (without IV) in the array
+	 * @param length
+	 *            Length of the segment with preamble
+	 * @param envelopeIv
+	 *            IV of the envelope
+	 * @param rowIndex
+	 *            index of the row in the envelope
+	 * @param valueIndex
+	 *            index of the value in the row
+	 */
+	public void putSegment(byte key, byte[] array, int offset, int length,
+			byte[] envelopeIv, int rowIndex, int valueIndex) {
+		put(key, array, offset, length);
+		int index = slots[key & KEY_MASK] - 1;
+		if (segments == null) {
+			segments = new boolean[keys.length];
+			nonces = new byte[keys.length * CryptoHelper.IV_LEN];
+		}
+		segments[index] = true;
+		CryptoHelper.initSegmentIv(envelopeIv, rowIndex, valueIndex, nonces,
+				index * CryptoHelper.IV_LEN);
+	}
+
+	/**
+	 * @return true if the value is a segment of an envelope
+	 */
+	public boolean isSegment(byte key) {
+		int index = slots[key & KEY_MASK];
+		return index > 0 && segments != null && segments[index - 1];
+	}
+
+	/**
+	 * Copies the nonce of a segment.
+	 * 
+	 * @param key
+	 *            Value-Key of a segment
+	 * @param iv
+	 *            receives the nonce
+	 * @param offset
+	 *            start of the nonce in iv
+	 */
+	public void getSegmentIv(byte key, byte[] iv, int offset) {
+		if (!isSegment(key)) {
+			throw new IllegalArgumentException("No segment for key:" + key);
+		}
+		int index = slots[key & KEY_MASK] - 1;
+		System.arraycopy(nonces, index * CryptoHelper.IV_LEN, iv, offset,
+				CryptoHelper.IV_LEN);
+	}
+
+	public boolean contains(byte key) {
+		return slots[key & KEY_MASK] != 0;
+	}
+
+	/**
+	 * @return Array containing the value or null if the value is not
+	 *         available
+	 */
+	public byte[] getArray(byte key) {
+		int index = slots[key & KEY_MASK];
+		return index > 0 ? arrays[index - 1] : null;
+	}
+
+	/**
+	 * @return Start of the value in the array or -1 if the value is not
+	 *         available
+	 */
+	public int getOffset(byte key) {
+		int index = slots[key & KEY_MASK];
+		return index > 0 ? offsets[index - 1] : -1;
+	}
+
+	/**
+	 * @return Length of the value or -1 if the value is not available
+	 */
+	public int getLength(byte key) {
+		int index = slots[key & KEY_MASK];
+		return index > 0 ? lengths[index - 1] : -1;
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return value decoded as UTF-8 or null if the value is not available
+	 * @throws UnsupportedEncodingException
+	 */
+	public String getString(byte key) throws UnsupportedEncodingException {
+		int index = slots[key & KEY_MASK];
+		if (index > 0) {
+			// Android has UTF-8 as default
+			return new String(arrays[index - 1], offsets[index - 1],
+					lengths[index - 1], SyncDataHelper.DEFAULT_CHARSET_NAME);
+		}
+		return null;
+	}
+
+	/**
+	 * @return count of available values
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Removes all values, the allocated tables are kept.
+	 */
+	public void clear() {
+		for (int i = 0; i < count; i++) {
+			slots[keys[i] & KEY_MASK] = 0;
+			arrays[i] = null;
+			if (segments != null) {
+				segments[i] = false;
+			}
+		}
+		count = 0;
+	}
+
+	/**
+	 * Creates a copy which refers the same arrays.
+	 * 
+	 * @return new instance
+	 */
+	public RowValues copy() {
+		RowValues copy = new RowValues(Math.max(count, 1));
+		for (int i = 0; i < count; i++) {
+			copy.put(keys[i], arrays[i], offsets[i], lengths[i]);
+		}
+		if (segments != null) {
+			copy.segments = new boolean[copy.keys.length];
+			copy.nonces = new byte[copy.keys.length * CryptoHelper.IV_LEN];
+			System.arraycopy(segments, 0, copy.segments, 0, count);
+			System.arraycopy(nonces, 0, copy.nonces, 0, count
+					* CryptoHelper.IV_LEN);
+		}
+		return copy;
+	}
+
+	/**
+	 * Changes all values which refer to oldArray to newArray, used when a
+	 * buffer has to be enlarged.
+	 */
+	void replaceArray(byte[] oldArray, byte[] newArray) {
+		for (int i = 0; i < count; i++) {
+			if (arrays[i] == oldArray) {
+				arrays[i] = newArray;
+			}
+		}
+	}
+
+	private void grow() {
+		int newCapacity = keys.length * 2;
+		byte[] newKeys = new byte[newCapacity];
+		byte[][] newArrays = new byte[newCapacity][];
+		int[] newOffsets = new int[newCapacity];
+		int[] newLengths = new int[newCapacity];
+		System.arraycopy(keys, 0, newKeys, 0, count);
+		System.arraycopy(arrays, 0, newArrays, 0, count);
+		System.arraycopy(offsets, 0, newOffsets, 0, count);
+		System.arraycopy(lengths, 0, newLengths, 0, count);
+		keys = newKeys;
+		arrays = newArrays;
+		offsets = newOffsets;
+		lengths = newLengths;
+		if (segments != null) {
+			boolean[] newSegments = new boolean[newCapacity];
+			byte[] newNonces = new byte[newCapacity * CryptoHelper.IV_LEN];
+			System.arraycopy(segments, 0, newSegments, 0, count);
+			System.arraycopy(nonces, 0, newNonces, 0, count
+					* CryptoHelper.IV_LEN);
+			segments = newSegments;
+			nonces = newNonces;
+		}
+	}
+}
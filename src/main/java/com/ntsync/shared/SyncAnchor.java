@@ -31,6 +31,10 @@ public class SyncAnchor {
 
 	private Map<Byte, Long> anchors = new HashMap<Byte, Long>();
 
+	private String continuation;
+
+	private int pageSize;
+
 	public Long getAnchor(byte containerType) {
 		return anchors.get(containerType);
 	}
@@ -58,4 +62,53 @@ public class SyncAnchor {
 		return anchors.keySet();
 	}
 
+	/**
+	 * @return token of the server for the next page of a paged sync, null if
+	 *         the last sync was complete.
+	 */
+	public String getContinuation() {
+		return continuation;
+	}
+
+	/**
+	 * 
+	 * @param continuation
+	 *            token of the server for the next page, null to start a new
+	 *            sync.
+	 */
+	public void setContinuation(String continuation) {
+		this.continuation = continuation;
+	}
+
+	/**
+	 * 
+	 * @return maximal count of rows in the response, 0 if unlimited.
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Limits the count of rows in the response to a request with this
+	 * anchor. If the server has more rows, the response contains a
+	 * continuation token ({@link RequestGenerator.SyncResponse#continuation})
+	 * which is also stored in the new sync anchor. A request with this anchor
+	 * returns the next page, so an interrupted sync is resumed with the last
+	 * stored anchor. The page size is not sent back by the server, so it has
+	 * to be set again for the request of the next page.
+	 * 
+	 * The dirty rows can be sent in pages too by passing sublists, the rows
+	 * which were not sent stay dirty for the next request.
+	 * 
+	 * @param pageSize
+	 *            maximal count of rows in the response, 0 for unlimited.
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize < 0) {
+			throw new IllegalArgumentException("Invalid page size:"
+					+ pageSize);
+		}
+		this.pageSize = pageSize;
+	}
+
 }
@@ -18,7 +18,9 @@ package com.ntsync.shared;
  * <http://www.gnu.org/licenses/gpl-3.0.html>. 
  */
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 
@@ -103,6 +105,27 @@ public final class SyncDataHelper {
 		return value;
 	}
 
+	/**
+	 * Reads an int written with {@link #writeInt(OutputStream, int)}
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 * @throws EOFException
+	 *             if the stream ends before 4 bytes were read.
+	 */
+	public static int readInt(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift <= BYTE3; shift += BYTE1) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value = value | (b << shift);
+		}
+		return value;
+	}
+
 	public static short readShort(byte[] buffer, int index) {
 		int i = index;
 		int value = buffer[i++] & BYTE_MASK;
@@ -0,0 +1,177 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/**
+ * Optional inputs for creating a request and processing a response with
+ * {@link RequestGenerator}. Nothing is set by default, so the request and
+ * the response are handled like without options.
+ */
+public class SyncOptions {
+
+	private Executor executor;
+
+	private Map<Long, byte[]> syncedHashes;
+
+	private Map<Long, byte[]> syncedPhotoRefs;
+
+	private JsonFactory binaryJsonFactory;
+
+	private Map<Long, RawContact> syncedContacts;
+
+	private SyncedContactCache syncedContactCache;
+
+	private PhotoCache photoCache;
+
+	/**
+	 * @return Executor for encoding and decoding the rows, null if the rows
+	 *         are processed in the current thread.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * The rows are encoded or decoded in batches with the executor, the order
+	 * of the rows is preserved. Is not used for streams.
+	 * 
+	 * @param executor
+	 *            null to process the rows in the current thread.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public Map<Long, byte[]> getSyncedHashes() {
+		return syncedHashes;
+	}
+
+	/**
+	 * A dirty contact is skipped if its content hash (
+	 * {@link RawContact#computeContentHash(ContactCodecContext, String)}) is
+	 * the same as in syncedHashes. Deleted contacts are always sent. Skipped
+	 * contacts are counted in
+	 * {@link RequestGenerator.SyncPrepErrorStatistic#getUnchangedRows()}.
+	 * 
+	 * @param syncedHashes
+	 *            Content hash of the last sync by raw contact id (the hash of
+	 *            the synced row, {@link RawContact#getHash(RowValues)}). If
+	 *            null all dirty contacts are sent.
+	 */
+	public void setSyncedHashes(Map<Long, byte[]> syncedHashes) {
+		this.syncedHashes = syncedHashes;
+	}
+
+	public Map<Long, byte[]> getSyncedPhotoRefs() {
+		return syncedPhotoRefs;
+	}
+
+	/**
+	 * Only a reference ({@link ContactConstants#PHOTO_REF}) is sent for a
+	 * photo whose reference (
+	 * {@link RawContact#computePhotoRef(ContactCodecContext)}) is the same as
+	 * in syncedPhotoRefs. Photos are only omitted if the server keeps the
+	 * last photo ({@link Restrictions#isPhotoRefSupported()}).
+	 * 
+	 * @param syncedPhotoRefs
+	 *            Photo reference of the last sync by raw contact id. If null
+	 *            all photos are sent.
+	 */
+	public void setSyncedPhotoRefs(Map<Long, byte[]> syncedPhotoRefs) {
+		this.syncedPhotoRefs = syncedPhotoRefs;
+	}
+
+	public JsonFactory getBinaryJsonFactory() {
+		return binaryJsonFactory;
+	}
+
+	/**
+	 * The text data of a request is encoded in binary JSON if the server
+	 * supports it ({@link Restrictions#isBinaryJsonSupported()}).
+	 * 
+	 * @param binaryJsonFactory
+	 *            factory for a binary JSON format (e.g. SmileFactory of
+	 *            jackson-dataformat-smile), has to detect its own format with
+	 *            {@link JsonFactory#hasFormat(com.fasterxml.jackson.core.format.InputAccessor)}
+	 *            . If set {@link TextFormat#BINARY_JSON} is announced to the
+	 *            server and the frames with
+	 *            {@link RequestGenerator#PROT_VERSION_BINARY_JSON} are decoded
+	 *            with it. Null to use only JSON.
+	 */
+	public void setBinaryJsonFactory(JsonFactory binaryJsonFactory) {
+		this.binaryJsonFactory = binaryJsonFactory;
+	}
+
+	public Map<Long, RawContact> getSyncedContacts() {
+		return syncedContacts;
+	}
+
+	/**
+	 * A contact of a request contains only the changes since its last synced
+	 * version ({@link ContactConstants#TEXTDELTA}) if the server supports it (
+	 * {@link Restrictions#isTextDeltaSupported()}). The request announces
+	 * that the client can decode deltas, so also set
+	 * {@link #setSyncedContactCache(SyncedContactCache)} for the response.
+	 * 
+	 * @param syncedContacts
+	 *            last synced version of the contacts by raw contact id. If
+	 *            null the contacts are sent completely and no deltas are
+	 *            requested.
+	 */
+	public void setSyncedContacts(Map<Long, RawContact> syncedContacts) {
+		this.syncedContacts = syncedContacts;
+	}
+
+	public SyncedContactCache getSyncedContactCache() {
+		return syncedContactCache;
+	}
+
+	/**
+	 * The rows of a response which contain only the changes since the
+	 * previous version are merged with the synced contacts. Deltas without
+	 * their base version are counted in
+	 * {@link RequestGenerator.SyncResponse#skippedResponse}.
+	 * 
+	 * @param syncedContactCache
+	 *            cache of the last synced contacts, null if deltas are not
+	 *            decoded.
+	 */
+	public void setSyncedContactCache(SyncedContactCache syncedContactCache) {
+		this.syncedContactCache = syncedContactCache;
+	}
+
+	public PhotoCache getPhotoCache() {
+		return photoCache;
+	}
+
+	/**
+	 * 
+	 * @param photoCache
+	 *            Cache for the photos of contacts in a response which only
+	 *            contain a photo reference. Can be null.
+	 */
+	public void setPhotoCache(PhotoCache photoCache) {
+		this.photoCache = photoCache;
+	}
+}
@@ -0,0 +1,46 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+import com.ntsync.shared.RequestGenerator.SyncResponse;
+
+/**
+ * Creates the requests for the pages of a paged sync and applies the decoded
+ * pages, see {@link SyncPipeline}. Is called in the thread of the pipeline.
+ */
+public interface SyncPageListener {
+
+	/**
+	 * 
+	 * @param anchor
+	 *            new sync anchor of the previous page, contains the
+	 *            continuation token for the next page. The page size (
+	 *            {@link SyncAnchor#setPageSize(int)}) has to be set again.
+	 * @return request for the next page
+	 * @throws HeaderCreateException
+	 */
+	byte[] createPageRequest(SyncAnchor anchor) throws HeaderCreateException;
+
+	/**
+	 * Applies a page, the pages are applied in the order of the sync.
+	 * 
+	 * @param page
+	 *            decoded response of the server
+	 */
+	void applyPage(SyncResponse page);
+}
@@ -0,0 +1,271 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.SecretKey;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.ntsync.shared.RequestGenerator.SyncResponse;
+
+/**
+ * Runs a paged sync (see {@link SyncAnchor#setPageSize(int)}) in a
+ * pipeline: while page N-1 is applied in the current thread, page N is
+ * decoded and page N+1 is fetched with the executor. So the latency of the
+ * network is hidden behind decrypting and parsing.
+ * 
+ * The request for the next page is created as soon as the header of a page
+ * is received, the rows are decoded afterwards.
+ */
+public final class SyncPipeline {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(SyncPipeline.class);
+
+	private static final String APPLY_FAILED_MSG = "Received page could not be applied after the sync failed.";
+
+	private final SyncTransport transport;
+
+	private final SecretKey key;
+
+	private final String clientId;
+
+	private final Executor executor;
+
+	private PhotoCache photoCache;
+
+	private JsonFactory binaryJsonFactory;
+
+	private SyncedContactCache syncedContacts;
+
+	private int appliedPages;
+
+	/**
+	 * 
+	 * @param transport
+	 *            sends the requests to the server
+	 * @param key
+	 * @param clientId
+	 * @param executor
+	 *            Executor for fetching and decoding the pages. Needs two
+	 *            threads to fetch and decode at the same time.
+	 */
+	public SyncPipeline(SyncTransport transport, SecretKey key,
+			String clientId, Executor executor) {
+		this.transport = transport;
+		this.key = key;
+		this.clientId = clientId;
+		this.executor = executor;
+	}
+
+	/**
+	 * 
+	 * @param photoCache
+	 *            Cache for the photos of contacts which only contain a photo
+	 *            reference. Can be null.
+	 */
+	public void setPhotoCache(PhotoCache photoCache) {
+		this.photoCache = photoCache;
+	}
+
+	/**
+	 * 
+	 * @param factory
+	 *            factory for a binary JSON format, the pages are decoded with
+	 *            it. Null to decode only JSON.
+	 */
+	public void setBinaryJsonFactory(JsonFactory factory) {
+		this.binaryJsonFactory = factory;
+	}
+
+	/**
+	 * 
+	 * @param cache
+	 *            cache of the last synced contacts for decoding deltas, can
+	 *            be null.
+	 */
+	public void setSyncedContactCache(SyncedContactCache cache) {
+		this.syncedContacts = cache;
+	}
+
+	/**
+	 * Runs the sync until a page without continuation token is applied.
+	 * 
+	 * If the sync fails, the pages which were received completely are applied
+	 * before the exception is thrown, unless applying a page failed. So the
+	 * sync can be resumed with the sync anchor of the last applied page, see
+	 * {@link #getAppliedPages()}.
+	 * 
+	 * @param request
+	 *            request for the first page
+	 * @param listener
+	 *            creates the requests for the following pages and applies
+	 *            the pages
+	 * @return count of applied pages
+	 * @throws IOException
+	 *             if a request failed
+	 * @throws HeaderParseException
+	 * @throws HeaderCreateException
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting for a
+	 *             page.
+	 */
+	public int run(byte[] request, SyncPageListener listener)
+			throws IOException, HeaderParseException, HeaderCreateException,
+			InterruptedException {
+		appliedPages = 0;
+		FutureTask<byte[]> fetch = fetch(request);
+		// Decoded page which is not applied yet
+		FutureTask<SyncResponse> decoding = null;
+		// False while a page is applied: if it fails, the following page
+		// must not be applied.
+		boolean applicable = true;
+		boolean interrupted = false;
+		try {
+			while (fetch != null) {
+				byte[] page = getResult(fetch);
+
+				SyncResponse header = RequestGenerator.processResponseHeader(
+						clientId, page, binaryJsonFactory);
+				fetch = null;
+				if (header.continuation != null) {
+					fetch = fetch(listener
+							.createPageRequest(header.newServerAnchor));
+				}
+
+				FutureTask<SyncResponse> previous = decoding;
+				decoding = decode(page);
+				if (previous != null) {
+					applicable = false;
+					listener.applyPage(getResult(previous));
+					applicable = true;
+					appliedPages++;
+				}
+			}
+			if (decoding != null) {
+				FutureTask<SyncResponse> last = decoding;
+				decoding = null;
+				listener.applyPage(getResult(last));
+				appliedPages++;
+			}
+		} catch (InterruptedException ex) {
+			// Do not wait for the page which is decoded
+			interrupted = true;
+			throw ex;
+		} finally {
+			if (fetch != null) {
+				fetch.cancel(true);
+			}
+			if (decoding != null) {
+				// Sync failed: apply the received page
+				if (applicable && (!interrupted || decoding.isDone())) {
+					applyDecodedPage(decoding, listener);
+				}
+				decoding.cancel(true);
+			}
+		}
+		return appliedPages;
+	}
+
+	/**
+	 * @return count of the pages which were applied by the last run, also if
+	 *         it failed.
+	 */
+	public int getAppliedPages() {
+		return appliedPages;
+	}
+
+	/**
+	 * Applies a decoded page after the sync failed. A failure is only
+	 * logged, because the exception of the sync is thrown.
+	 */
+	private void applyDecodedPage(FutureTask<SyncResponse> decoding,
+			SyncPageListener listener) {
+		try {
+			listener.applyPage(getResult(decoding));
+			appliedPages++;
+		} catch (IOException ex) {
+			LOG.warn(APPLY_FAILED_MSG, ex);
+		} catch (HeaderParseException ex) {
+			LOG.warn(APPLY_FAILED_MSG, ex);
+		} catch (RuntimeException ex) {
+			LOG.warn(APPLY_FAILED_MSG, ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private FutureTask<byte[]> fetch(final byte[] request) {
+		FutureTask<byte[]> task = new FutureTask<byte[]>(
+				new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return transport.send(request);
+					}
+				});
+		executor.execute(task);
+		return task;
+	}
+
+	private FutureTask<SyncResponse> decode(final byte[] page) {
+		FutureTask<SyncResponse> task = new FutureTask<SyncResponse>(
+				new Callable<SyncResponse>() {
+					@Override
+					public SyncResponse call() throws HeaderParseException,
+							InterruptedException {
+						// Rows are decoded in this task, waiting for other
+						// tasks of the executor could block the pipeline
+						SyncOptions options = new SyncOptions();
+						options.setPhotoCache(photoCache);
+						options.setBinaryJsonFactory(binaryJsonFactory);
+						options.setSyncedContactCache(syncedContacts);
+						return RequestGenerator.processServerResponse(key,
+								clientId, page, options);
+					}
+				});
+		executor.execute(task);
+		return task;
+	}
+
+	private static <T> T getResult(FutureTask<T> task) throws IOException,
+			HeaderParseException, InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof HeaderParseException) {
+				throw (HeaderParseException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+import java.io.IOException;
+
+/**
+ * Sends sync-requests to the server, see {@link SyncPipeline}.
+ * 
+ * Is called from the threads of the executor of the pipeline, but only for
+ * one request at a time.
+ */
+public interface SyncTransport {
+
+	/**
+	 * 
+	 * @param request
+	 *            frame of a sync-request
+	 * @return complete frame of the response
+	 * @throws IOException
+	 *             if the request failed
+	 */
+	byte[] send(byte[] request) throws IOException;
+}
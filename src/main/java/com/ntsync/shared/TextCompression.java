@@ -0,0 +1,195 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the text data before it is encrypted. Compressed
+ * text data starts with {@link #COMPRESSED_MARKER} and the length of the
+ * uncompressed text, followed by a zlib stream with a preset dictionary of
+ * the JSON keys. After decompressing, the text format is detected as usual.
+ */
+final class TextCompression {
+
+	/**
+	 * First byte of compressed text data. Is different from the first byte of
+	 * all text formats ('{', {@link BinaryContactFormat#FORMAT_MARKER}).
+	 */
+	static final byte COMPRESSED_MARKER = 2;
+
+	/** Text data which is shorter is not compressed */
+	static final int MIN_COMPRESS_LEN = 64;
+
+	private static final int HEADER_LEN = 5;
+
+	/** Decompressed text data is limited to the maximal length of a value */
+	private static final int MAX_TEXT_LEN = 0x0FFFFFFF;
+
+	private static final byte[] DICTIONARY = createDictionary();
+
+	private TextCompression() {
+	}
+
+	/**
+	 * Creates the preset dictionary from the keys of the JSON text data.
+	 * Deflate finds the end of the dictionary with shorter distances, so the
+	 * most frequent parts are at the end.
+	 */
+	private static byte[] createDictionary() {
+		StringBuilder dict = new StringBuilder();
+		dict.append("{\"").append(GroupConstants.TITLE).append("\":\"");
+		String[] sections = { ContactConstants.RELATION,
+				ContactConstants.SIPADDRESS, ContactConstants.IM,
+				ContactConstants.WEBSITE, ContactConstants.EVENT,
+				ContactConstants.ORGANIZATION,
+				ContactConstants.STRUCTUREDPOSTAL, ContactConstants.NICKNAME,
+				ContactConstants.NOTE, ContactConstants.GROUPMEMBERSHIP,
+				ContactConstants.EMAIL, ContactConstants.PHONE };
+		for (String section : sections) {
+			dict.append("}],\"").append(section).append("\":[{\"");
+		}
+		String[] nameFields = { ContactConstants.PHONETIC_MIDDLE,
+				ContactConstants.PHONETIC_FAMILY,
+				ContactConstants.PHONETIC_GIVEN, ContactConstants.PREFIX_NAME,
+				ContactConstants.SUFFIX_NAME, ContactConstants.MIDDLE_NAME,
+				ContactConstants.GIVEN_NAME, ContactConstants.FAMILY_NAME };
+		dict.append("{\"").append(ContactConstants.STRUCTUREDNAME)
+				.append("\":{\"").append(ContactConstants.DISPLAY_NAME)
+				.append("\":\"");
+		for (String field : nameFields) {
+			dict.append("\",\"").append(field).append("\":\"");
+		}
+		dict.append("\"},\"");
+		dict.append(ContactConstants.LABEL).append("\":\"\",\"");
+		dict.append(ContactConstants.SUPERPRIMARY).append("\":true,\"");
+		dict.append(ContactConstants.PRIMARY).append("\":true},{\"");
+		dict.append(ContactConstants.DATA).append("\":\"\",\"");
+		dict.append(ContactConstants.TYPE).append("\":");
+		try {
+			return dict.toString().getBytes(
+					SyncDataHelper.DEFAULT_CHARSET_NAME);
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Compresses the text data if it gets smaller.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param text
+	 * @return buffer of the context with the compressed text data or text if
+	 *         it is not compressed.
+	 */
+	static ExposedByteArrayOutputStream compress(ContactCodecContext context,
+			ExposedByteArrayOutputStream text) {
+		final int textLen = text.size();
+		if (textLen < MIN_COMPRESS_LEN) {
+			return text;
+		}
+		Deflater deflater = context.getDeflater();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(text.getBuffer(), 0, textLen);
+		deflater.finish();
+
+		ExposedByteArrayOutputStream target = context.getCompressBuffer();
+		int offset = target.reserve(textLen);
+		byte[] buffer = target.getBuffer();
+		buffer[offset] = COMPRESSED_MARKER;
+		SyncDataHelper.writeInt(buffer, textLen, offset + 1);
+		int pos = offset + HEADER_LEN;
+		int end = offset + textLen;
+		while (!deflater.finished() && pos < end) {
+			pos += deflater.deflate(buffer, pos, end - pos);
+		}
+		boolean smaller = deflater.finished() && pos < end;
+		deflater.reset();
+		if (!smaller) {
+			return text;
+		}
+		target.setSize(pos);
+		return target;
+	}
+
+	/**
+	 * 
+	 * @return true if the text data was compressed with
+	 *         {@link #compress(ContactCodecContext, ExposedByteArrayOutputStream)}
+	 */
+	static boolean isCompressed(byte[] data, int len) {
+		return len > HEADER_LEN && data[0] == COMPRESSED_MARKER;
+	}
+
+	/**
+	 * Decompresses the text data.
+	 * 
+	 * @param context
+	 *            context of the current thread
+	 * @param data
+	 *            compressed text data
+	 * @param len
+	 * @return buffer of the context with the text data
+	 * @throws DataFormatException
+	 *             if the data is invalid
+	 */
+	static ExposedByteArrayOutputStream decompress(
+			ContactCodecContext context, byte[] data, int len)
+			throws DataFormatException {
+		int textLen = SyncDataHelper.readInt(data, 1);
+		if (textLen < 0 || textLen > MAX_TEXT_LEN) {
+			throw new DataFormatException("Invalid text length:" + textLen);
+		}
+		Inflater inflater = context.getInflater();
+		try {
+			inflater.setInput(data, HEADER_LEN, len - HEADER_LEN);
+			ExposedByteArrayOutputStream target = context.getCompressBuffer();
+			int offset = target.reserve(textLen);
+			byte[] buffer = target.getBuffer();
+			int pos = offset;
+			int end = offset + textLen;
+			while (!inflater.finished()) {
+				int read = inflater.inflate(buffer, pos, end - pos);
+				if (read == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY);
+					} else if (pos == end) {
+						throw new DataFormatException(
+								"Text data is longer than " + textLen);
+					} else if (inflater.needsInput()) {
+						throw new DataFormatException(
+								"Unexpected end of text data");
+					}
+				}
+				pos += read;
+			}
+			if (pos != end) {
+				throw new DataFormatException("Text data is shorter than "
+						+ textLen);
+			}
+			return target;
+		} finally {
+			inflater.reset();
+		}
+	}
+}
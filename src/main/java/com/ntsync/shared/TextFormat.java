@@ -0,0 +1,63 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+/**
+ * Encoding of the text data of a contact. The format is detected from the
+ * first byte of the decrypted text data, so rows of all formats can be
+ * decoded.
+ */
+public enum TextFormat {
+	/** JSON with short keys, supported by all versions */
+	JSON(0),
+	/** Compact tag-length-value encoding */
+	BINARY(1),
+	/**
+	 * Same structure as JSON, encoded with the binary JSON factory of
+	 * {@link ContactCodecContext#setBinaryJsonFactory(com.fasterxml.jackson.core.JsonFactory)}
+	 * (e.g. Smile)
+	 */
+	BINARY_JSON(2);
+
+	private final int val;
+
+	private TextFormat(int val) {
+		this.val = val;
+	}
+
+	public int getVal() {
+		return val;
+	}
+
+	/**
+	 * 
+	 * @param val
+	 * @return null if not found or the corresponding TextFormat
+	 */
+	public static TextFormat fromVal(int val) {
+		TextFormat f = null;
+		for (TextFormat format : TextFormat.values()) {
+			if (format.getVal() == val) {
+				f = format;
+				break;
+			}
+		}
+		return f;
+	}
+}
@@ -64,4 +64,29 @@ public class ContactGroupTest {
 		assertEquals(c.getSourceId(), newC.getSourceId());
 		assertEquals(c.getLastModified(), newC.getLastModified());
 	}
+
+	@Test
+	public void testContactGroupUnicode() throws HeaderParseException,
+			IOException, HeaderCreateException {
+		// Umlaut, Euro-Sign and a character outside of the BMP
+		String title = "Gr\u00fcppe \u20ac \ud834\udd1e \"quoted\"";
+		ContactGroup c = new ContactGroup(7L, null, title, "\u00e4\u00f6\u00fc",
+				false, null, -1);
+
+		KeyPair key = RequestGeneratorTest.generateKey();
+
+		List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		groups.add(c);
+		byte[] requestClient1 = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), null, groups, key.key, "test", null,
+				key.salt, null, null, null, false);
+
+		SyncResponse response = RequestGenerator.processServerResponse(key.key,
+				null, requestClient1);
+
+		assertEquals(1, response.serverGroups.size());
+		ContactGroup newC = response.serverGroups.get(0);
+		assertEquals(title, newC.getTitle());
+		assertEquals(c.getNotes(), newC.getNotes());
+	}
 }
@@ -20,12 +20,19 @@ package com.ntsync.shared;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 
 import org.junit.Test;
 import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.OutputLengthException;
+import org.spongycastle.crypto.engines.AESEngine;
 import org.spongycastle.crypto.modes.AEADBlockCipher;
+import org.spongycastle.crypto.modes.CCMBlockCipher;
 import org.spongycastle.crypto.params.AEADParameters;
 import org.spongycastle.crypto.params.KeyParameter;
 
@@ -122,4 +129,260 @@ public class CryptoHelperTest {
 		}
 		assertNotNull("there should be an exception if message is too big", ex);
 	}
+
+	@Test
+	public void testCipherDataBuffer() throws IOException,
+			InvalidCipherTextException {
+		AEADBlockCipher cipher = CryptoHelper.getCipher();
+
+		KeyPair secret = RequestGeneratorTest.generateKey();
+		byte[] iv = new byte[CryptoHelper.IV_LEN];
+		SecureRandom random = new SecureRandom();
+		random.nextBytes(iv);
+
+		AEADParameters params = new AEADParameters(new KeyParameter(
+				secret.key.getEncoded()), CryptoHelper.MAC_SIZE, iv);
+
+		byte[] data = new byte[1000];
+		random.nextBytes(data);
+
+		cipher.init(true, params);
+		byte[] encoded = CryptoHelper.cipherData(cipher, data, 10, 500);
+		assertEquals(500 + CryptoHelper.MAC_SIZE / 8, encoded.length);
+
+		// Encrypt into an array with an offset
+		cipher.init(true, params);
+		byte[] out = new byte[600];
+		int len = CryptoHelper.cipherData(cipher, data, 10, 500, out, 5);
+		assertEquals(encoded.length, len);
+		for (int i = 0; i < len; i++) {
+			assertEquals(encoded[i], out[5 + i]);
+		}
+
+		// Decrypt into a ByteBuffer
+		cipher.init(false, params);
+		ByteBuffer buf = ByteBuffer.allocate(520);
+		buf.position(10);
+		len = CryptoHelper.cipherData(cipher, out, 5, encoded.length, buf);
+		assertEquals(500, len);
+		assertEquals(510, buf.position());
+		for (int i = 0; i < len; i++) {
+			assertEquals(data[10 + i], buf.get(10 + i));
+		}
+
+		// Direct ByteBuffer
+		cipher.init(false, params);
+		buf = ByteBuffer.allocateDirect(500);
+		len = CryptoHelper.cipherData(cipher, encoded, 0, encoded.length, buf);
+		assertEquals(500, len);
+		assertEquals(data[10], buf.get(0));
+
+		// Too small output
+		cipher.init(true, params);
+		OutputLengthException ex = null;
+		try {
+			CryptoHelper.cipherData(cipher, data, 0, 500, new byte[510], 0);
+		} catch (OutputLengthException e) {
+			ex = e;
+		}
+		assertNotNull("there should be an exception if output is too small",
+				ex);
+	}
+
+	@Test
+	public void testPreparedKey() throws IOException,
+			InvalidCipherTextException {
+		AEADBlockCipher cipher = CryptoHelper.getCipher();
+		AEADBlockCipher refCipher = new CCMBlockCipher(new AESEngine());
+
+		PreparedKey key1 = new PreparedKey(
+				RequestGeneratorTest.generateKey().key);
+		PreparedKey key2 = new PreparedKey(
+				RequestGeneratorTest.generateKey().key);
+		SecureRandom random = new SecureRandom();
+		byte[] iv = new byte[CryptoHelper.IV_LEN];
+		byte[] data = new byte[300];
+
+		// Switch keys and direction, the cached schedule must follow
+		PreparedKey[] keys = new PreparedKey[] { key1, key1, key2, key1, key2 };
+		for (PreparedKey key : keys) {
+			random.nextBytes(iv);
+			random.nextBytes(data);
+			AEADParameters params = new AEADParameters(key.getKeyParam(),
+					CryptoHelper.MAC_SIZE, iv);
+			cipher.init(true, params);
+			refCipher.init(true, params);
+			byte[] encoded = CryptoHelper.cipherData(cipher, data);
+			assertArrayEquals(CryptoHelper.cipherData(refCipher, data),
+					encoded);
+
+			cipher.init(false, params);
+			assertArrayEquals(data, CryptoHelper.cipherData(cipher, encoded));
+		}
+	}
+
+	@Test
+	public void testJceBackend() throws IOException,
+			InvalidCipherTextException {
+		AEADBlockCipher scCipher = CryptoHelper.getCipher(CipherSuite.GCM,
+				CipherBackend.SPONGYCASTLE);
+		AEADBlockCipher jceCipher = CryptoHelper.getCipher(CipherSuite.GCM,
+				CipherBackend.JCE);
+
+		PreparedKey key = new PreparedKey(
+				RequestGeneratorTest.generateKey().key);
+		SecureRandom random = new SecureRandom();
+		byte[] iv = new byte[CryptoHelper.IV_LEN];
+		int[] sizes = new int[] { 0, 1, 16, 300, 4000 };
+		for (int size : sizes) {
+			byte[] data = new byte[size];
+			random.nextBytes(iv);
+			random.nextBytes(data);
+			AEADParameters params = new AEADParameters(key.getKeyParam(),
+					CryptoHelper.MAC_SIZE, iv);
+
+			// Same wire output with both backends
+			scCipher.init(true, params);
+			jceCipher.init(true, params);
+			byte[] encoded = CryptoHelper.cipherData(scCipher, data);
+			assertArrayEquals(encoded,
+					CryptoHelper.cipherData(jceCipher, data));
+			assertArrayEquals(scCipher.getMac(), jceCipher.getMac());
+
+			jceCipher.init(false, params);
+			assertArrayEquals(data,
+					CryptoHelper.cipherData(jceCipher, encoded));
+			assertArrayEquals(scCipher.getMac(), jceCipher.getMac());
+
+			// Modified data is detected
+			encoded[encoded.length - 1] ^= 1;
+			jceCipher.init(false, params);
+			try {
+				CryptoHelper.cipherData(jceCipher, encoded);
+				fail("Modified data not detected");
+			} catch (InvalidCipherTextException ex) {
+				// expected
+			}
+		}
+
+		// A reset does not reuse the nonce
+		jceCipher.reset();
+		try {
+			CryptoHelper.cipherData(jceCipher, new byte[10]);
+			fail("Reset cipher was initialized again");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+
+		// No JCE parameters for CCM
+		assertTrue(CryptoHelper.getCipher(CipherSuite.CCM,
+				CipherBackend.JCE) instanceof CCMBlockCipher);
+	}
+
+	@Test
+	public void testChunkedValue() throws IOException,
+			InvalidCipherTextException {
+		PreparedKey key = new PreparedKey(
+				RequestGeneratorTest.generateKey().key);
+		ContactCodecContext context = new ContactCodecContext(key,
+				CipherSuite.GCM);
+		byte valueKey = ContactConstants.PHOTO;
+		byte[] data = new byte[3 * CryptoHelper.CHUNK_SIZE + 5];
+		new SecureRandom().nextBytes(data);
+
+		// In memory
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CryptoHelper.writeValue(context, out, valueKey, data);
+		byte[] row = out.toByteArray();
+		assertTrue(CryptoHelper.isChunked(row, 1));
+		RowValues values = new RowValues();
+		values.put(valueKey, row, 1, row.length - 1);
+		assertArrayEquals(data,
+				CryptoHelper.decodeValue(valueKey, values, context));
+
+		// Stream
+		out = new ByteArrayOutputStream();
+		CryptoHelper.writeValue(context, out, valueKey,
+				new ByteArrayInputStream(data), data.length);
+		row = out.toByteArray();
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		assertEquals(data.length, CryptoHelper.decodeValue(context,
+				new ByteArrayInputStream(row, 1, row.length - 1), decoded));
+		assertArrayEquals(data, decoded.toByteArray());
+		values.put(valueKey, row, 1, row.length - 1);
+		assertArrayEquals(data,
+				CryptoHelper.decodeValue(valueKey, values, context));
+
+		// Empty stream value
+		out = new ByteArrayOutputStream();
+		CryptoHelper.writeValue(context, out, valueKey,
+				new ByteArrayInputStream(new byte[0]), 0);
+		row = out.toByteArray();
+		decoded.reset();
+		assertEquals(0, CryptoHelper.decodeValue(context,
+				new ByteArrayInputStream(row, 1, row.length - 1), decoded));
+
+		// Swapped chunks
+		out = new ByteArrayOutputStream();
+		CryptoHelper.writeValue(context, out, valueKey, data);
+		row = out.toByteArray();
+		int chunkLen = CryptoHelper.CHUNK_SIZE + CryptoHelper.MAC_SIZE / 8;
+		int start = 1 + CryptoHelper.PREAMBLE_LEN;
+		byte[] swapped = row.clone();
+		System.arraycopy(row, start, swapped, start + chunkLen, chunkLen);
+		System.arraycopy(row, start + chunkLen, swapped, start, chunkLen);
+		values.put(valueKey, swapped, 1, swapped.length - 1);
+		assertDecodeFails(valueKey, values, context);
+
+		// Truncated after the second chunk
+		int truncLen = 2 * chunkLen;
+		byte[] truncated = new byte[start + truncLen];
+		System.arraycopy(row, 0, truncated, 0, truncated.length);
+		int lenField = SyncDataHelper.readInt(row, 1 + CryptoHelper.IV_LEN);
+		SyncDataHelper.writeInt(truncated, (lenField & 0xF0000000)
+				| truncLen, 1 + CryptoHelper.IV_LEN);
+		values.put(valueKey, truncated, 1, truncated.length - 1);
+		assertDecodeFails(valueKey, values, context);
+	}
+
+	@Test
+	public void testStreamValueLength() throws IOException,
+			InvalidCipherTextException {
+		PreparedKey key = new PreparedKey(
+				RequestGeneratorTest.generateKey().key);
+		ContactCodecContext context = new ContactCodecContext(key,
+				CipherSuite.GCM);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CryptoHelper.writeValue(context, out, ContactConstants.TEXTDATA,
+				new byte[10]);
+		byte[] row = out.toByteArray();
+		assertFalse(CryptoHelper.isChunked(row, 1));
+
+		// Length of a not chunked value above the message size
+		int lenPos = 1 + CryptoHelper.IV_LEN;
+		int lenField = SyncDataHelper.readInt(row, lenPos);
+		SyncDataHelper.writeInt(row, (lenField & 0xF0000000)
+				| (CryptoHelper.MAX_MSG_SIZE + CryptoHelper.MAC_SIZE / 8 + 1),
+				lenPos);
+		IOException ex = null;
+		try {
+			CryptoHelper.decodeValue(context, new ByteArrayInputStream(row,
+					1, row.length - 1), new ByteArrayOutputStream());
+		} catch (IOException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+		assertFalse(ex instanceof EOFException);
+	}
+
+	private static void assertDecodeFails(byte valueKey, RowValues values,
+			ContactCodecContext context) {
+		InvalidCipherTextException ex = null;
+		try {
+			CryptoHelper.decodeValue(valueKey, values, context);
+		} catch (InvalidCipherTextException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+	}
 }
@@ -0,0 +1,62 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.Test;
+
+public class HashBuilderTest {
+
+	@Test
+	public void testSameAsStringBuilder() throws NoSuchAlgorithmException,
+			UnsupportedEncodingException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		HashBuilder builder = new HashBuilder(
+				MessageDigest.getInstance("SHA-256"));
+
+		StringBuilder longText = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			longText.append("\u00e4\u20ac\uD83D\uDE00x");
+		}
+		String[] values = new String[] { "", "Hans Muster", null,
+				"Müller-Lüdenscheidt", "\u4e2d\u6587", "\uD83D\uDE00",
+				"lone\uD800", "\uDC00lone", longText.toString() };
+		for (String value : values) {
+			StringBuilder text = new StringBuilder();
+			builder.append(value);
+			text.append(value);
+			builder.append(':');
+			text.append(':');
+			builder.append(7);
+			text.append(7);
+			builder.append(-12);
+			text.append(-12);
+			md.reset();
+			assertArrayEquals(
+					md.digest(text.toString().getBytes(
+							SyncDataHelper.DEFAULT_CHARSET_NAME)),
+					builder.digest());
+		}
+	}
+}
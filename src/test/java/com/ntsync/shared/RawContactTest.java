@@ -22,9 +22,16 @@ package com.ntsync.shared;
 import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
 
@@ -170,6 +177,383 @@ public class RawContactTest {
 		Assert.assertEquals(-1, newC.getVersion());
 	}
 
+	@Test
+	public void testCodecContextReuse() throws IOException,
+			InvalidKeyException {
+		KeyPair key = RequestGeneratorTest.generateKey();
+		ContactCodecContext context = new ContactCodecContext(key.key);
+
+		List<RawContact> contacts = RequestGeneratorTest.createContacts(5,
+				300);
+		List<byte[]> encoded = new ArrayList<byte[]>();
+		for (RawContact contact : contacts) {
+			encoded.add(contact.toDTO(context, key.salt));
+		}
+
+		for (int i = 0; i < contacts.size(); i++) {
+			RawContact c = contacts.get(i);
+			RawContact newC = RawContact.valueOf(
+					String.valueOf(c.getRawContactId()),
+					readValues(encoded.get(i)), context);
+			compareRawContact(c, newC);
+		}
+	}
+
+	@Test
+	public void testCipherSuiteGcm() throws IOException, InvalidKeyException {
+		KeyPair key = RequestGeneratorTest.generateKey();
+		PreparedKey preparedKey = new PreparedKey(key.key);
+		ContactCodecContext gcmContext = new ContactCodecContext(preparedKey,
+				CipherSuite.GCM);
+		ContactCodecContext ccmContext = new ContactCodecContext(preparedKey);
+		ContactCodecContext jceContext = new ContactCodecContext(preparedKey,
+				CipherSuite.GCM, CipherBackend.JCE);
+
+		List<RawContact> contacts = RequestGeneratorTest.createContacts(6,
+				300);
+		List<byte[]> encoded = new ArrayList<byte[]>();
+		for (int i = 0; i < contacts.size(); i++) {
+			// Mix the cipher suites and backends
+			ContactCodecContext context = ccmContext;
+			if (i % 2 == 0) {
+				context = i % 4 == 0 ? gcmContext : jceContext;
+			}
+			encoded.add(contacts.get(i).toDTO(context, key.salt));
+		}
+
+		// Decode all with one context, the suite is taken from the values
+		for (int i = 0; i < contacts.size(); i++) {
+			RawContact c = contacts.get(i);
+			Map<Byte, ByteBuffer> values = readValues(encoded.get(i));
+			ByteBuffer textData = values.get(ContactConstants.TEXTDATA);
+			assertEquals(i % 2 == 0 ? CipherSuite.GCM : CipherSuite.CCM,
+					CryptoHelper.getCipherSuite(textData.array(),
+							textData.position()));
+			RawContact newC = RawContact.valueOf(
+					String.valueOf(c.getRawContactId()), values, ccmContext);
+			compareRawContact(c, newC);
+			// Other backend decodes the same data
+			newC = RawContact.valueOf(String.valueOf(c.getRawContactId()),
+					values, jceContext);
+			compareRawContact(c, newC);
+		}
+
+		// Wrong key
+		ContactCodecContext otherContext = new ContactCodecContext(
+				new PreparedKey(RequestGeneratorTest.generateKey().key),
+				CipherSuite.GCM);
+		InvalidKeyException ex = null;
+		try {
+			RawContact.valueOf(String.valueOf(contacts.get(0)
+					.getRawContactId()), readValues(encoded.get(0)),
+					otherContext);
+		} catch (InvalidKeyException e) {
+			ex = e;
+		}
+		Assert.assertNotNull(ex);
+	}
+
+	@Test
+	public void testFieldMask() throws IOException, InvalidKeyException {
+		RawContact c = RequestGeneratorTest.createFullContact();
+
+		KeyPair key = RequestGeneratorTest.generateKey();
+		ContactCodecContext context = new ContactCodecContext(key.key);
+		Map<Byte, ByteBuffer> values = readValues(c.toDTO(context, key.salt));
+
+		context.setFieldMask(EnumSet.of(ContactField.STRUCTURED_NAME,
+				ContactField.PHONE, ContactField.STARRED));
+		RawContact newC = RawContact.valueOf("3", values, context);
+		assertEquals(c.getFullName(), newC.getFullName());
+		assertEquals(c.getLastName(), newC.getLastName());
+		assertEquals(c.getPhone().get(0).getData(), newC.getPhone().get(0)
+				.getData());
+		assertEquals(c.isStarred(), newC.isStarred());
+		Assert.assertNull(newC.getEmail());
+		Assert.assertNull(newC.getAddress());
+		Assert.assertNull(newC.getImAddresses());
+		Assert.assertNull(newC.getOrganization());
+		Assert.assertNull(newC.getNote());
+		Assert.assertNull(newC.getPhoto());
+		Assert.assertFalse(newC.isPhotoSuperPrimary());
+
+		// No mask: all fields
+		context.setFieldMask(null);
+		compareRawContact(c, RawContact.valueOf("3", values, context));
+	}
+
+	@Test
+	public void testBinaryTextFormat() throws IOException,
+			InvalidKeyException {
+		KeyPair key = RequestGeneratorTest.generateKey();
+		ContactCodecContext jsonContext = new ContactCodecContext(key.key);
+		ContactCodecContext binaryContext = new ContactCodecContext(key.key);
+		binaryContext.setTextFormat(TextFormat.BINARY);
+
+		RawContact c = RequestGeneratorTest.createFullContact();
+		String rowId = String.valueOf(c.getRawContactId());
+		Map<Byte, ByteBuffer> jsonValues = readValues(c.toDTO(jsonContext,
+				key.salt));
+		Map<Byte, ByteBuffer> binaryValues = readValues(c.toDTO(
+				binaryContext, key.salt));
+		Assert.assertTrue(binaryValues.get(ContactConstants.TEXTDATA)
+				.remaining() < jsonValues.get(ContactConstants.TEXTDATA)
+				.remaining());
+		Assert.assertEquals(jsonValues.get(ContactConstants.HASH),
+				binaryValues.get(ContactConstants.HASH));
+
+		// Both formats can be decoded with any context
+		compareRawContact(c,
+				RawContact.valueOf(rowId, binaryValues, jsonContext));
+		compareRawContact(c,
+				RawContact.valueOf(rowId, jsonValues, binaryContext));
+		RawContact newC = RawContact.valueOf(rowId, binaryValues,
+				binaryContext);
+		compareRawContact(c, newC);
+		assertEquals(c.isStarred(), newC.isStarred());
+		assertEquals(c.isSendToVoiceMail(), newC.isSendToVoiceMail());
+		assertEquals(c.getDroidCustomRingtone(),
+				newC.getDroidCustomRingtone());
+
+		// Field mask
+		binaryContext.setFieldMask(EnumSet.of(ContactField.PHONE));
+		newC = RawContact.valueOf(rowId, binaryValues, binaryContext);
+		assertEquals(c.getPhone(), newC.getPhone());
+		Assert.assertNull(newC.getFullName());
+		Assert.assertNull(newC.getAddress());
+		Assert.assertNull(newC.getOrganization());
+	}
+
+	@Test
+	public void testBinaryTextFormatInvalid() throws IOException,
+			InvalidKeyException {
+		ContactCodecContext context = new ContactCodecContext(
+				RequestGeneratorTest.generateKey().key);
+		// Negative tag
+		assertInvalidBinaryText(new byte[] { BinaryContactFormat.FORMAT_MARKER,
+				-1, -1, -1, -1, 15, 0 }, context);
+		// Note which is longer than its field
+		assertInvalidBinaryText(new byte[] { BinaryContactFormat.FORMAT_MARKER,
+				12, 2, 3, 'a', 20, 1, 'x' }, context);
+	}
+
+	private static void assertInvalidBinaryText(byte[] data,
+			ContactCodecContext context) {
+		IOException ex = null;
+		try {
+			BinaryContactFormat.read(data, 0, data.length,
+					new ContactTextFields(), context);
+		} catch (IOException e) {
+			ex = e;
+		}
+		Assert.assertNotNull(ex);
+	}
+
+	@Test
+	public void testCompressedTextData() throws IOException,
+			InvalidKeyException {
+		KeyPair key = RequestGeneratorTest.generateKey();
+		ContactCodecContext context = new ContactCodecContext(key.key);
+		ContactCodecContext compressContext = new ContactCodecContext(key.key);
+		compressContext.setCompressText(true);
+
+		RawContact c = RequestGeneratorTest.createFullContact();
+		String rowId = String.valueOf(c.getRawContactId());
+		Map<Byte, ByteBuffer> values = readValues(c.toDTO(context, key.salt));
+		Map<Byte, ByteBuffer> compressed = readValues(c.toDTO(
+				compressContext, key.salt));
+		Assert.assertTrue(compressed.get(ContactConstants.TEXTDATA)
+				.remaining() < values.get(ContactConstants.TEXTDATA)
+				.remaining());
+		compareRawContact(c, RawContact.valueOf(rowId, compressed, context));
+		compareRawContact(c,
+				RawContact.valueOf(rowId, values, compressContext));
+
+		// Closing releases the compression, the context is still usable
+		compressContext.close();
+		compareRawContact(c,
+				RawContact.valueOf(rowId, compressed, compressContext));
+
+		// Compression of the binary format
+		compressContext.setTextFormat(TextFormat.BINARY);
+		compressed = readValues(c.toDTO(compressContext, key.salt));
+		compareRawContact(c, RawContact.valueOf(rowId, compressed, context));
+
+		// Short text data is not compressed
+		ContactGroup group = new ContactGroup(1L, null, "Group", null, false,
+				null, -1);
+		ContactGroup newGroup = ContactGroup.valueOf("1",
+				readValues(group.toDTO(compressContext, key.salt)), context);
+		assertEquals("Group", newGroup.getTitle());
+		compressContext.close();
+	}
+
+	@Test
+	public void testDelta() throws IOException, InvalidKeyException {
+		KeyPair key = RequestGeneratorTest.generateKey();
+		ContactCodecContext context = new ContactCodecContext(key.key);
+		RawContact base = RequestGeneratorTest.createFullContact();
+		String rowId = String.valueOf(base.getRawContactId());
+
+		List<ListRawData<PhoneType>> phones = new ArrayList<ListRawData<PhoneType>>(
+				base.getPhone());
+		phones.set(1, new ListRawData<PhoneType>("0355834344",
+				PhoneType.TYPE_HOME, null, true, true));
+		// Changed phone, removed note and organization, other flags
+		RawContact c = new RawContact(base.getFullName(),
+				base.getFirstName(), base.getLastName(), base.getMiddleName(),
+				base.getPrefixName(), base.getSuffixName(),
+				base.getPhoneticGivenName(), base.getPhoneticMiddleName(),
+				base.getPhoneticFamilyName(), phones, base.getEmail(),
+				base.getWebsite(), base.getAddress(), base.getEvents(),
+				base.getRelations(), base.getSipAddresses(),
+				base.getNicknames(), base.getImAddresses(), null, null,
+				base.getPhoto(), base.isPhotoSuperPrimary(),
+				base.getGroupSourceIds(), null, !base.isStarred(),
+				base.getDroidCustomRingtone(), !base.isSendToVoiceMail(),
+				base.getLastModified(), false, base.getServerContactId(),
+				base.getRawContactId(), true, -1);
+
+		byte[] full = c.toDTO(context, key.salt);
+		Map<Byte, ByteBuffer> values = readValues(c.toDeltaDTO(context,
+				key.salt, base));
+		Assert.assertFalse(values.containsKey(ContactConstants.TEXTDATA));
+		Assert.assertFalse(values.containsKey(ContactConstants.PHOTO));
+		int deltaLen = values.get(ContactConstants.TEXTDELTA).remaining();
+		Assert.assertTrue(deltaLen * 4 < readValues(full).get(
+				ContactConstants.TEXTDATA).remaining());
+
+		RawContact newC = RawContact.valueOf(rowId,
+				RowValues.valueOf(values), context, base);
+		compareRawContact(c, newC);
+		Assert.assertNull(newC.getOrganization());
+		assertEquals(c.isStarred(), newC.isStarred());
+		assertEquals(c.isSendToVoiceMail(), newC.isSendToVoiceMail());
+
+		// Delta can not be decoded without base
+		Assert.assertNull(RawContact.valueOf(rowId, values, context));
+
+		// Delta of another base version is rejected
+		RawContact otherBase = RequestGeneratorTest.createContacts(1, 0).get(
+				0);
+		Assert.assertNull(RawContact.valueOf(rowId,
+				RowValues.valueOf(values), context, otherBase));
+
+		// Base from the synced contact cache
+		final RawContact cachedBase = base;
+		context.setSyncedContactCache(new SyncedContactCache() {
+			public RawContact getSyncedContact(String id) {
+				return cachedBase;
+			}
+		});
+		compareRawContact(c, RawContact.valueOf(rowId, values, context));
+		context.setSyncedContactCache(null);
+
+		// Unchanged: empty delta
+		values = readValues(base.toDeltaDTO(context, key.salt, base));
+		compareRawContact(base,
+				RawContact.valueOf(rowId, RowValues.valueOf(values), context,
+						base));
+	}
+
+	@Test
+	public void testLazyPhoto() throws IOException, InvalidKeyException {
+		KeyPair key = RequestGeneratorTest.generateKey();
+		ContactCodecContext context = new ContactCodecContext(key.key);
+		Assert.assertFalse(context.isLazyPhoto());
+		context.setLazyPhoto(true);
+		RawContact c = RequestGeneratorTest.createContacts(1, 3000).get(0);
+		String rowId = String.valueOf(c.getRawContactId());
+		byte[] encoded = c.toDTO(context, key.salt);
+
+		// Photo is decrypted on access, also when the buffer was reused
+		Map<Byte, ByteBuffer> values = readValues(encoded);
+		RawContact newC = RawContact.valueOf(rowId, values, context);
+		Arrays.fill(encoded, (byte) 0);
+		compareRawContact(c, newC);
+
+		// Modified photo is only detected when decoded immediately
+		encoded = c.toDTO(context, key.salt);
+		values = readValues(encoded);
+		ByteBuffer photo = values.get(ContactConstants.PHOTO);
+		encoded[photo.position() + CryptoHelper.PREAMBLE_LEN] ^= 1;
+		newC = RawContact.valueOf(rowId, values, context);
+		Assert.assertNotNull(newC);
+		Assert.assertNull(newC.getPhoto());
+
+		context.setLazyPhoto(false);
+		InvalidKeyException ex = null;
+		try {
+			RawContact.valueOf(rowId, values, context);
+		} catch (InvalidKeyException e) {
+			ex = e;
+		}
+		Assert.assertNotNull(ex);
+	}
+
+	@Test
+	public void testLazyPhotoThreads() throws IOException,
+			InvalidKeyException, InterruptedException {
+		KeyPair key = RequestGeneratorTest.generateKey();
+		ContactCodecContext context = new ContactCodecContext(key.key);
+		context.setLazyPhoto(true);
+		final RawContact c = RequestGeneratorTest.createContacts(1, 3000)
+				.get(0);
+		byte[] encoded = c.toDTO(context, key.salt);
+		final RawContact newC = RawContact.valueOf(
+				String.valueOf(c.getRawContactId()), readValues(encoded),
+				context);
+
+		// The photo is decrypted once, all threads see it
+		final List<byte[]> photos = Collections
+				.synchronizedList(new ArrayList<byte[]>());
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					photos.add(newC.getPhoto());
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(threads.length, photos.size());
+		for (byte[] photo : photos) {
+			Assert.assertArrayEquals(c.getPhoto(), photo);
+		}
+	}
+
+	/**
+	 * Splits a serialized row into its values.
+	 */
+	static Map<Byte, ByteBuffer> readValues(byte[] row) {
+		Map<Byte, ByteBuffer> values = new HashMap<Byte, ByteBuffer>();
+		int pos = 0;
+		while (pos < row.length) {
+			byte valueKey = row[pos];
+			pos++;
+			if (valueKey == ContactConstants.ROWID
+					|| valueKey == ContactConstants.SERVERROW_ID
+					|| valueKey == ContactConstants.MODIFIED
+					|| valueKey == ContactConstants.HASH
+					|| valueKey == ContactConstants.DELETED) {
+				int len = SyncDataHelper.readInt(row, pos);
+				pos += 4;
+				values.put(valueKey, ByteBuffer.wrap(row, pos, len));
+				pos += len;
+			} else {
+				int len = CryptoHelper.PREAMBLE_LEN
+						+ CryptoHelper.readDataLength(row, pos);
+				values.put(valueKey, ByteBuffer.wrap(row, pos, len));
+				pos += len;
+			}
+		}
+		return values;
+	}
+
 	private void compareRawContact(RawContact c, RawContact newC) {
 		assertEquals(c.getFirstName(), newC.getFirstName());
 		assertEquals(c.getLastName(), newC.getLastName());
@@ -19,17 +19,52 @@ package com.ntsync.shared;
  */
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Base64;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.format.InputAccessor;
+import com.fasterxml.jackson.core.format.MatchStrength;
+import com.ntsync.shared.ContactConstants.AddressType;
+import com.ntsync.shared.ContactConstants.EmailType;
+import com.ntsync.shared.ContactConstants.EventType;
+import com.ntsync.shared.ContactConstants.ImProtocolType;
+import com.ntsync.shared.ContactConstants.ImType;
+import com.ntsync.shared.ContactConstants.NicknameType;
+import com.ntsync.shared.ContactConstants.OrganizationType;
+import com.ntsync.shared.ContactConstants.PhoneType;
+import com.ntsync.shared.ContactConstants.RelationType;
+import com.ntsync.shared.ContactConstants.SipAddressType;
+import com.ntsync.shared.ContactConstants.WebsiteType;
+import com.ntsync.shared.ListRawData.RawAddressData;
+import com.ntsync.shared.ListRawData.RawImData;
+import com.ntsync.shared.ListRawData.RawOrganizationData;
+import com.ntsync.shared.RequestGenerator.SyncPrepErrorStatistic;
 import com.ntsync.shared.RequestGenerator.SyncResponse;
 
 public class RequestGeneratorTest {
@@ -59,6 +94,863 @@ public class RequestGeneratorTest {
 		Assert.assertEquals(1, response.serverContacts.size());
 	}
 
+	@Test
+	public void testWriteServerRequest() throws IOException,
+			HeaderParseException, HeaderCreateException {
+		KeyPair pwd = generateKey();
+
+		// Enough data for more than one container per type
+		List<RawContact> contacts = createContacts(40, 4000);
+		List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		for (int i = 0; i < 3; i++) {
+			groups.add(new ContactGroup(Long.valueOf(i), null, "Group" + i,
+					null, false, null, -1));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RequestGenerator.writeServerRequest(out, new SyncAnchor(), contacts,
+				groups, pwd.key, "test", null, pwd.salt, null, null, null,
+				false, null);
+
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, out.toByteArray());
+		Assert.assertEquals(0, response.skippedResponse);
+		Assert.assertEquals(contacts.size(), response.serverContacts.size());
+		for (int i = 0; i < contacts.size(); i++) {
+			Assert.assertEquals(contacts.get(i).getRawContactId(),
+					response.serverContacts.get(i).getRawContactId());
+			Assert.assertArrayEquals(contacts.get(i).getPhoto(),
+					response.serverContacts.get(i).getPhoto());
+		}
+		Assert.assertEquals(groups.size(), response.serverGroups.size());
+		Assert.assertEquals("Group2", response.serverGroups.get(2).getTitle());
+	}
+
+	@Test
+	public void testProcessServerResponseStream() throws IOException,
+			HeaderParseException, HeaderCreateException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(40, 4000);
+		List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		groups.add(new ContactGroup(1L, null, "Group", null, false, null, -1));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RequestGenerator.writeServerRequest(out, new SyncAnchor(), contacts,
+				groups, pwd.key, "test", "clientId", pwd.salt, null, null,
+				null, false, null);
+
+		final List<RawContact> readContacts = new ArrayList<RawContact>();
+		final List<ContactGroup> readGroups = new ArrayList<ContactGroup>();
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, new ByteArrayInputStream(out.toByteArray()),
+				new SyncRowVisitor() {
+					@Override
+					public void visitContact(RawContact contact) {
+						readContacts.add(contact);
+					}
+
+					@Override
+					public void visitGroup(ContactGroup group) {
+						readGroups.add(group);
+					}
+				}, null);
+
+		Assert.assertEquals("clientId", response.clientId);
+		Assert.assertEquals(0, response.skippedResponse);
+		Assert.assertTrue(response.serverContacts.isEmpty());
+		Assert.assertEquals(contacts.size(), readContacts.size());
+		for (int i = 0; i < contacts.size(); i++) {
+			Assert.assertEquals(contacts.get(i).getFullName(), readContacts
+					.get(i).getFullName());
+			Assert.assertArrayEquals(contacts.get(i).getPhoto(), readContacts
+					.get(i).getPhoto());
+		}
+		Assert.assertEquals(1, readGroups.size());
+		Assert.assertEquals("Group", readGroups.get(0).getTitle());
+	}
+
+	@Test
+	public void testProcessServerResponseParallel() throws IOException,
+			HeaderParseException, HeaderCreateException, InterruptedException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(200, 100);
+		List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		for (int i = 0; i < 50; i++) {
+			groups.add(new ContactGroup(Long.valueOf(i), null, "Group" + i,
+					null, false, null, -1));
+		}
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, groups, pwd.key, "test", null,
+				pwd.salt, null, null, null, false);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			SyncOptions options = new SyncOptions();
+			options.setExecutor(executor);
+			SyncResponse response = RequestGenerator.processServerResponse(
+					pwd.key, null, request, options);
+			Assert.assertEquals(0, response.skippedResponse);
+			Assert.assertEquals(contacts.size(),
+					response.serverContacts.size());
+			for (int i = 0; i < contacts.size(); i++) {
+				Assert.assertEquals(contacts.get(i).getFullName(),
+						response.serverContacts.get(i).getFullName());
+			}
+			Assert.assertEquals(groups.size(), response.serverGroups.size());
+			for (int i = 0; i < groups.size(); i++) {
+				Assert.assertEquals(groups.get(i).getTitle(),
+						response.serverGroups.get(i).getTitle());
+			}
+
+			// Wrong key: every row is counted as skipped
+			KeyPair otherPwd = generateKey();
+			response = RequestGenerator.processServerResponse(otherPwd.key,
+					null, request, options);
+			Assert.assertEquals(contacts.size() + groups.size(),
+					response.skippedResponse);
+			Assert.assertTrue(response.serverContacts.isEmpty());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testPrepareServerRequestParallel() throws IOException,
+			HeaderParseException, HeaderCreateException, InterruptedException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(200, 100);
+		List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		for (int i = 0; i < 50; i++) {
+			groups.add(new ContactGroup(Long.valueOf(i), null, "Group" + i,
+					null, false, null, -1));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			SyncOptions options = new SyncOptions();
+			options.setExecutor(executor);
+			SyncPrepErrorStatistic prepError = new SyncPrepErrorStatistic();
+			byte[] request = RequestGenerator.prepareServerRequest(
+					new SyncAnchor(), contacts, groups, pwd.key, "test", null,
+					pwd.salt, null, prepError, null, false, options);
+			Assert.assertEquals(0, prepError.getIgnoredRows());
+
+			SyncResponse response = RequestGenerator.processServerResponse(
+					pwd.key, null, request);
+			Assert.assertEquals(contacts.size(),
+					response.serverContacts.size());
+			for (int i = 0; i < contacts.size(); i++) {
+				Assert.assertEquals(contacts.get(i).getRawContactId(),
+						response.serverContacts.get(i).getRawContactId());
+			}
+			Assert.assertEquals(groups.size(), response.serverGroups.size());
+			for (int i = 0; i < groups.size(); i++) {
+				Assert.assertEquals(groups.get(i).getTitle(),
+						response.serverGroups.get(i).getTitle());
+			}
+
+			// Groups with an invalid key can not be serialized
+			SecretKey invalidKey = new SecretKeySpec(new byte[5], "AES");
+			prepError = new SyncPrepErrorStatistic();
+			RequestGenerator.prepareServerRequest(new SyncAnchor(), null,
+					groups, invalidKey, "test", null, pwd.salt, null,
+					prepError, null, false, options);
+			Assert.assertEquals(groups.size(), prepError.getIgnoredRows());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSkipUnchangedContacts() throws IOException,
+			HeaderParseException, HeaderCreateException, InterruptedException,
+			NoSuchAlgorithmException {
+		KeyPair pwd = generateKey();
+		ContactCodecContext context = new ContactCodecContext(pwd.key);
+		List<RawContact> contacts = createContacts(10, 0);
+		Map<Long, byte[]> syncedHashes = new HashMap<Long, byte[]>();
+		for (int i = 0; i < 5; i++) {
+			RawContact contact = contacts.get(i);
+			// The hash of the synced row is the content hash
+			RowValues values = RowValues.valueOf(RawContactTest
+					.readValues(contact.toDTO(context, pwd.salt)));
+			byte[] rowHash = RawContact.getHash(values);
+			Assert.assertArrayEquals(
+					contact.computeContentHash(context, pwd.salt), rowHash);
+			syncedHashes.put(contact.getRawContactId(), rowHash);
+		}
+		// Only the note changed since the last sync
+		contacts.set(4, createContact(4, "Note", null));
+		// Changed since the last sync
+		syncedHashes.put(contacts.get(5).getRawContactId(), new byte[32]);
+
+		SyncOptions options = new SyncOptions();
+		options.setSyncedHashes(syncedHashes);
+		SyncPrepErrorStatistic prepError = new SyncPrepErrorStatistic();
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, prepError, null, false, options);
+		Assert.assertEquals(4, prepError.getUnchangedRows());
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, request);
+		Assert.assertEquals(6, response.serverContacts.size());
+		for (int i = 0; i < 6; i++) {
+			Assert.assertEquals(contacts.get(i + 4).getRawContactId(),
+					response.serverContacts.get(i).getRawContactId());
+		}
+
+		// Unchanged contacts are also skipped in a stream
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		prepError = new SyncPrepErrorStatistic();
+		RequestGenerator.writeServerRequest(out, new SyncAnchor(), contacts,
+				null, pwd.key, "test", null, pwd.salt, null, prepError, null,
+				false, options);
+		Assert.assertEquals(4, prepError.getUnchangedRows());
+		Assert.assertEquals(0, prepError.getIgnoredRows());
+		Assert.assertEquals(6, RequestGenerator.processServerResponse(
+				pwd.key, null, out.toByteArray()).serverContacts.size());
+
+		// Hashes are computed in the tasks of the executor
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			options.setExecutor(executor);
+			prepError = new SyncPrepErrorStatistic();
+			byte[] parallelRequest = RequestGenerator.prepareServerRequest(
+					new SyncAnchor(), contacts, null, pwd.key, "test", null,
+					pwd.salt, null, prepError, null, false, options);
+			Assert.assertEquals(4, prepError.getUnchangedRows());
+			Assert.assertEquals(6, RequestGenerator.processServerResponse(
+					pwd.key, null, parallelRequest).serverContacts.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testUnchangedPhotoRef() throws IOException,
+			HeaderParseException, HeaderCreateException, InterruptedException,
+			NoSuchAlgorithmException {
+		KeyPair pwd = generateKey();
+		ContactCodecContext context = new ContactCodecContext(pwd.key);
+		List<RawContact> contacts = createContacts(4, 5000);
+		Map<Long, byte[]> syncedHashes = new HashMap<Long, byte[]>();
+		final Map<Long, byte[]> syncedPhotoRefs = new HashMap<Long, byte[]>();
+		for (int i = 0; i < 2; i++) {
+			RawContact contact = contacts.get(i);
+			syncedHashes.put(contact.getRawContactId(),
+					contact.computeContentHash(context, pwd.salt));
+			syncedPhotoRefs.put(contact.getRawContactId(),
+					contact.computePhotoRef(context));
+		}
+		// Only the photo changed since the last sync
+		byte[] newPhoto = new byte[5000];
+		new Random().nextBytes(newPhoto);
+		contacts.set(1, createContact(1, null, newPhoto));
+		syncedPhotoRefs.put(contacts.get(2).getRawContactId(),
+				contacts.get(2).computePhotoRef(context));
+
+		// Without support of the server all photos are sent
+		SyncOptions options = new SyncOptions();
+		options.setSyncedHashes(syncedHashes);
+		options.setSyncedPhotoRefs(syncedPhotoRefs);
+		byte[] allPhotosRequest = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, null, false, options);
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, allPhotosRequest);
+		Assert.assertEquals(3, response.serverContacts.size());
+		for (RawContact newContact : response.serverContacts) {
+			Assert.assertNotNull(newContact.getPhoto());
+			Assert.assertNull(newContact.getPhotoRef());
+		}
+
+		Restrictions restr = new Restrictions(100, 100, true, null, false,
+				false, true);
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, restr, false, options);
+		// The photo of contact 2 is omitted, the references are small
+		Assert.assertTrue(request.length + 4000 < allPhotosRequest.length);
+
+		final RawContact cached = contacts.get(2);
+		PhotoCache cache = new PhotoCache() {
+			@Override
+			public byte[] getPhoto(byte[] photoRef) {
+				return Arrays.equals(photoRef,
+						syncedPhotoRefs.get(cached.getRawContactId())) ? cached
+						.getPhoto() : null;
+			}
+		};
+		options = new SyncOptions();
+		options.setPhotoCache(cache);
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				request, options);
+		Assert.assertEquals(3, response.serverContacts.size());
+		for (int i = 0; i < 3; i++) {
+			RawContact contact = contacts.get(i + 1);
+			RawContact newContact = response.serverContacts.get(i);
+			Assert.assertEquals(contact.getRawContactId(),
+					newContact.getRawContactId());
+			Assert.assertArrayEquals(contact.getPhoto(), newContact.getPhoto());
+			Assert.assertArrayEquals(contact.computePhotoRef(context),
+					newContact.getPhotoRef());
+		}
+
+		// Without cache only the reference is available
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				request);
+		Assert.assertNull(response.serverContacts.get(1).getPhoto());
+		Assert.assertNotNull(response.serverContacts.get(1).getPhotoRef());
+	}
+
+	@Test
+	public void testDeltaRequest() throws IOException, HeaderParseException,
+			HeaderCreateException, InterruptedException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = new ArrayList<RawContact>();
+		final Map<Long, RawContact> syncedContacts = new HashMap<Long, RawContact>();
+		for (int i = 0; i < 3; i++) {
+			contacts.add(createContact(i, "New note " + i, null));
+			if (i < 2) {
+				syncedContacts.put(Long.valueOf(i + 1),
+						createContact(i, "Synced note " + i, null));
+			}
+		}
+
+		// Without support of the server the contacts are sent completely
+		SyncOptions options = new SyncOptions();
+		options.setSyncedContacts(syncedContacts);
+		byte[] fullRequest = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, null, false, options);
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, fullRequest);
+		Assert.assertEquals(3, response.serverContacts.size());
+
+		Restrictions restr = new Restrictions(100, 100, true, null, false,
+				false, false, true);
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, restr, false, options);
+		SyncedContactCache cache = new SyncedContactCache() {
+			public RawContact getSyncedContact(String rowId) {
+				return syncedContacts.get(Long.valueOf(rowId));
+			}
+		};
+		options.setSyncedContactCache(cache);
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				request, options);
+		Assert.assertEquals(0, response.skippedResponse);
+		Assert.assertEquals(3, response.serverContacts.size());
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(contacts.get(i).getNote(),
+					response.serverContacts.get(i).getNote());
+		}
+
+		// Deltas without their base version are skipped
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				request);
+		Assert.assertEquals(2, response.skippedResponse);
+		Assert.assertEquals(1, response.serverContacts.size());
+
+		// Deltas of another base version are skipped
+		syncedContacts.put(Long.valueOf(1), createContact(0, "Other", null));
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				request, options);
+		Assert.assertEquals(1, response.skippedResponse);
+		Assert.assertEquals(2, response.serverContacts.size());
+	}
+
+	@Test
+	public void testBinaryJsonRequest() throws IOException,
+			HeaderParseException, HeaderCreateException, InterruptedException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(5, 100);
+		List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		groups.add(new ContactGroup(1L, null, "Group", null, false, null, -1));
+		Restrictions restr = new Restrictions(100, 100, true, null, true);
+
+		// Without factory the server support is ignored
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, groups, pwd.key, "test", null,
+				pwd.salt, null, null, restr, false);
+		Assert.assertEquals(RequestGenerator.PROT_VERSION,
+				SyncDataHelper.readShort(request, 0));
+
+		MarkedJsonFactory factory = new MarkedJsonFactory();
+		SyncOptions options = new SyncOptions();
+		options.setBinaryJsonFactory(factory);
+		request = RequestGenerator.prepareServerRequest(new SyncAnchor(),
+				contacts, groups, pwd.key, "test", null, pwd.salt, null, null,
+				restr, false, options);
+		Assert.assertEquals(RequestGenerator.PROT_VERSION_BINARY_JSON,
+				SyncDataHelper.readShort(request, 0));
+		Assert.assertEquals(MarkedJsonFactory.MARKER, request[6]);
+		// Header and the text data of every row
+		int rowCount = contacts.size() + groups.size();
+		Assert.assertEquals(rowCount + 1, factory.generators);
+
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, request, options);
+		Assert.assertEquals(rowCount + 1, factory.parsers);
+		Assert.assertEquals(0, response.skippedResponse);
+		Assert.assertEquals(contacts.size(), response.serverContacts.size());
+		for (int i = 0; i < contacts.size(); i++) {
+			Assert.assertEquals(contacts.get(i).getFullName(),
+					response.serverContacts.get(i).getFullName());
+		}
+		Assert.assertEquals("Group", response.serverGroups.get(0).getTitle());
+
+		// Without factory the frame can not be read
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				request);
+		Assert.assertTrue(response.serverContacts.isEmpty());
+	}
+
+	@Test
+	public void testEnvelopeRequest() throws IOException,
+			HeaderParseException, HeaderCreateException, InterruptedException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(100, 100);
+		List<ContactGroup> groups = new ArrayList<ContactGroup>();
+		for (int i = 0; i < 50; i++) {
+			groups.add(new ContactGroup(Long.valueOf(i), null, "Group" + i,
+					null, false, null, -1));
+		}
+		Restrictions restr = new Restrictions(100, 100, true, null, false,
+				true);
+
+		byte[] plainRequest = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, groups, pwd.key, "test", null,
+				pwd.salt, null, null, null, false);
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, groups, pwd.key, "test", null,
+				pwd.salt, null, null, restr, false);
+		int containerPos = 6 + SyncDataHelper.readInt(request, 2);
+		Assert.assertEquals(ContactConstants.TYPE_CONTACT_ENVELOPE,
+				request[containerPos]);
+		// No IV for the text data and the photo of a row
+		Assert.assertTrue(request.length < plainRequest.length
+				- (2 * contacts.size() + groups.size()) * 10);
+
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, request);
+		Assert.assertEquals(0, response.skippedResponse);
+		assertRows(contacts, groups, response.serverContacts,
+				response.serverGroups);
+
+		final List<RawContact> readContacts = new ArrayList<RawContact>();
+		final List<ContactGroup> readGroups = new ArrayList<ContactGroup>();
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				new ByteArrayInputStream(request),
+				new SyncRowVisitor() {
+					@Override
+					public void visitContact(RawContact contact) {
+						readContacts.add(contact);
+					}
+
+					@Override
+					public void visitGroup(ContactGroup group) {
+						readGroups.add(group);
+					}
+				}, null);
+		Assert.assertEquals(0, response.skippedResponse);
+		assertRows(contacts, groups, readContacts, readGroups);
+
+		// Every batch of the executor has its own envelope
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			SyncOptions options = new SyncOptions();
+			options.setExecutor(executor);
+			request = RequestGenerator.prepareServerRequest(new SyncAnchor(),
+					contacts, groups, pwd.key, "test", null, pwd.salt, null,
+					null, restr, false, options);
+			response = RequestGenerator.processServerResponse(pwd.key, null,
+					request, options);
+			Assert.assertEquals(0, response.skippedResponse);
+			assertRows(contacts, groups, response.serverContacts,
+					response.serverGroups);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCipherSuiteRequest() throws IOException,
+			HeaderParseException, HeaderCreateException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(1, 0);
+		// All clients can decode GCM
+		Restrictions restr = new Restrictions(100, 100, true, null, false,
+				false, false, false, true);
+
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, null, false);
+		Assert.assertEquals(CipherSuite.CCM, getTextCipherSuite(request));
+		request = RequestGenerator.prepareServerRequest(new SyncAnchor(),
+				contacts, null, pwd.key, "test", null, pwd.salt, null, null,
+				restr, false);
+		Assert.assertEquals(CipherSuite.GCM, getTextCipherSuite(request));
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, request);
+		assertRows(contacts, Collections.<ContactGroup> emptyList(),
+				response.serverContacts, response.serverGroups);
+	}
+
+	@Test
+	public void testBinaryTextRequest() throws IOException,
+			HeaderParseException, HeaderCreateException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(3, 0);
+		// All clients can decode the binary text format
+		Restrictions restr = new Restrictions(100, 100, true, null, false,
+				false, false, false, false, true);
+
+		byte[] jsonRequest = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, null, false);
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, restr, false);
+		Assert.assertTrue(request.length < jsonRequest.length);
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, request);
+		assertRows(contacts, Collections.<ContactGroup> emptyList(),
+				response.serverContacts, response.serverGroups);
+	}
+
+	@Test
+	public void testCompressedTextRequest() throws IOException,
+			HeaderParseException, HeaderCreateException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = new ArrayList<RawContact>();
+		for (int i = 0; i < 3; i++) {
+			contacts.add(createContact(i, "Notiz Notiz Notiz Notiz Notiz "
+					+ "Notiz Notiz Notiz Notiz Notiz " + i, null));
+		}
+		// All clients can decode compressed text data
+		Restrictions restr = new Restrictions(100, 100, true, null, false,
+				false, false, false, false, false, true);
+
+		byte[] plainRequest = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, null, false);
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, restr, false);
+		Assert.assertTrue(request.length < plainRequest.length);
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, request);
+		assertRows(contacts, Collections.<ContactGroup> emptyList(),
+				response.serverContacts, response.serverGroups);
+	}
+
+	/**
+	 * @return cipher suite of the text data of the first row
+	 */
+	private static CipherSuite getTextCipherSuite(byte[] request) {
+		// Skip the header, the container header and the row id
+		int pos = 6 + SyncDataHelper.readInt(request, 2) + 5;
+		pos += 5 + SyncDataHelper.readInt(request, pos + 1);
+		Assert.assertEquals(ContactConstants.TEXTDATA, request[pos]);
+		return CryptoHelper.getCipherSuite(request, pos + 1);
+	}
+
+	@Test
+	public void testIncompleteEnvelope() throws IOException,
+			HeaderParseException, HeaderCreateException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(3, 0);
+		Restrictions restr = new Restrictions(100, 100, true, null, false,
+				true);
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, restr, false);
+		int containerPos = 6 + SyncDataHelper.readInt(request, 2);
+
+		// Find the rows and the end of the envelope
+		List<Integer> rowPos = new ArrayList<Integer>();
+		int endPos = -1;
+		int pos = containerPos + 5 + CryptoHelper.IV_LEN;
+		while (pos < request.length) {
+			byte valueKey = request[pos];
+			int valueLen = SyncDataHelper.readInt(request, pos + 1);
+			if (valueKey == ContactConstants.ROWID) {
+				rowPos.add(pos);
+			} else if (valueKey == ContactConstants.ENVELOPE_END) {
+				endPos = pos;
+			}
+			if (valueKey != ContactConstants.ROWID
+					&& valueKey != ContactConstants.HASH
+					&& valueKey != ContactConstants.MODIFIED) {
+				valueLen = CryptoHelper.readSegmentLength(request, pos + 1);
+			}
+			pos += 5 + valueLen;
+		}
+		Assert.assertEquals(3, rowPos.size());
+
+		// End of the envelope removed
+		byte[] truncated = removeBytes(request, containerPos, endPos,
+				request.length);
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, truncated);
+		Assert.assertEquals(1, response.skippedResponse);
+		Assert.assertEquals(3, response.serverContacts.size());
+
+		// Last row removed
+		truncated = removeBytes(request, containerPos, rowPos.get(2), endPos);
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				truncated);
+		Assert.assertEquals(1, response.skippedResponse);
+		Assert.assertEquals(2, response.serverContacts.size());
+
+		final List<RawContact> readContacts = new ArrayList<RawContact>();
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				new ByteArrayInputStream(truncated), new SyncRowVisitor() {
+					@Override
+					public void visitContact(RawContact contact) {
+						readContacts.add(contact);
+					}
+
+					@Override
+					public void visitGroup(ContactGroup group) {
+						// no groups
+					}
+				}, null);
+		Assert.assertEquals(1, response.skippedResponse);
+		Assert.assertEquals(2, readContacts.size());
+	}
+
+	/**
+	 * Removes a range of the only container of a request.
+	 */
+	private static byte[] removeBytes(byte[] request, int containerPos,
+			int start, int end) {
+		byte[] changed = new byte[request.length - (end - start)];
+		System.arraycopy(request, 0, changed, 0, start);
+		System.arraycopy(request, end, changed, start, request.length - end);
+		int contLen = SyncDataHelper.readInt(request, containerPos + 1);
+		SyncDataHelper.writeInt(changed, contLen - (end - start),
+				containerPos + 1);
+		return changed;
+	}
+
+	@Test
+	public void testPagedSync() throws IOException, HeaderParseException,
+			HeaderCreateException {
+		KeyPair pwd = generateKey();
+		List<RawContact> contacts = createContacts(5, 0);
+
+		byte[] request = RequestGenerator.prepareServerRequest(
+				new SyncAnchor(), contacts, null, pwd.key, "test", null,
+				pwd.salt, null, null, null, false);
+		String header = new String(request, 6, SyncDataHelper.readInt(
+				request, 2), SyncDataHelper.DEFAULT_CHARSET_NAME);
+		Assert.assertFalse(header.contains(RequestGenerator.PARAM_PAGE_SIZE));
+		SyncResponse response = RequestGenerator.processServerResponse(
+				pwd.key, null, request);
+		Assert.assertNull(response.continuation);
+		Assert.assertNull(response.newServerAnchor.getContinuation());
+
+		SyncAnchor anchor = new SyncAnchor();
+		anchor.setContinuation("page2");
+		anchor.setPageSize(50);
+		request = RequestGenerator.prepareServerRequest(anchor, contacts,
+				null, pwd.key, "test", null, pwd.salt, null, null, null, false);
+		header = new String(request, 6, SyncDataHelper.readInt(request, 2),
+				SyncDataHelper.DEFAULT_CHARSET_NAME);
+		Assert.assertTrue(header.contains("\"pageSize\":50"));
+
+		// The continuation of the response is stored in the new anchor
+		response = RequestGenerator.processServerResponse(pwd.key, null,
+				request);
+		Assert.assertEquals("page2", response.continuation);
+		Assert.assertEquals("page2",
+				response.newServerAnchor.getContinuation());
+		Assert.assertEquals(contacts.size(), response.serverContacts.size());
+		// The page size is not stored in the new anchor
+		Assert.assertEquals(0, response.newServerAnchor.getPageSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPageSize() {
+		new SyncAnchor().setPageSize(-1);
+	}
+
+	private static void assertRows(List<RawContact> contacts,
+			List<ContactGroup> groups, List<RawContact> readContacts,
+			List<ContactGroup> readGroups) {
+		Assert.assertEquals(contacts.size(), readContacts.size());
+		for (int i = 0; i < contacts.size(); i++) {
+			Assert.assertEquals(contacts.get(i).getFullName(), readContacts
+					.get(i).getFullName());
+			Assert.assertArrayEquals(contacts.get(i).getPhoto(), readContacts
+					.get(i).getPhoto());
+		}
+		Assert.assertEquals(groups.size(), readGroups.size());
+		for (int i = 0; i < groups.size(); i++) {
+			Assert.assertEquals(groups.get(i).getTitle(), readGroups.get(i)
+					.getTitle());
+		}
+	}
+
+	/**
+	 * JSON behind a marker which is not valid JSON, stands in for a binary
+	 * JSON format: the data can only be read with this factory. Counts the
+	 * created generators and parsers.
+	 */
+	private static final class MarkedJsonFactory extends JsonFactory {
+
+		private static final long serialVersionUID = 1L;
+
+		static final byte MARKER = 0;
+
+		private int generators;
+
+		private int parsers;
+
+		@Override
+		public synchronized JsonGenerator createGenerator(OutputStream out,
+				JsonEncoding enc) throws IOException {
+			generators++;
+			out.write(MARKER);
+			return super.createGenerator(out, enc);
+		}
+
+		@Override
+		public JsonGenerator createGenerator(OutputStream out)
+				throws IOException {
+			return createGenerator(out, JsonEncoding.UTF8);
+		}
+
+		@Override
+		public synchronized JsonParser createParser(byte[] data, int offset,
+				int len) throws IOException {
+			if (len < 1 || data[offset] != MARKER) {
+				throw new JsonParseException("Marker is missing", null);
+			}
+			parsers++;
+			return super.createParser(data, offset + 1, len - 1);
+		}
+
+		@Override
+		public MatchStrength hasFormat(InputAccessor acc) throws IOException {
+			if (acc.hasMoreBytes() && acc.nextByte() == MARKER) {
+				return MatchStrength.FULL_MATCH;
+			}
+			return MatchStrength.NO_MATCH;
+		}
+	}
+
+	static List<RawContact> createContacts(int count, int photoSize) {
+		Random rand = new Random();
+		List<RawContact> contacts = new ArrayList<RawContact>();
+		for (int i = 0; i < count; i++) {
+			byte[] photo = null;
+			if (photoSize > 0) {
+				photo = new byte[photoSize];
+				rand.nextBytes(photo);
+			}
+			contacts.add(createContact(i, null, photo));
+		}
+		return contacts;
+	}
+
+	private static RawContact createContact(int i, String note, byte[] photo) {
+		return new RawContact("Hans Muster" + i, "Hans", "Muster" + i, null,
+				null, null, null, null, null, null, null, null, null, null,
+				null, null, null, null, note, null, photo, false, null, null,
+				false, null, false, null, false, null, i + 1, false, -1);
+	}
+
+	/**
+	 * @return contact with all fields
+	 */
+	static RawContact createFullContact() {
+		byte[] photo = new byte[4000];
+		Random rand = new Random();
+		rand.nextBytes(photo);
+
+		List<ListRawData<PhoneType>> phones = new ArrayList<ListRawData<PhoneType>>();
+		phones.add(new ListRawData<PhoneType>("0834343",
+				PhoneType.TYPE_FAX_WORK, "label3", false, false));
+		phones.add(new ListRawData<PhoneType>("0355834343",
+				PhoneType.TYPE_HOME, null, true, true));
+		List<ListRawData<EmailType>> emails = new ArrayList<ListRawData<EmailType>>();
+		emails.add(new ListRawData<EmailType>("test@example.com",
+				EmailType.TYPE_MOBILE, null, true, true));
+		emails.add(new ListRawData<EmailType>("tes2t@example.com",
+				EmailType.TYPE_CUSTOM, "sdfsdfs", true, true));
+		List<ListRawData<WebsiteType>> websites = new ArrayList<ListRawData<WebsiteType>>();
+		websites.add(new ListRawData<WebsiteType>("www.gmx.ch",
+				WebsiteType.TYPE_CUSTOM, "E-Mail", true, true));
+		websites.add(new ListRawData<WebsiteType>("www.example.com",
+				WebsiteType.TYPE_HOME, null, true, true));
+
+		List<RawAddressData> addresses = new ArrayList<RawAddressData>();
+		addresses.add(new RawAddressData(AddressType.TYPE_HOME, null, false,
+				false, "homestreet", "pobox", "neighborhood", "city", "region",
+				"postcode", "country"));
+		addresses.add(new RawAddressData(AddressType.TYPE_CUSTOM, "Vacation",
+				true, true, "vacstreet", "vacpobox", "vacneighborhood",
+				"vaccity", "vacregion", "vacpostcode", "vaccountry"));
+
+		List<ListRawData<EventType>> events = new ArrayList<ListRawData<EventType>>();
+		events.add(new ListRawData<EventType>("1.12.2021",
+				EventType.TYPE_OTHER, "Hochzeitstag", false, false));
+		events.add(new ListRawData<EventType>("12.12.1954",
+				EventType.TYPE_BIRTHDAY, null, true, true));
+
+		List<ListRawData<RelationType>> relations = new ArrayList<ListRawData<RelationType>>();
+		relations.add(new ListRawData<RelationType>("brothername",
+				RelationType.TYPE_BROTHER, null, false, false));
+		relations.add(new ListRawData<RelationType>("mothername",
+				RelationType.TYPE_MOTHER, null, true, true));
+
+		List<ListRawData<SipAddressType>> sipAddresses = new ArrayList<ListRawData<SipAddressType>>();
+		sipAddresses.add(new ListRawData<SipAddressType>("hall@example.com",
+				SipAddressType.TYPE_CUSTOM, "CustomName", true, true));
+		sipAddresses.add(new ListRawData<SipAddressType>("home@example.com",
+				SipAddressType.TYPE_HOME, null, true, true));
+
+		List<ListRawData<NicknameType>> nicknames = new ArrayList<ListRawData<NicknameType>>();
+		nicknames.add(new ListRawData<NicknameType>("tango",
+				NicknameType.TYPE_CUSTOM, "Military nickname", true, true));
+		nicknames.add(new ListRawData<NicknameType>("Shortname",
+				NicknameType.TYPE_SHORT_NAME, null, true, true));
+
+		List<RawImData> imAddresses = new ArrayList<RawImData>();
+		imAddresses.add(new RawImData("imname", ImType.TYPE_HOME, null, false,
+				false, ImProtocolType.PROTOCOL_MSN, null));
+		imAddresses.add(new RawImData("workname", ImType.TYPE_CUSTOM, "Sky",
+				true, true, ImProtocolType.PROTOCOL_CUSTOM, "customProt"));
+
+		List<String> groupSourceIds = new ArrayList<String>();
+		groupSourceIds.add("13213sdsdfsd");
+		groupSourceIds.add("2df");
+		String customRingTone = "uriRingtone";
+
+		RawOrganizationData org = new RawOrganizationData("title",
+				OrganizationType.TYPE_WORK, "CustomLabel", true, true, "title",
+				"department", "jobTitle");
+
+		String note = "Notiz dfdfs$ää}][]";
+
+		boolean photoIsSuperPrimary = true;
+
+		String c1ServerId = UUID.randomUUID().toString();
+		List<Long> groupIds = new ArrayList<Long>();
+		groupIds.add(1L);
+
+		return new RawContact("Hans Musteröäü", "Hans", "Muster",
+				"Middle", "Dr.", "junior", "Hansli", "Middlei", "Musterli",
+				phones, emails, websites, addresses, events, relations,
+				sipAddresses, nicknames, imAddresses, note, org, photo,
+				photoIsSuperPrimary, groupSourceIds, groupIds, true,
+				customRingTone, true, null, false, c1ServerId, 3, false, 2);
+	}
+
 	static KeyPair generateKey() throws IOException {
 		String pwd = PasswortGenerator.createPwd(5);
 		SecureRandom random = new SecureRandom();
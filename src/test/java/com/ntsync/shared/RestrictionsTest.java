@@ -19,6 +19,8 @@ package com.ntsync.shared;
  */
 
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.Date;
 
 import org.junit.Assert;
@@ -37,6 +39,19 @@ public class RestrictionsTest {
 		Restrictions rest5 = new Restrictions(20, 30, true, null);
 		Restrictions rest6 = new Restrictions(20, 40, false, null);
 		Restrictions rest7 = new Restrictions(20, 30, false, time);
+		Restrictions rest8 = new Restrictions(20, 30, false, null, true);
+		Restrictions rest9 = new Restrictions(20, 30, false, null, false,
+				true);
+		Restrictions rest10 = new Restrictions(20, 30, false, null, false,
+				false, true);
+		Restrictions rest11 = new Restrictions(20, 30, false, null, false,
+				false, false, true);
+		Restrictions rest12 = new Restrictions(20, 30, false, null, false,
+				false, false, false, true);
+		Restrictions rest13 = new Restrictions(20, 30, false, null, false,
+				false, false, false, false, true);
+		Restrictions rest14 = new Restrictions(20, 30, false, null, false,
+				false, false, false, false, false, true);
 
 		Assert.assertNotEquals(rest1, null);
 		Assert.assertNotEquals(rest1, "");
@@ -45,6 +60,13 @@ public class RestrictionsTest {
 		Assert.assertNotEquals(rest1, rest4);
 		Assert.assertNotEquals(rest1, rest5);
 		Assert.assertNotEquals(rest1, rest6);
+		Assert.assertNotEquals(rest1, rest8);
+		Assert.assertNotEquals(rest1, rest9);
+		Assert.assertNotEquals(rest1, rest10);
+		Assert.assertNotEquals(rest10, rest11);
+		Assert.assertNotEquals(rest1, rest12);
+		Assert.assertNotEquals(rest1, rest13);
+		Assert.assertNotEquals(rest1, rest14);
 		Assert.assertNotEquals(rest3, rest1);
 		Assert.assertEquals(rest1, rest2);
 		Assert.assertEquals(rest1, rest1);
@@ -54,5 +76,49 @@ public class RestrictionsTest {
 		Assert.assertEquals(30, rest1.getMaxGroupCount());
 		Assert.assertEquals(true, rest5.isPhotoSyncSupported());
 		Assert.assertEquals(time, rest3.getValidUntil());
+		Assert.assertFalse(rest1.isBinaryJsonSupported());
+		Assert.assertTrue(rest8.isBinaryJsonSupported());
+		Assert.assertFalse(rest1.isEnvelopeSupported());
+		Assert.assertTrue(rest9.isEnvelopeSupported());
+		Assert.assertFalse(rest1.isPhotoRefSupported());
+		Assert.assertTrue(rest10.isPhotoRefSupported());
+		Assert.assertFalse(rest1.isTextDeltaSupported());
+		Assert.assertTrue(rest11.isTextDeltaSupported());
+		Assert.assertFalse(rest1.isGcmSupported());
+		Assert.assertTrue(rest12.isGcmSupported());
+		Assert.assertFalse(rest1.isBinaryTextSupported());
+		Assert.assertTrue(rest13.isBinaryTextSupported());
+		Assert.assertFalse(rest1.isTextCompressionSupported());
+		Assert.assertTrue(rest14.isTextCompressionSupported());
+	}
+
+	@Test
+	public void testParseRestr() throws IOException {
+		Restrictions restr = parseConfig("\""
+				+ RequestGenerator.PARAM_MAX_CONTACTS + "\":5,\""
+				+ RequestGenerator.PARAM_CIPHER_SUITES + "\":[0,1],\""
+				+ RequestGenerator.PARAM_TEXT_FORMATS + "\":[0,1],\""
+				+ RequestGenerator.PARAM_TEXT_COMPRESSION + "\":true,\""
+				+ RequestGenerator.PARAM_ENVELOPE + "\":true");
+		Assert.assertEquals(5, restr.getMaxContactCount());
+		Assert.assertTrue(restr.isGcmSupported());
+		Assert.assertTrue(restr.isBinaryTextSupported());
+		Assert.assertTrue(restr.isTextCompressionSupported());
+		Assert.assertTrue(restr.isEnvelopeSupported());
+
+		// Not all clients can decode GCM
+		restr = parseConfig("\"" + RequestGenerator.PARAM_CIPHER_SUITES
+				+ "\":[0],\"" + RequestGenerator.PARAM_ENVELOPE + "\":true");
+		Assert.assertFalse(restr.isGcmSupported());
+		Assert.assertFalse(restr.isBinaryTextSupported());
+		Assert.assertFalse(restr.isTextCompressionSupported());
+		Assert.assertTrue(restr.isEnvelopeSupported());
+	}
+
+	private static Restrictions parseConfig(String config) throws IOException {
+		String json = "{\"" + RequestGenerator.SERVER_FIELD_NAME + "\":{\""
+				+ RequestGenerator.TAG_SERVER_CONFIG + "\":{" + config + "}}}";
+		return RequestGenerator.parseRestr(new ByteArrayInputStream(json
+				.getBytes("UTF-8")));
 	}
 }
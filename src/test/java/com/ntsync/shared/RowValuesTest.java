@@ -0,0 +1,139 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RowValuesTest {
+
+	@Test
+	public void testPutAndClear() throws UnsupportedEncodingException {
+		byte[] data = "xxHelloyyWorld".getBytes("UTF-8");
+		RowValues values = new RowValues();
+		values.put(ContactConstants.SERVERROW_ID, data, 2, 5);
+		values.put(ContactConstants.TEXTDATA, data, 9, 5);
+		// Keys with negative byte values
+		for (int i = 0; i < 20; i++) {
+			values.put((byte) (-100 - i), data, i % 10, 1);
+		}
+
+		Assert.assertEquals(22, values.size());
+		Assert.assertEquals("Hello",
+				values.getString(ContactConstants.SERVERROW_ID));
+		Assert.assertEquals("World",
+				values.getString(ContactConstants.TEXTDATA));
+		Assert.assertEquals(9, values.getOffset(ContactConstants.TEXTDATA));
+		Assert.assertSame(data, values.getArray((byte) -119));
+		Assert.assertFalse(values.contains(ContactConstants.PHOTO));
+		Assert.assertNull(values.getString(ContactConstants.PHOTO));
+		Assert.assertEquals(-1, values.getLength(ContactConstants.PHOTO));
+
+		RowValues copy = values.copy();
+		values.put(ContactConstants.TEXTDATA, data, 0, 2);
+		Assert.assertEquals("xx", values.getString(ContactConstants.TEXTDATA));
+		Assert.assertEquals("World", copy.getString(ContactConstants.TEXTDATA));
+
+		values.clear();
+		Assert.assertEquals(0, values.size());
+		Assert.assertFalse(values.contains(ContactConstants.SERVERROW_ID));
+		Assert.assertFalse(values.contains((byte) -100));
+		Assert.assertEquals(22, copy.size());
+	}
+
+	@Test
+	public void testAllKeys() throws UnsupportedEncodingException {
+		byte[] data = "0123456789".getBytes("UTF-8");
+		RowValues values = new RowValues();
+		for (int i = 0; i < 256; i++) {
+			values.put((byte) i, data, i % 10, 1);
+		}
+
+		Assert.assertEquals(256, values.size());
+		for (int i = 0; i < 256; i++) {
+			Assert.assertEquals(String.valueOf(i % 10),
+					values.getString((byte) i));
+		}
+		values.clear();
+		Assert.assertFalse(values.contains((byte) 255));
+	}
+
+	@Test
+	public void testSegment() throws UnsupportedEncodingException {
+		byte[] data = "xxHelloyyWorld".getBytes("UTF-8");
+		byte[] envelopeIv = new byte[CryptoHelper.IV_LEN];
+		RowValues values = new RowValues();
+		values.putSegment(ContactConstants.TEXTDATA, data, 2, 5, envelopeIv,
+				1, 0);
+		// Grows the nonce table
+		for (int i = 0; i < 20; i++) {
+			values.putSegment((byte) (-100 - i), data, 9, 5, envelopeIv, 1,
+					i + 1);
+		}
+		values.put(ContactConstants.HASH, data, 9, 5);
+
+		Assert.assertTrue(values.isSegment(ContactConstants.TEXTDATA));
+		Assert.assertFalse(values.isSegment(ContactConstants.HASH));
+		Assert.assertFalse(values.isSegment(ContactConstants.PHOTO));
+		Assert.assertSame(data, values.getArray(ContactConstants.TEXTDATA));
+
+		byte[] iv = new byte[CryptoHelper.IV_LEN];
+		byte[] expected = new byte[CryptoHelper.IV_LEN];
+		CryptoHelper.initSegmentIv(envelopeIv, 1, 20, expected, 0);
+		values.getSegmentIv((byte) -119, iv, 0);
+		Assert.assertArrayEquals(expected, iv);
+
+		RowValues copy = values.copy();
+		values.put(ContactConstants.TEXTDATA, data, 0, 2);
+		Assert.assertFalse(values.isSegment(ContactConstants.TEXTDATA));
+		Assert.assertTrue(copy.isSegment(ContactConstants.TEXTDATA));
+		copy.getSegmentIv((byte) -119, iv, 0);
+		Assert.assertArrayEquals(expected, iv);
+
+		// The value is copied with its nonce as IV
+		byte[] value = CryptoHelper.copyValue(ContactConstants.TEXTDATA, copy);
+		CryptoHelper.initSegmentIv(envelopeIv, 1, 0, expected, 0);
+		Assert.assertEquals("Hello", new String(value, CryptoHelper.IV_LEN,
+				5, "UTF-8"));
+		System.arraycopy(value, 0, iv, 0, CryptoHelper.IV_LEN);
+		Assert.assertArrayEquals(expected, iv);
+
+		values.clear();
+		values.put((byte) -100, data, 0, 2);
+		Assert.assertFalse(values.isSegment((byte) -100));
+	}
+
+	@Test
+	public void testValueOfMap() throws UnsupportedEncodingException {
+		byte[] data = "xxHello".getBytes("UTF-8");
+		Map<Byte, ByteBuffer> map = new HashMap<Byte, ByteBuffer>();
+		map.put(ContactConstants.MODIFIED, ByteBuffer.wrap(data, 2, 5));
+		map.put(ContactConstants.HASH, ByteBuffer.wrap(data, 2, 5).slice());
+
+		RowValues values = RowValues.valueOf(map);
+		Assert.assertEquals("Hello", values.getString(ContactConstants.MODIFIED));
+		Assert.assertEquals("Hello", values.getString(ContactConstants.HASH));
+	}
+}
@@ -48,5 +48,9 @@ public class SyncAnchorTest {
 		Assert.assertNull(anchor
 				.getAnchorDate(ContactConstants.TYPE_CONTACTGROUP));
 		Assert.assertEquals(2, anchor.containers().size());
+
+		Assert.assertNull(anchor.getContinuation());
+		anchor.setContinuation("page2");
+		Assert.assertEquals("page2", anchor.getContinuation());
 	}
 }
@@ -21,6 +21,10 @@ package com.ntsync.shared;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.util.Random;
 
 import org.junit.Test;
@@ -59,6 +63,29 @@ public class SyncDataHelperTest {
 		}
 	}
 
+	@Test
+	public void testReadIntStream() throws IOException {
+		Random rand = new Random();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int[] values = new int[100];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = rand.nextInt();
+			SyncDataHelper.writeInt(out, values[i]);
+		}
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(values[i], SyncDataHelper.readInt(in));
+		}
+
+		EOFException ex = null;
+		try {
+			SyncDataHelper.readInt(new ByteArrayInputStream(new byte[3]));
+		} catch (EOFException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+	}
+
 	@Test
 	public void testReadShort() {
 		Random rand = new Random();
@@ -0,0 +1,216 @@
+package com.ntsync.shared;
+
+/*
+ * Copyright (C) 2014 Markus Grieder
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>. 
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.ntsync.shared.RequestGenerator.SyncResponse;
+import com.ntsync.shared.RequestGeneratorTest.KeyPair;
+
+public class SyncPipelineTest {
+
+	private static final int PAGE_COUNT = 3;
+
+	private static final int PAGE_SIZE = 20;
+
+	@Test
+	public void testRun() throws Exception {
+		KeyPair pwd = RequestGeneratorTest.generateKey();
+		List<RawContact> contacts = RequestGeneratorTest.createContacts(
+				PAGE_COUNT * PAGE_SIZE, 100);
+		InMemoryTransport transport = new InMemoryTransport(pwd, contacts);
+		PageCollector listener = new PageCollector(pwd);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			SyncPipeline pipeline = new SyncPipeline(transport, pwd.key, null,
+					executor);
+			int pageCount = pipeline.run(
+					listener.createPageRequest(new SyncAnchor()), listener);
+
+			Assert.assertEquals(PAGE_COUNT, pageCount);
+			Assert.assertEquals(PAGE_COUNT, transport.requests);
+			Assert.assertEquals(PAGE_COUNT, listener.pages.size());
+			Assert.assertEquals(contacts.size(), listener.contacts.size());
+			for (int i = 0; i < contacts.size(); i++) {
+				Assert.assertEquals(contacts.get(i).getFullName(),
+						listener.contacts.get(i).getFullName());
+			}
+			Assert.assertNull(listener.pages.get(PAGE_COUNT - 1).continuation);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testResumeAfterFailure() throws Exception {
+		KeyPair pwd = RequestGeneratorTest.generateKey();
+		List<RawContact> contacts = RequestGeneratorTest.createContacts(
+				PAGE_COUNT * PAGE_SIZE, 0);
+		InMemoryTransport transport = new InMemoryTransport(pwd, contacts);
+		transport.failingPage = "page" + (PAGE_COUNT - 1);
+		PageCollector listener = new PageCollector(pwd);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			SyncPipeline pipeline = new SyncPipeline(transport, pwd.key, null,
+					executor);
+			try {
+				pipeline.run(listener.createPageRequest(new SyncAnchor()),
+						listener);
+				Assert.fail("IOException expected");
+			} catch (IOException ex) {
+				// expected
+			}
+			// The received pages are applied
+			Assert.assertEquals(PAGE_COUNT - 1, listener.pages.size());
+			Assert.assertEquals(PAGE_COUNT - 1, pipeline.getAppliedPages());
+			SyncAnchor lastAnchor = listener.pages.get(PAGE_COUNT - 2)
+					.newServerAnchor;
+			Assert.assertEquals(transport.failingPage,
+					lastAnchor.getContinuation());
+
+			transport.failingPage = null;
+			int pageCount = pipeline.run(
+					listener.createPageRequest(lastAnchor), listener);
+			Assert.assertEquals(1, pageCount);
+			Assert.assertEquals(contacts.size(), listener.contacts.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testApplyAfterInvalidPage() throws Exception {
+		KeyPair pwd = RequestGeneratorTest.generateKey();
+		List<RawContact> contacts = RequestGeneratorTest.createContacts(
+				PAGE_COUNT * PAGE_SIZE, 0);
+		InMemoryTransport transport = new InMemoryTransport(pwd, contacts);
+		transport.invalidPage = "page" + (PAGE_COUNT - 1);
+		PageCollector listener = new PageCollector(pwd);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			SyncPipeline pipeline = new SyncPipeline(transport, pwd.key, null,
+					executor);
+			try {
+				pipeline.run(listener.createPageRequest(new SyncAnchor()),
+						listener);
+				Assert.fail("HeaderParseException expected");
+			} catch (HeaderParseException ex) {
+				// expected
+			}
+			// The page which was decoded is applied and counted
+			Assert.assertEquals(PAGE_COUNT - 1, listener.pages.size());
+			Assert.assertEquals(PAGE_COUNT - 1, pipeline.getAppliedPages());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Stands in for the server: returns the prepared page of the
+	 * continuation token in the request.
+	 */
+	private static final class InMemoryTransport implements SyncTransport {
+
+		private final Map<String, byte[]> pages = new HashMap<String, byte[]>();
+
+		private volatile String failingPage;
+
+		private volatile String invalidPage;
+
+		private volatile int requests;
+
+		InMemoryTransport(KeyPair pwd, List<RawContact> contacts)
+				throws HeaderCreateException {
+			for (int i = 0; i < PAGE_COUNT; i++) {
+				SyncAnchor anchor = new SyncAnchor();
+				if (i < PAGE_COUNT - 1) {
+					anchor.setContinuation("page" + (i + 1));
+				}
+				// A request has the same frame as a response
+				byte[] page = RequestGenerator.prepareServerRequest(anchor,
+						contacts.subList(i * PAGE_SIZE, (i + 1) * PAGE_SIZE),
+						null, pwd.key, "test", null, pwd.salt, null, null,
+						null, false);
+				pages.put(i == 0 ? null : "page" + i, page);
+			}
+		}
+
+		@Override
+		public byte[] send(byte[] request) throws IOException {
+			requests++;
+			String continuation;
+			try {
+				continuation = RequestGenerator.processResponseHeader(null,
+						request, null).continuation;
+			} catch (HeaderParseException ex) {
+				throw new IOException(ex);
+			}
+			if (continuation != null && continuation.equals(failingPage)) {
+				throw new IOException("Connection lost");
+			}
+			if (continuation != null && continuation.equals(invalidPage)) {
+				// Header is not valid JSON
+				byte[] page = pages.get(continuation).clone();
+				page[6] = ']';
+				return page;
+			}
+			return pages.get(continuation);
+		}
+	}
+
+	private static final class PageCollector implements SyncPageListener {
+
+		private final KeyPair pwd;
+
+		private final List<SyncResponse> pages = new ArrayList<SyncResponse>();
+
+		private final List<RawContact> contacts = new ArrayList<RawContact>();
+
+		PageCollector(KeyPair pwd) {
+			this.pwd = pwd;
+		}
+
+		@Override
+		public byte[] createPageRequest(SyncAnchor anchor)
+				throws HeaderCreateException {
+			anchor.setPageSize(PAGE_SIZE);
+			return RequestGenerator.prepareServerRequest(anchor,
+					Collections.<RawContact> emptyList(), null, pwd.key,
+					"test", null, pwd.salt, null, null, null, false);
+		}
+
+		@Override
+		public void applyPage(SyncResponse page) {
+			pages.add(page);
+			contacts.addAll(page.serverContacts);
+		}
+	}
+}